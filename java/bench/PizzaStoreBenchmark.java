@@ -0,0 +1,194 @@
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks for the PizzaStore data paths, run against a local
+ * Postgres database created with create_tables.sql, create_functions.sql
+ * and create_indexes.sql.
+ * Before the first trial the database is loaded from the data/*.csv files
+ * plus SCALE times as many generated orders as foodorder.csv holds.  Every
+ * benchmark reports throughput and sampled latency percentiles.
+ *
+ * Settings, passed to the forked JVMs by java/scripts/bench.sh:
+ *    -Dpizzastore.bench.db      database name
+ *    -Dpizzastore.bench.port    database port
+ *    -Dpizzastore.bench.user    database user
+ *    -Dpizzastore.bench.data    directory holding the csv files
+ *    -Dpizzastore.bench.scale   orders to load per row of foodorder.csv (default 10000)
+ *    -Dpizzastore.bench.indexes path of create_indexes.sql
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class PizzaStoreBenchmark {
+
+   // the newest page of the staff order listing in browseOrders
+   private static final String ORDER_PAGE_QUERY =
+      "SELECT orderID, orderTimestamp, login, storeID, totalPrice, orderStatus FROM FoodOrder " +
+      "ORDER BY orderTimestamp DESC, orderID DESC LIMIT ?";
+
+   private PizzaStore esql;
+   private List<String[]> users;
+   private List<UserSession> sessions;
+   private List<String> itemNames;
+   private List<Integer> storeIDs;
+   private int minOrderID;
+   private int maxOrderID;
+
+   @Setup(Level.Trial)
+   public void setUp () throws Exception {
+      Class.forName ("org.postgresql.Driver");
+      esql = new PizzaStore(System.getProperty ("pizzastore.bench.db"),
+                            System.getProperty ("pizzastore.bench.port", "5432"),
+                            System.getProperty ("pizzastore.bench.user"), "");
+      String dataDir = System.getProperty ("pizzastore.bench.data", "data");
+      int scale = Integer.getInteger ("pizzastore.bench.scale", 10000);
+      Seed.load(esql, dataDir, scale);
+
+      users = new ArrayList<String[]>();
+      for (List<String> row : esql.executeQueryAndReturnResult ("SELECT login, password FROM Users"))
+         users.add(new String[] { row.get(0), row.get(1) });
+      sessions = new ArrayList<UserSession>();
+      for (String[] user : users)
+         sessions.add(esql.getService ().logIn (user[0], user[1]));
+      itemNames = new ArrayList<String>();
+      for (MenuCatalog.Item item : esql.getMenu ().all ())
+         itemNames.add(item.name);
+      storeIDs = new ArrayList<Integer>();
+      for (List<String> row : esql.executeQueryAndReturnResult ("SELECT storeID FROM Store"))
+         storeIDs.add(Integer.parseInt (row.get(0)));
+      List<String> bounds = esql.executeQueryAndReturnResult ("SELECT MIN(orderID), MAX(orderID) FROM FoodOrder").get(0);
+      minOrderID = Integer.parseInt (bounds.get(0));
+      maxOrderID = Integer.parseInt (bounds.get(1));
+   }//end setUp
+
+   @TearDown(Level.Trial)
+   public void tearDown () {
+      esql.cleanup ();
+   }//end tearDown
+
+   @Benchmark
+   public UserSession logIn () throws SQLException {
+      String[] user = users.get(ThreadLocalRandom.current ().nextInt (users.size ()));
+      return esql.getService ().logIn (user[0], user[1]);
+   }
+
+   @Benchmark
+   public int viewMenuAll () throws SQLException {
+      return esql.getMenu ().all ().size ();
+   }
+
+   @Benchmark
+   public int viewMenuByType () throws SQLException {
+      String[] types = { "entree", "sides", "drinks" };
+      return esql.getMenu ().ofType (types[ThreadLocalRandom.current ().nextInt (types.length)]).size ();
+   }
+
+   @Benchmark
+   public int viewMenuAtMostPrice () throws SQLException {
+      return esql.getMenu ().atMost (BigDecimal.valueOf (ThreadLocalRandom.current ().nextInt (1, 15))).size ();
+   }
+
+   @Benchmark
+   public int viewMenuSortedByPrice () throws SQLException {
+      return esql.getMenu ().sortedByPrice (ThreadLocalRandom.current ().nextBoolean ()).size ();
+   }
+
+   @Benchmark
+   public PizzaService.Receipt placeOrder () throws SQLException {
+      ThreadLocalRandom random = ThreadLocalRandom.current ();
+      Map<String, Integer> cart = new LinkedHashMap<String, Integer>();
+      for (int lines = random.nextInt (1, 6); lines > 0; --lines)
+         cart.merge(itemNames.get(random.nextInt (itemNames.size ())), random.nextInt (1, 4), Integer::sum);
+      UserSession session = sessions.get(random.nextInt (sessions.size ()));
+      return esql.getService ().placeOrder (session, storeIDs.get(random.nextInt (storeIDs.size ())), cart);
+   }
+
+   @Benchmark
+   public List<List<String>> viewRecentOrders () throws SQLException {
+      String login = users.get(ThreadLocalRandom.current ().nextInt (users.size ()))[0];
+      return esql.executeQueryAndReturnResult (PizzaStore.RECENT_ORDERS_QUERY, login);
+   }
+
+   @Benchmark
+   public List<List<String>> viewRecentOrdersCached () throws SQLException {
+      UserSession session = sessions.get(ThreadLocalRandom.current ().nextInt (sessions.size ()));
+      return esql.getService ().getRecentOrders (session);
+   }
+
+   @Benchmark
+   public List<List<String>> viewOrderInfo () throws SQLException {
+      int orderID = ThreadLocalRandom.current ().nextInt (minOrderID, maxOrderID + 1);
+      return esql.executeQueryAndReturnResult (PizzaStore.ORDER_INFO_QUERY, orderID);
+   }
+
+   @Benchmark
+   public List<List<String>> materializeOrderPage () throws SQLException {
+      return esql.executeQueryAndReturnResult (ORDER_PAGE_QUERY, 100);
+   }
+
+   @Benchmark
+   public int countOrderPage () throws SQLException {
+      return esql.executeQuery (ORDER_PAGE_QUERY, 100);
+   }
+
+   /**
+    * Seeds the benchmark database from the csv files in the data directory.
+    */
+   static class Seed {
+
+      /**
+       * Loads users, items and stores as they are, plus SCALE times as many
+       * orders as foodorder.csv holds, generated by OrderGenerator and
+       * loaded with BulkLoader.  Nothing is loaded when FoodOrder already
+       * holds that many orders.
+       */
+      static void load (PizzaStore esql, String dataDir, int scale) throws Exception {
+         long wanted = (long) CsvFile.read (dataDir + "/foodorder.csv").size () * scale;
+         long present = Long.parseLong (esql.executeQueryAndReturnResult ("SELECT COUNT(*) FROM FoodOrder").get(0).get(0));
+         if (present >= wanted)
+            return;
+
+         System.out.println ("Seeding " + wanted + " orders...");
+         Path orders = Files.createTempDirectory ("pizzastore-bench");
+         try {
+            OrderGenerator.generate (dataDir, orders.toString (), wanted, 1.1, 365, 166);
+            String url = "jdbc:postgresql://localhost:" + System.getProperty ("pizzastore.bench.port", "5432")
+                       + "/" + System.getProperty ("pizzastore.bench.db");
+            new BulkLoader(url, System.getProperty ("pizzastore.bench.user"), "")
+               .load (dataDir, orders.toString (), System.getProperty ("pizzastore.bench.indexes",
+                                                                       "sql/src/create_indexes.sql"));
+         }finally {
+            Files.deleteIfExists (orders.resolve ("foodorder.csv"));
+            Files.deleteIfExists (orders.resolve ("itemsinorder.csv"));
+            Files.deleteIfExists (orders);
+         }//end try
+         esql.getMenu ().invalidate ();
+      }//end load
+   }//end Seed
+}//end PizzaStoreBenchmark
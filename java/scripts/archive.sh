@@ -0,0 +1,17 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# Moves completed and canceled orders older than DAYS out of FoodOrder and
+# ItemsInOrder into the columnar segment files of OrderArchive.
+#
+#   DAYS=365          archive orders placed more than this many days ago
+#   ARCHIVE=dir       directory of the segment files (default archive)
+
+DAYS=${DAYS:-365}
+ARCHIVE=${ARCHIVE:-archive}
+
+# compile the java program
+javac -cp $DIR/../lib/pg73jdbc3.jar -d $DIR/../classes $DIR/../src/*.java || exit 1
+
+java -Dpizzastore.archive=$ARCHIVE -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar \
+   OrderArchive $USER"_project_phase_3_DB" $PGPORT $USER $DAYS
@@ -0,0 +1,42 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# Runs the JMH benchmarks in java/bench against a local database that was
+# created with sql/src/create_tables.sql, create_partitions.sql,
+# create_functions.sql and create_indexes.sql.
+#
+# The JMH jars (jmh-core, jmh-generator-annprocess, jopt-simple,
+# commons-math3) go in java/lib/jmh.  Extra arguments are passed to JMH,
+# e.g. "bench.sh -t 8 logIn" runs only logIn on 8 threads.
+#
+#   SCALE=10000    generated orders to seed per row of data/foodorder.csv
+#   BASELINE=file  earlier results csv to compare this run against
+#   JDBC_JAR=file  postgresql driver with COPY support (8.4 or later), which
+#                  seeding the tables through BulkLoader needs
+
+SCALE=${SCALE:-10000}
+JDBC_JAR=${JDBC_JAR:-$DIR/../lib/pg73jdbc3.jar}
+RESULTS=$DIR/../bench/results
+CLASSES=$DIR/../bench/classes
+JMH_CP=$(ls $DIR/../lib/jmh/*.jar | tr '\n' ':')
+mkdir -p $RESULTS $CLASSES
+
+# compile the program and the benchmarks
+javac -cp $JDBC_JAR:$JMH_CP -d $CLASSES $DIR/../src/*.java $DIR/../bench/*.java || exit 1
+
+# run the benchmarks; settings reach the forked JVMs through -jvmArgsAppend
+RESULT=$RESULTS/$(date +%Y%m%d-%H%M%S).csv
+java -cp $CLASSES:$JDBC_JAR:$JMH_CP org.openjdk.jmh.Main PizzaStoreBenchmark \
+   -rf csv -rff $RESULT \
+   -jvmArgsAppend "-Dpizzastore.bench.db=${USER}_project_phase_3_DB -Dpizzastore.bench.port=$PGPORT -Dpizzastore.bench.user=$USER -Dpizzastore.bench.data=$DIR/../../data -Dpizzastore.bench.scale=$SCALE -Dpizzastore.bench.indexes=$DIR/../../sql/src/create_indexes.sql" \
+   "$@" || exit 1
+
+# compare each score (throughput and latency percentiles) with the baseline
+if [ -n "$BASELINE" ]; then
+   echo
+   echo "Change against $BASELINE:"
+   awk -F, 'NR == FNR { if (FNR > 1) base[$1 FS $2] = $5; next }
+            FNR > 1 && ($1 FS $2) in base && base[$1 FS $2] != 0 {
+               printf "%-60s %-6s %12s -> %12s  %+7.1f%%\n", $1, $2, base[$1 FS $2], $5, ($5 - base[$1 FS $2]) * 100 / base[$1 FS $2]
+            }' $BASELINE $RESULT
+fi
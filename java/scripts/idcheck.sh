@@ -0,0 +1,18 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# Takes order IDs from OrderIdAllocator on many threads in two JVMs at once
+# against FoodOrder_orderID_seq and fails if any ID is handed out twice.
+# Only the sequence advances; FoodOrder is not touched.
+#
+#   THREADS=8    threads per JVM
+#   IDS=10000    IDs taken per thread
+
+THREADS=${THREADS:-8}
+IDS=${IDS:-10000}
+
+# compile the java program
+javac -cp $DIR/../lib/pg73jdbc3.jar -d $DIR/../classes $DIR/../src/*.java || exit 1
+
+java -Dpizzastore.idcheck.threads=$THREADS -Dpizzastore.idcheck.ids=$IDS \
+   -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar OrderIdCheck $USER"_project_phase_3_DB" $PGPORT $USER
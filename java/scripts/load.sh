@@ -0,0 +1,29 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# Recreates the tables and loads them with the Java bulk loader, which
+# streams the csv files through COPY and builds the indexes afterwards.
+#
+#   ORDERS=5000000   load that many generated orders instead of data/foodorder.csv
+#   JDBC_JAR=file    postgresql driver with COPY support (8.4 or later)
+
+DATA=$DIR/../../data
+SQL=$DIR/../../sql/src
+JDBC_JAR=${JDBC_JAR:-$DIR/../lib/pg73jdbc3.jar}
+DB=$USER"_project_phase_3_DB"
+
+# compile the java program
+javac -cp $JDBC_JAR -d $DIR/../classes $DIR/../src/*.java || exit 1
+
+cs166_psql -p $PGPORT $DB < $SQL/create_tables.sql
+cs166_psql -p $PGPORT $DB < $SQL/create_partitions.sql
+cs166_psql -p $PGPORT $DB < $SQL/create_functions.sql
+
+GENERATED=
+if [ -n "$ORDERS" ]; then
+   GENERATED=$DATA/generated
+   mkdir -p $GENERATED
+   java -cp $DIR/../classes OrderGenerator $DATA $GENERATED $ORDERS || exit 1
+fi
+
+java -cp $DIR/../classes:$JDBC_JAR BulkLoader $DB $PGPORT $USER $DATA $SQL/create_indexes.sql $GENERATED
@@ -0,0 +1,11 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# Writes an order into FoodOrder_default, creates its month's partition
+# and fails unless the order moved there with its FoodOrderID claim and
+# its lines.  Runs in one transaction that is rolled back.
+
+# compile the java program
+javac -cp $DIR/../lib/pg73jdbc3.jar -d $DIR/../classes $DIR/../src/*.java || exit 1
+
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar PartitionCheck $USER"_project_phase_3_DB" $PGPORT $USER
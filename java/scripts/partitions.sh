@@ -0,0 +1,18 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# Makes one PartitionMaintainer pass: creates FoodOrder's monthly
+# partitions ahead of the clock and, with RETAIN_MONTHS set, detaches the
+# ones older than that many months.  Suitable for a daily cron job.
+#
+#   MONTHS_AHEAD=3   months to create past the current one
+#   RETAIN_MONTHS=0  months to keep in FoodOrder, 0 keeps all
+
+MONTHS_AHEAD=${MONTHS_AHEAD:-3}
+RETAIN_MONTHS=${RETAIN_MONTHS:-0}
+
+# compile the java program
+javac -cp $DIR/../lib/pg73jdbc3.jar -d $DIR/../classes $DIR/../src/*.java || exit 1
+
+java -Dpizzastore.partitions.monthsAhead=$MONTHS_AHEAD -Dpizzastore.partitions.retainMonths=$RETAIN_MONTHS \
+   -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar PartitionMaintainer $USER"_project_phase_3_DB" $PGPORT $USER
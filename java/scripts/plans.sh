@@ -0,0 +1,11 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# Runs EXPLAIN (ANALYZE, BUFFERS) on every query template and fails if one
+# reads a table with an unexpected sequential scan.  Load the database at
+# volume first, e.g. ORDERS=5000000 java/scripts/load.sh
+
+# compile the java program
+javac -cp $DIR/../lib/pg73jdbc3.jar -d $DIR/../classes $DIR/../src/*.java || exit 1
+
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar QueryPlanCheck $USER"_project_phase_3_DB" $PGPORT $USER
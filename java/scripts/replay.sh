@@ -0,0 +1,23 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# Replays scripted sessions against the database without a terminal and
+# prints throughput and latency percentiles per operation.
+#
+#   WORKLOAD=file    session scripts (default java/workloads/friday_peak.txt)
+#   SESSIONS=5000    how many sessions to run
+#   CONCURRENCY=n    at most n sessions at once (default all of them)
+#   POOL=20          database connections shared by the sessions
+#   REPLICAS=h:p,..  read replicas to send read-only statements to
+
+WORKLOAD=${WORKLOAD:-$DIR/../workloads/friday_peak.txt}
+SESSIONS=${SESSIONS:-5000}
+CONCURRENCY=${CONCURRENCY:-$SESSIONS}
+POOL=${POOL:-20}
+REPLICAS=${REPLICAS:-}
+
+# compile the java program
+javac -cp $DIR/../lib/pg73jdbc3.jar -d $DIR/../classes $DIR/../src/*.java || exit 1
+
+java -Dpizzastore.pool.maxSize=$POOL -Dpizzastore.replicas=$REPLICAS -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar \
+   WorkloadReplayer $USER"_project_phase_3_DB" $PGPORT $USER $WORKLOAD $SESSIONS $CONCURRENCY
@@ -0,0 +1,19 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# Serves the order API over HTTP/JSON on HTTP_PORT (default 8080).
+#
+#   POOL=20          database connections shared by all requests
+#   REPLICAS=h:p,..  read replicas to send read-only statements to
+#   JDBC_JAR=file    postgresql driver; /orders/events needs 9.0 or later
+
+HTTP_PORT=${HTTP_PORT:-8080}
+POOL=${POOL:-20}
+REPLICAS=${REPLICAS:-}
+JDBC_JAR=${JDBC_JAR:-$DIR/../lib/pg73jdbc3.jar}
+
+# compile the java program
+javac -cp $JDBC_JAR -d $DIR/../classes $DIR/../src/*.java || exit 1
+
+java -Dpizzastore.pool.maxSize=$POOL -Dpizzastore.replicas=$REPLICAS -cp $DIR/../classes:$JDBC_JAR \
+   PizzaHttpServer $USER"_project_phase_3_DB" $PGPORT $USER $HTTP_PORT
@@ -0,0 +1,228 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class loads the csv files into freshly created tables through the
+ * Postgres COPY protocol, one connection per table, all tables at once.
+ * The foreign keys and the indexes from create_indexes.sql are dropped
+ * before the load and rebuilt afterwards, so rows are not checked or
+ * indexed one at a time.  The order triggers are disabled for the load,
+ * and the orderID registry and the sales rollups are filled from the
+ * loaded orders afterwards.  Primary keys stay in place.
+ *
+ * The hand-written files under data/ are cleaned up on the way in, since
+ * COPY does not accept their blanks around quoted fields.  Files written by
+ * OrderGenerator are streamed to the server as they are.
+ *
+ */
+public class BulkLoader {
+
+   // the foreign keys of create_tables.sql, under Postgres' default names
+   private static final String[][] FOREIGN_KEYS = {
+      { "FoodOrder", "foodorder_login_fkey",
+        "FOREIGN KEY(login) REFERENCES Users(login) ON DELETE CASCADE" },
+      { "FoodOrder", "foodorder_storeid_fkey",
+        "FOREIGN KEY(storeID) REFERENCES Store(storeID) ON DELETE CASCADE" },
+      { "ItemsInOrder", "itemsinorder_itemname_fkey",
+        "FOREIGN KEY(itemName) REFERENCES Items(itemName) ON DELETE CASCADE" },
+      // from create_functions.sql, against the orderID registry
+      { "ItemsInOrder", "itemsinorder_orderid_fkey",
+        "FOREIGN KEY(orderID) REFERENCES FoodOrderID(orderID) ON DELETE CASCADE" },
+   };
+
+   private static final Pattern INDEX_NAME =
+      Pattern.compile ("CREATE\\s+(?:UNIQUE\\s+)?INDEX\\s+(\\w+)", Pattern.CASE_INSENSITIVE);
+
+   private final String _url;
+   private final String _user;
+   private final String _passwd;
+
+   /**
+    * Creates a loader for the database at the given URL.
+    *
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    */
+   public BulkLoader (String url, String user, String passwd) {
+      this._url = url;
+      this._user = user;
+      this._passwd = passwd;
+   }//end BulkLoader
+
+   /**
+    * Method to replace the contents of every table with the csv files.
+    *
+    * @param dataDir directory holding users.csv, items.csv and store.csv
+    * @param ordersDir directory holding foodorder.csv and itemsinorder.csv
+    *                  written by OrderGenerator, or null to load them from dataDir
+    * @param indexFile the create_indexes.sql script
+    * @throws java.lang.Exception when any step of the load failed
+    */
+   public void load (String dataDir, String ordersDir, String indexFile) throws Exception {
+      List<String> indexes = readStatements(indexFile);
+      ExecutorService workers = Executors.newFixedThreadPool (5);
+      try (Connection conn = connect ()) {
+         Statement stmt = conn.createStatement ();
+
+         // empty the tables and take away everything checked or built per row
+         stmt.executeUpdate ("TRUNCATE ItemsInOrder, FoodOrderID, FoodOrder, Users, Items, Store");
+         for (String[] fk : FOREIGN_KEYS)
+            stmt.executeUpdate ("ALTER TABLE " + fk[0] + " DROP CONSTRAINT IF EXISTS " + fk[1]);
+         // loaded orders are history, not events for the order feed, and
+         // the rollups are rebuilt from them in one pass at the end
+         stmt.executeUpdate ("ALTER TABLE FoodOrder DISABLE TRIGGER USER");
+         stmt.executeUpdate ("ALTER TABLE ItemsInOrder DISABLE TRIGGER USER");
+         for (String index : indexes) {
+            Matcher name = INDEX_NAME.matcher (index);
+            if (name.find ())
+               stmt.executeUpdate ("DROP INDEX IF EXISTS " + name.group(1));
+         }//end for
+
+         long start = System.currentTimeMillis ();
+         List<Future<String>> copies = new ArrayList<Future<String>>();
+         copies.add(workers.submit (() -> copy("Users", dataDir + "/users.csv", true)));
+         copies.add(workers.submit (() -> copy("Items", dataDir + "/items.csv", true)));
+         copies.add(workers.submit (() -> copy("Store", dataDir + "/store.csv", true)));
+         String orders = ordersDir == null ? dataDir : ordersDir;
+         copies.add(workers.submit (() -> copy("FoodOrder", orders + "/foodorder.csv", ordersDir == null)));
+         copies.add(workers.submit (() -> copy("ItemsInOrder", orders + "/itemsinorder.csv", ordersDir == null)));
+         waitFor(copies);
+         System.out.println ("Copied all tables in " + (System.currentTimeMillis () - start) + " ms");
+
+         // build the indexes side by side, then check the keys in one pass each
+         start = System.currentTimeMillis ();
+         List<Future<String>> builds = new ArrayList<Future<String>>();
+         for (String index : indexes)
+            builds.add(workers.submit (() -> execute(index)));
+         waitFor(builds);
+         // the registry trigger was off too; an orderID loaded twice fails here
+         stmt.executeUpdate ("INSERT INTO FoodOrderID (orderID) SELECT orderID FROM FoodOrder");
+         for (String[] fk : FOREIGN_KEYS)
+            stmt.executeUpdate ("ALTER TABLE " + fk[0] + " ADD CONSTRAINT " + fk[1] + " " + fk[2]);
+         System.out.println ("Rebuilt indexes and foreign keys in " + (System.currentTimeMillis () - start) + " ms");
+         stmt.executeUpdate ("ALTER TABLE FoodOrder ENABLE TRIGGER USER");
+         stmt.executeUpdate ("ALTER TABLE ItemsInOrder ENABLE TRIGGER USER");
+         start = System.currentTimeMillis ();
+         stmt.executeQuery ("SELECT rebuild_sales_rollups()").close ();
+         System.out.println ("Rebuilt sales rollups in " + (System.currentTimeMillis () - start) + " ms");
+
+         stmt.executeQuery ("SELECT setval('FoodOrder_orderID_seq', " +
+                            "(SELECT COALESCE(MAX(orderID) + 1, 10000) FROM FoodOrder), false)").close ();
+         // VACUUM sets the visibility map, so index-only scans answer without heap reads
+         stmt.executeUpdate ("VACUUM ANALYZE");
+         stmt.close ();
+      }finally {
+         workers.shutdownNow ();
+      }//end try
+   }//end load
+
+   private Connection connect () throws SQLException {
+      return DriverManager.getConnection (this._url, this._user, this._passwd);
+   }//end connect
+
+   /*
+    * Streams one csv file into a table on a connection of its own.
+    **/
+   private String copy (String table, String path, boolean clean) throws Exception {
+      long start = System.currentTimeMillis ();
+      try (Connection conn = connect (); Reader in = clean ? cleaned(path)
+                                         : new BufferedReader(new FileReader(path), 1 << 20)) {
+         long rows = copyIn(conn, "COPY " + table + " FROM STDIN WITH (FORMAT csv, HEADER true)", in);
+         String done = table + ": " + rows + " rows in " + (System.currentTimeMillis () - start) + " ms";
+         System.out.println (done);
+         return done;
+      }//end try
+   }//end copy
+
+   /*
+    * Runs COPY ... FROM STDIN through the driver's CopyManager.  It is looked
+    * up by reflection so the program still builds against drivers without
+    * it; loading needs a driver that has it (org.postgresql 8.4 and later).
+    **/
+   private static long copyIn (Connection conn, String sql, Reader in) throws Exception {
+      try {
+         Object copyApi = conn.getClass ().getMethod ("getCopyAPI").invoke (conn);
+         Object rows = copyApi.getClass ().getMethod ("copyIn", String.class, Reader.class)
+                              .invoke (copyApi, sql, in);
+         return (Long) rows;
+      }catch (NoSuchMethodException e) {
+         throw new SQLException("The JDBC driver does not support COPY; use a newer postgresql driver");
+      }catch (InvocationTargetException e) {
+         throw (Exception) e.getCause ();
+      }//end try
+   }//end copyIn
+
+   /*
+    * Re-emits a hand-written csv file in the form COPY reads.
+    **/
+   private static Reader cleaned (String path) throws IOException {
+      StringBuilder out = new StringBuilder();
+      out.append (Files.readAllLines (Paths.get (path)).get(0)).append ('\n');
+      for (List<String> row : CsvFile.read (path))
+         CsvFile.append (out, row);
+      return new StringReader(out.toString ());
+   }//end cleaned
+
+   private String execute (String sql) throws SQLException {
+      try (Connection conn = connect (); Statement stmt = conn.createStatement ()) {
+         stmt.executeUpdate (sql);
+      }//end try
+      return sql;
+   }//end execute
+
+   private static List<String> readStatements (String path) throws IOException {
+      List<String> statements = new ArrayList<String>();
+      for (String sql : new String(Files.readAllBytes (Paths.get (path))).split (";"))
+         if (!sql.trim ().isEmpty ())
+            statements.add(sql.trim ());
+      return statements;
+   }//end readStatements
+
+   private static void waitFor (List<Future<String>> tasks) throws Exception {
+      for (Future<String> task : tasks) {
+         try {
+            task.get ();
+         }catch (ExecutionException e) {
+            throw (Exception) e.getCause ();
+         }//end try
+      }//end for
+   }//end waitFor
+
+   /**
+    * Loads the csv files into the database.
+    *
+    * @param args <dbname> <port> <user> <data dir> <create_indexes.sql> [generated orders dir]
+    */
+   public static void main (String[] args) throws Exception {
+      if (args.length < 5) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            BulkLoader.class.getName () +
+            " <dbname> <port> <user> <data dir> <create_indexes.sql> [generated orders dir]");
+         return;
+      }//end if
+      Class.forName ("org.postgresql.Driver");
+      String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+      new BulkLoader(url, args[2], "").load (args[3], args.length > 5 ? args[5] : null, args[4]);
+   }//end main
+}//end BulkLoader
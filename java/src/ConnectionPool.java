@@ -0,0 +1,405 @@
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * This class keeps a bounded set of physical connections to the database
+ * that are borrowed and returned by the PizzaStore query helpers.
+ * Connections are validated when borrowed after sitting idle, evicted once
+ * they have been idle too long, and each one carries its own prepared
+ * statement cache.
+ *
+ * A cached statement only saves the server's parse and plan when the
+ * driver prepares it on the server.  The bundled pg73 driver interpolates
+ * parameters into the SQL text on the client unless setUseServerPrepare
+ * is called, so every cached statement that PREPARE accepts (SELECT,
+ * INSERT, UPDATE, DELETE, VALUES and WITH) is switched to server-side
+ * prepare; newer drivers take the same call as prepareThreshold=1.  The
+ * driver wraps whatever it is given in PREPARE, so other statements, such
+ * as DECLARE or DDL, stay interpolated on the client.
+ *
+ * Settings:
+ *    -Dpizzastore.serverPrepare   prepare cached statements on the server (default true)
+ *
+ */
+public class ConnectionPool {
+
+   // connections idle for less than this are handed out without a ping
+   private static final long VALIDATION_BYPASS_MILLIS = 500;
+
+   // PGStatement.setUseServerPrepare, looked up by reflection so the pool
+   // still works with drivers without it; null when off or missing
+   private static final Method USE_SERVER_PREPARE = useServerPrepare ();
+
+   // the statements PREPARE takes, by their first word
+   private static final Pattern PREPARABLE =
+      Pattern.compile ("^\\s*(SELECT|INSERT|UPDATE|DELETE|VALUES|WITH)\\b", Pattern.CASE_INSENSITIVE);
+
+   /**
+    * A pooled physical connection together with the prepared statements
+    * opened on it.  A lease is used by one thread at a time.
+    */
+   public static class Lease {
+      private final Connection _connection;
+      private final Map<String, PreparedStatement> _statements =
+         new HashMap<String, PreparedStatement>();
+      private long _lastUsed = System.currentTimeMillis();
+      private boolean _broken = false;
+
+      Lease (Connection connection) {
+         this._connection = connection;
+      }//end Lease
+
+      /**
+       * @return the physical connection behind this lease
+       */
+      public Connection connection () {
+         return this._connection;
+      }//end connection
+
+      /**
+       * Method to fetch the prepared statement for a query template,
+       * preparing it on this connection on first use.
+       *
+       * @param sql the query template, using ? placeholders
+       * @return the cached prepared statement
+       * @throws java.sql.SQLException when the statement cannot be prepared
+       */
+      public PreparedStatement prepare (String sql) throws SQLException {
+         PreparedStatement stmt = this._statements.get(sql);
+         if (stmt == null) {
+            stmt = this._connection.prepareStatement (sql);
+            if (PREPARABLE.matcher(sql).find ())
+               serverPrepare(stmt);
+            this._statements.put(sql, stmt);
+         }//end if
+         return stmt;
+      }//end prepare
+
+      /**
+       * Records a failure seen on this lease.  Connection-level errors
+       * (SQLSTATE class 08) mean the socket is gone, so the lease is
+       * discarded instead of going back to the pool.
+       *
+       * @param e the failure raised while using the lease
+       */
+      public void failed (SQLException e) {
+         String state = e.getSQLState ();
+         if (state == null || state.startsWith ("08"))
+            this._broken = true;
+      }//end failed
+
+      private static void serverPrepare (PreparedStatement stmt) throws SQLException {
+         if (USE_SERVER_PREPARE == null || !USE_SERVER_PREPARE.getDeclaringClass ().isInstance (stmt))
+            return;
+         try {
+            USE_SERVER_PREPARE.invoke (stmt, true);
+         }catch (IllegalAccessException e) {
+            // left to client-side interpolation
+         }catch (InvocationTargetException e) {
+            if (e.getCause () instanceof SQLException)
+               throw (SQLException) e.getCause ();
+            throw new SQLException("Could not prepare on the server: " + e.getCause ());
+         }//end try
+      }//end serverPrepare
+
+      private void close () {
+         try {
+            for (PreparedStatement stmt : this._statements.values())
+               stmt.close ();
+            this._statements.clear ();
+            this._connection.close ();
+         }catch (SQLException e) {
+            // ignored.
+         }//end try
+      }//end close
+   }//end Lease
+
+   private final String _url;
+   private final String _user;
+   private final String _passwd;
+   private final int _maxSize;
+   private final int _minIdle;
+   private final long _idleTimeoutMillis;
+   private final long _borrowTimeoutMillis;
+
+   // one permit per connection that may be handed out
+   private final Semaphore _permits;
+
+   // idle leases, most recently returned first; guarded by this
+   private final Deque<Lease> _idle = new ArrayDeque<Lease>();
+
+   private final ScheduledExecutorService _evictor;
+   private volatile boolean _closed = false;
+
+   // borrow metrics
+   private final AtomicLong _borrowCount = new AtomicLong();
+   private final AtomicLong _borrowWaitNanos = new AtomicLong();
+   private final AtomicLong _maxBorrowWaitNanos = new AtomicLong();
+   private final AtomicLong _createdCount = new AtomicLong();
+   private final AtomicLong _evictedCount = new AtomicLong();
+   private final AtomicLong _invalidCount = new AtomicLong();
+
+   /**
+    * Creates a new pool and opens its first connection, so a bad URL or a
+    * database that is down is reported right away.
+    *
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param maxSize the most connections open at once
+    * @param minIdle the idle connections kept open by the evictor
+    * @param idleTimeoutMillis how long a connection may sit idle before it is closed
+    * @param borrowTimeoutMillis how long a borrower waits for a free connection
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public ConnectionPool (String url, String user, String passwd, int maxSize,
+                          int minIdle, long idleTimeoutMillis,
+                          long borrowTimeoutMillis) throws SQLException {
+      this._url = url;
+      this._user = user;
+      this._passwd = passwd;
+      this._maxSize = Math.max(1, maxSize);
+      this._minIdle = Math.max(0, Math.min(minIdle, this._maxSize));
+      this._idleTimeoutMillis = idleTimeoutMillis;
+      this._borrowTimeoutMillis = borrowTimeoutMillis;
+      this._permits = new Semaphore(this._maxSize, true);
+
+      this._idle.push(open());
+
+      this._evictor = Executors.newSingleThreadScheduledExecutor (r -> {
+         Thread t = new Thread(r, "pizzastore-pool-evictor");
+         t.setDaemon(true);
+         return t;
+      });
+      long period = Math.max(1000, idleTimeoutMillis / 2);
+      this._evictor.scheduleWithFixedDelay (this::evictIdle, period, period,
+                                            TimeUnit.MILLISECONDS);
+   }//end ConnectionPool
+
+   /**
+    * Method to borrow a connection, waiting for one to be returned when
+    * the pool is at its maximum size.  Connections that were idle are
+    * validated before they are handed out.
+    *
+    * @return a lease that must be handed back through release
+    * @throws java.sql.SQLException when no connection could be obtained
+    */
+   public Lease borrow () throws SQLException {
+      if (this._closed)
+         throw new SQLException("Connection pool is closed");
+
+      long start = System.nanoTime ();
+      try {
+         if (!this._permits.tryAcquire (this._borrowTimeoutMillis, TimeUnit.MILLISECONDS))
+            throw new SQLException("Timed out waiting for a database connection");
+      }catch (InterruptedException e) {
+         Thread.currentThread ().interrupt ();
+         throw new SQLException("Interrupted waiting for a database connection");
+      }//end try
+
+      try {
+         Lease lease;
+         while ((lease = pollIdle()) != null) {
+            if (isValid(lease))
+               break;
+            this._invalidCount.incrementAndGet ();
+            lease.close ();
+         }//end while
+         if (lease == null)
+            lease = open ();
+         recordWait (System.nanoTime () - start);
+         return lease;
+      }catch (SQLException e) {
+         this._permits.release ();
+         throw e;
+      }//end try
+   }//end borrow
+
+   /**
+    * Method to hand a borrowed connection back to the pool.  Broken
+    * connections are closed, and any transaction left open is rolled back.
+    *
+    * @param lease the lease returned by borrow
+    */
+   public void release (Lease lease) {
+      try {
+         if (!lease._broken && !this._closed) {
+            try {
+               if (!lease._connection.getAutoCommit ()) {
+                  lease._connection.rollback ();
+                  lease._connection.setAutoCommit (true);
+               }//end if
+            }catch (SQLException e) {
+               lease._broken = true;
+            }//end try
+         }//end if
+
+         if (lease._broken || this._closed) {
+            lease.close ();
+         } else {
+            lease._lastUsed = System.currentTimeMillis ();
+            synchronized (this) {
+               this._idle.push(lease);
+            }
+         }//end if
+      }finally {
+         this._permits.release ();
+      }//end try
+   }//end release
+
+   /**
+    * Method to close every idle connection and stop handing out new ones.
+    * Connections still borrowed are closed as they are released.
+    */
+   public void close () {
+      this._closed = true;
+      this._evictor.shutdownNow ();
+      List<Lease> idle;
+      synchronized (this) {
+         idle = new ArrayList<Lease>(this._idle);
+         this._idle.clear ();
+      }
+      for (Lease lease : idle)
+         lease.close ();
+   }//end close
+
+   /**
+    * @return the number of connections currently borrowed
+    */
+   public int getActiveCount () {
+      return this._maxSize - this._permits.availablePermits ();
+   }//end getActiveCount
+
+   /**
+    * @return the number of open connections waiting to be borrowed
+    */
+   public synchronized int getIdleCount () {
+      return this._idle.size ();
+   }//end getIdleCount
+
+   /**
+    * @return the total number of successful borrows
+    */
+   public long getBorrowCount () {
+      return this._borrowCount.get ();
+   }//end getBorrowCount
+
+   /**
+    * @return the mean time a borrower waited for a connection, in milliseconds
+    */
+   public double getAverageBorrowWaitMillis () {
+      long count = this._borrowCount.get ();
+      return count == 0 ? 0.0 : this._borrowWaitNanos.get () / 1e6 / count;
+   }//end getAverageBorrowWaitMillis
+
+   /**
+    * @return the longest time a borrower waited for a connection, in milliseconds
+    */
+   public double getMaxBorrowWaitMillis () {
+      return this._maxBorrowWaitNanos.get () / 1e6;
+   }//end getMaxBorrowWaitMillis
+
+   /**
+    * @return a one line summary of the pool state and borrow metrics
+    */
+   public String toString () {
+      return String.format (
+         "pool[max=%d active=%d idle=%d borrows=%d avgWait=%.3fms maxWait=%.3fms " +
+         "created=%d evicted=%d invalid=%d]",
+         this._maxSize, getActiveCount (), getIdleCount (), getBorrowCount (),
+         getAverageBorrowWaitMillis (), getMaxBorrowWaitMillis (),
+         this._createdCount.get (), this._evictedCount.get (),
+         this._invalidCount.get ());
+   }//end toString
+
+   /**
+    * Method to open a connection that is not part of the pool, for work
+    * that keeps one connection to itself, such as LISTEN.  The caller
+    * closes it.
+    *
+    * @return a new connection to the pool's database
+    * @throws java.sql.SQLException when the connection could not be made
+    */
+   public Connection openUnpooled () throws SQLException {
+      return DriverManager.getConnection (this._url, this._user, this._passwd);
+   }//end openUnpooled
+
+   private Lease open () throws SQLException {
+      Lease lease = new Lease(DriverManager.getConnection (this._url, this._user, this._passwd));
+      this._createdCount.incrementAndGet ();
+      return lease;
+   }//end open
+
+   private synchronized Lease pollIdle () {
+      return this._idle.poll ();
+   }//end pollIdle
+
+   private boolean isValid (Lease lease) {
+      if (System.currentTimeMillis () - lease._lastUsed < VALIDATION_BYPASS_MILLIS)
+         return true;
+      try {
+         ResultSet rs = lease.prepare ("SELECT 1").executeQuery ();
+         rs.close ();
+         return true;
+      }catch (SQLException e) {
+         return false;
+      }//end try
+   }//end isValid
+
+   private void recordWait (long nanos) {
+      this._borrowCount.incrementAndGet ();
+      this._borrowWaitNanos.addAndGet (nanos);
+      this._maxBorrowWaitNanos.accumulateAndGet (nanos, Math::max);
+   }//end recordWait
+
+   /*
+    * Closes connections that have been idle longer than the idle timeout,
+    * oldest first, keeping at least minIdle of them open.
+    **/
+   private void evictIdle () {
+      long cutoff = System.currentTimeMillis () - this._idleTimeoutMillis;
+      List<Lease> expired = new ArrayList<Lease>();
+      synchronized (this) {
+         Iterator<Lease> oldestFirst = this._idle.descendingIterator ();
+         while (oldestFirst.hasNext () && this._idle.size () > this._minIdle) {
+            Lease lease = oldestFirst.next ();
+            if (lease._lastUsed > cutoff)
+               break;
+            oldestFirst.remove ();
+            expired.add(lease);
+         }//end while
+      }
+      for (Lease lease : expired) {
+         this._evictedCount.incrementAndGet ();
+         lease.close ();
+      }//end for
+   }//end evictIdle
+
+   private static Method useServerPrepare () {
+      if (!Boolean.parseBoolean (System.getProperty ("pizzastore.serverPrepare", "true")))
+         return null;
+      try {
+         return Class.forName ("org.postgresql.PGStatement").getMethod ("setUseServerPrepare", boolean.class);
+      }catch (ReflectiveOperationException e) {
+         return null;
+      }//end try
+   }//end useServerPrepare
+}//end ConnectionPool
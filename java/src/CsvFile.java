@@ -0,0 +1,100 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class reads the hand-written csv files under data/.  Fields may be
+ * quoted, with "" standing for a quote, and blanks around fields are
+ * dropped, which the Postgres csv reader does not do.
+ *
+ */
+public class CsvFile {
+
+   /**
+    * Method to read every record of a csv file that starts with a header line.
+    *
+    * @param path the csv file
+    * @return the records, each a list of field values
+    * @throws java.io.IOException when the file cannot be read
+    */
+   public static List<List<String>> read (String path) throws IOException {
+      List<List<String>> rows = new ArrayList<List<String>>();
+      BufferedReader reader = new BufferedReader(new FileReader(path));
+      try {
+         reader.readLine ();
+         String line;
+         while ((line = reader.readLine ()) != null) {
+            if (line.trim ().isEmpty ())
+               continue;
+            rows.add(split(line));
+         }//end while
+      }finally {
+         reader.close ();
+      }//end try
+      return rows;
+   }//end read
+
+   /**
+    * Method to split one csv line into its field values.
+    *
+    * @param line the line, without its line terminator
+    * @return the field values
+    */
+   public static List<String> split (String line) {
+      List<String> fields = new ArrayList<String>();
+      int i = 0, n = line.length ();
+      while (i <= n) {
+         while (i < n && line.charAt(i) == ' ')
+            ++i;
+         if (i < n && line.charAt(i) == '"') {
+            StringBuilder field = new StringBuilder();
+            for (++i; i < n; ++i) {
+               char c = line.charAt(i);
+               if (c == '"' && i + 1 < n && line.charAt(i + 1) == '"') {
+                  field.append ('"');
+                  ++i;
+               } else if (c == '"') {
+                  ++i;
+                  break;
+               } else {
+                  field.append (c);
+               }//end if
+            }//end for
+            while (i < n && line.charAt(i) != ',')
+               ++i;
+            fields.add(field.toString ());
+         } else {
+            int start = i;
+            while (i < n && line.charAt(i) != ',')
+               ++i;
+            fields.add(line.substring (start, i).trim ());
+         }//end if
+         ++i;
+      }//end while
+      return fields;
+   }//end split
+
+   /**
+    * Method to append one record in the csv form Postgres COPY reads:
+    * fields quoted only when needed, empty fields left empty so they load
+    * as NULL, and a newline at the end.
+    *
+    * @param out where the record is appended
+    * @param fields the field values
+    */
+   public static void append (StringBuilder out, List<String> fields) {
+      for (int i = 0; i < fields.size (); ++i) {
+         if (i > 0)
+            out.append (',');
+         String value = fields.get(i);
+         if (value.indexOf (',') >= 0 || value.indexOf ('"') >= 0 || value.indexOf ('\n') >= 0) {
+            out.append ('"').append (value.replace ("\"", "\"\"")).append ('"');
+         } else {
+            out.append (value);
+         }//end if
+      }//end for
+      out.append ('\n');
+   }//end append
+}//end CsvFile
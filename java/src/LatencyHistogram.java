@@ -0,0 +1,114 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class counts latencies in log-linear buckets: every power of two
+ * is split into 32 buckets, so any recorded value is reported within about
+ * 3% of what was measured.  Recording is a few atomic adds into arrays
+ * sized up front, so it can be called from many threads on a hot path
+ * without locking or allocating.
+ *
+ */
+public class LatencyHistogram {
+
+   private static final int SUB_BITS = 5;
+   private static final int SUB_COUNT = 1 << SUB_BITS;
+   private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+   private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+   private final AtomicLong _total = new AtomicLong();
+   private final AtomicLong _sum = new AtomicLong();
+   private final AtomicLong _max = new AtomicLong();
+
+   /**
+    * Method to count one measured value.
+    *
+    * @param nanos the measured latency in nanoseconds
+    */
+   public void record (long nanos) {
+      if (nanos < 0)
+         nanos = 0;
+      this._counts.incrementAndGet (bucketOf(nanos));
+      this._total.incrementAndGet ();
+      this._sum.addAndGet (nanos);
+      long max;
+      while (nanos > (max = this._max.get ()) && !this._max.compareAndSet (max, nanos))
+         ;
+   }//end record
+
+   /**
+    * @return how many values were recorded
+    */
+   public long getCount () {
+      return this._total.get ();
+   }//end getCount
+
+   /**
+    * @return the sum of the recorded values in nanoseconds
+    */
+   public long getSum () {
+      return this._sum.get ();
+   }//end getSum
+
+   /**
+    * @return the mean of the recorded values in nanoseconds
+    */
+   public double getMean () {
+      long count = this._total.get ();
+      return count == 0 ? 0 : (double) this._sum.get () / count;
+   }//end getMean
+
+   /**
+    * @return the largest recorded value in nanoseconds
+    */
+   public long getMax () {
+      return this._max.get ();
+   }//end getMax
+
+   /**
+    * Method to estimate a percentile of the recorded values.
+    *
+    * @param percentile between 0 and 100, e.g. 99.9
+    * @return the value in nanoseconds at or below which that share of values fall
+    */
+   public long getPercentile (double percentile) {
+      long count = this._total.get ();
+      if (count == 0)
+         return 0;
+      long rank = Math.max(1, (long) Math.ceil (count * percentile / 100.0));
+      long seen = 0;
+      for (int bucket = 0; bucket < BUCKETS; ++bucket) {
+         seen += this._counts.get (bucket);
+         if (seen >= rank)
+            return Math.min(highestIn(bucket), this._max.get ());
+      }//end for
+      return this._max.get ();
+   }//end getPercentile
+
+   /**
+    * Method to forget every recorded value.
+    */
+   public void reset () {
+      for (int bucket = 0; bucket < BUCKETS; ++bucket)
+         this._counts.set (bucket, 0);
+      this._total.set (0);
+      this._sum.set (0);
+      this._max.set (0);
+   }//end reset
+
+   private static int bucketOf (long value) {
+      if (value < SUB_COUNT)
+         return (int) value;
+      int exponent = 63 - Long.numberOfLeadingZeros (value);
+      int shift = exponent - SUB_BITS;
+      return (shift + 1) * SUB_COUNT + (int) ((value >>> shift) & (SUB_COUNT - 1));
+   }//end bucketOf
+
+   private static long highestIn (int bucket) {
+      if (bucket < SUB_COUNT)
+         return bucket;
+      int shift = bucket / SUB_COUNT - 1;
+      long low = (long) (SUB_COUNT + bucket % SUB_COUNT) << shift;
+      return low + (1L << shift) - 1;
+   }//end highestIn
+}//end LatencyHistogram
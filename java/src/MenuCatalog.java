@@ -0,0 +1,217 @@
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class keeps an in-memory copy of the Items table so menu reads do
+ * not go to the database.  The menu is loaded once into a name index,
+ * per-type buckets and a price-sorted array, and is reloaded on the next
+ * read after invalidate is called by a menu update.  Changes made by
+ * other processes are found through the Items row of CatalogVersion, as
+ * VersionedSnapshot, which holds the menu, describes.
+ *
+ */
+public class MenuCatalog {
+
+   static final String LOAD_QUERY =
+      "SELECT itemName, ingredients, typeOfItem, price, description FROM Items";
+   static final String VERSION_QUERY = "SELECT version FROM CatalogVersion WHERE tableName = 'items'";
+
+   // column labels of the Items table, used when printing items
+   public static final String[] HEADER = { "itemname", "ingredients", "typeofitem", "price", "description" };
+   public static final String[] PRICE_HEADER = { "itemname", "price" };
+
+   /**
+    * One row of the Items table.
+    */
+   public static class Item {
+      public final String name;
+      public final String ingredients;
+      public final String type;
+      public final BigDecimal price;
+      public final String description;
+
+      Item (String name, String ingredients, String type, BigDecimal price, String description) {
+         this.name = name;
+         this.ingredients = ingredients;
+         this.type = type;
+         this.price = price;
+         this.description = description;
+      }//end Item
+   }//end Item
+
+   /*
+    * An immutable view of the menu as of one load.
+    **/
+   private static final class Snapshot {
+      final List<Item> items;
+      final Map<String, Item> byName = new HashMap<String, Item>();
+      final Map<String, List<Item>> byType = new HashMap<String, List<Item>>();
+      final Item[] byPrice;
+      final BigDecimal[] prices;
+
+      Snapshot (List<Item> items) {
+         this.items = Collections.unmodifiableList (items);
+         for (Item item : items) {
+            this.byName.put(item.name, item);
+            this.byType.computeIfAbsent (typeKey(item.type), k -> new ArrayList<Item>()).add(item);
+         }//end for
+         this.byPrice = items.toArray (new Item[0]);
+         Arrays.sort (this.byPrice, Comparator.comparing ((Item item) -> item.price));
+         this.prices = new BigDecimal[this.byPrice.length];
+         for (int i = 0; i < this.byPrice.length; ++i)
+            this.prices[i] = this.byPrice[i].price;
+      }//end Snapshot
+   }//end Snapshot
+
+   private final PizzaStore _esql;
+
+   // the menu, reloaded when Items' CatalogVersion moves
+   private final VersionedSnapshot<Snapshot> _menu;
+
+   /**
+    * Creates an empty catalog that loads itself through the given store.
+    *
+    * @param esql the store whose connection pool reads the Items table
+    */
+   public MenuCatalog (PizzaStore esql) {
+      this._esql = esql;
+      this._menu = new VersionedSnapshot<Snapshot>(esql, VERSION_QUERY, this::load);
+   }//end MenuCatalog
+
+   /**
+    * Method to drop the loaded menu after the Items table has changed.
+    * The next read loads it again.
+    */
+   public void invalidate () {
+      this._menu.invalidate ();
+   }//end invalidate
+
+   /**
+    * Method to compare the menu with the database now rather than at the
+    * next check, e.g. before pricing an order from it.
+    *
+    * @throws java.sql.SQLException when the version could not be read or the menu reloaded
+    */
+   public void refresh () throws SQLException {
+      snapshot(true);
+   }//end refresh
+
+   /**
+    * @return the version of the menu, which changes on every invalidate
+    */
+   public long getVersion () {
+      return this._menu.getInvalidations ();
+   }//end getVersion
+
+   /**
+    * @param name the exact item name
+    * @return the item, or null when no such item is on the menu
+    * @throws java.sql.SQLException when the menu had to be loaded and could not be
+    */
+   public Item find (String name) throws SQLException {
+      return snapshot(false).byName.get(name);
+   }//end find
+
+   /**
+    * @return every item, in table order
+    * @throws java.sql.SQLException when the menu had to be loaded and could not be
+    */
+   public List<Item> all () throws SQLException {
+      return snapshot(false).items;
+   }//end all
+
+   /**
+    * @param type the item type, e.g. entree, sides or drinks
+    * @return the items of that type, in table order
+    * @throws java.sql.SQLException when the menu had to be loaded and could not be
+    */
+   public List<Item> ofType (String type) throws SQLException {
+      List<Item> items = snapshot(false).byType.get(typeKey(type));
+      return items == null ? Collections.<Item>emptyList () : Collections.unmodifiableList (items);
+   }//end ofType
+
+   /**
+    * Method to find the items priced at or below a cap with a binary search
+    * over the price-sorted array.
+    *
+    * @param maxPrice the highest price to include
+    * @return the matching items, cheapest first
+    * @throws java.sql.SQLException when the menu had to be loaded and could not be
+    */
+   public List<Item> atMost (BigDecimal maxPrice) throws SQLException {
+      Snapshot menu = snapshot(false);
+      // first index whose price is above the cap
+      int low = 0, high = menu.prices.length;
+      while (low < high) {
+         int mid = (low + high) >>> 1;
+         if (menu.prices[mid].compareTo (maxPrice) <= 0)
+            low = mid + 1;
+         else
+            high = mid;
+      }//end while
+      return Collections.unmodifiableList (Arrays.asList (menu.byPrice).subList (0, low));
+   }//end atMost
+
+   /**
+    * @param ascending true for cheapest first, false for most expensive first
+    * @return every item sorted by price
+    * @throws java.sql.SQLException when the menu had to be loaded and could not be
+    */
+   public List<Item> sortedByPrice (boolean ascending) throws SQLException {
+      List<Item> items = Arrays.asList (snapshot(false).byPrice);
+      if (!ascending) {
+         items = new ArrayList<Item>(items);
+         Collections.reverse (items);
+      }//end if
+      return Collections.unmodifiableList (items);
+   }//end sortedByPrice
+
+   /**
+    * Method to print items to standard out in the layout of SELECT * FROM
+    * Items, through PizzaStore.printRows like every other result.
+    *
+    * @param items the items to print
+    * @param withDetails false to print only each item's name and price
+    * @return the number of items printed
+    */
+   public static int print (List<Item> items, boolean withDetails) {
+      if (items.isEmpty ())
+         return 0;
+      List<List<String>> rows = new ArrayList<List<String>>(items.size ());
+      for (Item item : items)
+         rows.add(withDetails
+                  ? Arrays.asList (item.name, item.ingredients, item.type, item.price.toPlainString (), item.description)
+                  : Arrays.asList (item.name, item.price.toPlainString ()));
+      PizzaStore.printRows (withDetails ? HEADER : PRICE_HEADER, rows);
+      return items.size ();
+   }//end print
+
+   /*
+    * Reads the Items table into a new menu.
+    **/
+   private Snapshot load () throws SQLException {
+      List<Item> items = new ArrayList<Item>();
+      for (List<String> row : this._esql.executeQueryAndReturnResult (LOAD_QUERY))
+         items.add(new Item(row.get(0), row.get(1), row.get(2).trim (),
+                            new BigDecimal(row.get(3).trim ()), row.get(4)));
+      return new Snapshot(items);
+   }//end load
+
+   /*
+    * The current menu; force checks its version now.
+    **/
+   private Snapshot snapshot (boolean force) throws SQLException {
+      return this._menu.get(force);
+   }//end snapshot
+
+   private static String typeKey (String type) {
+      return type.trim ().toLowerCase ();
+   }//end typeKey
+}//end MenuCatalog
@@ -0,0 +1,630 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class moves finished orders out of the database into read-only
+ * columnar files, and answers order lookups and sales totals from those
+ * files without going to Postgres.  An order is finished when it is
+ * completed or canceled; archive() moves the finished orders placed
+ * before a cutoff, with their ItemsInOrder rows, one segment file of up
+ * to pizzastore.archive.segmentOrders orders at a time.
+ *
+ * A segment holds its orders in orderID order, one column at a time:
+ * orderIDs, timestamps as variable-length deltas in microseconds, logins,
+ * storeIDs, totals in cents and statuses, then the lines of every order as
+ * item names and quantities.  Logins, item names and statuses are stored
+ * once in a dictionary per segment, and the columns hold their codes.
+ * Segments are memory-mapped, so a lookup is a binary search over the
+ * orderID column and a sales total is a sequential pass over a few columns.
+ *
+ * A segment is written and forced as a .tmp file before the rows are
+ * deleted, and renamed once the delete has committed.  A .tmp file left by
+ * a crash is renamed if its orders are gone from FoodOrder and removed
+ * otherwise, on the next archive run.
+ *
+ * Settings:
+ *    -Dpizzastore.archive                 directory of the segment files (default archive)
+ *    -Dpizzastore.archive.segmentOrders   orders per segment (default 100000)
+ *
+ */
+public class OrderArchive {
+
+   // finished orders placed before a cutoff, locked until they are deleted
+   static final String SELECT_ORDERS_QUERY =
+      "SELECT orderID, login, storeID, totalPrice, orderTimestamp, orderStatus FROM FoodOrder " +
+      "WHERE orderTimestamp < ? AND lower(trim(orderStatus)) IN ('completed', 'complete', 'canceled') " +
+      "ORDER BY orderID LIMIT ? FOR UPDATE";
+   static final String SELECT_LINES_QUERY =
+      "SELECT orderID, itemName, quantity FROM ItemsInOrder WHERE orderID = ANY (?::integer[]) ORDER BY orderID, itemName";
+   // deleting an order releases its ID, and that would delete its lines too;
+   // they go first and explicitly so the statement is one index probe per order
+   static final String DELETE_LINES_QUERY = "DELETE FROM ItemsInOrder WHERE orderID = ANY (?::integer[])";
+   static final String DELETE_ORDERS_QUERY = "DELETE FROM FoodOrder WHERE orderID = ANY (?::integer[]) AND orderTimestamp < ?";
+   private static final String ORDER_EXISTS_QUERY = "SELECT 1 FROM FoodOrder WHERE orderID = ?";
+
+   private static final int SEGMENT_ORDERS = Integer.getInteger("pizzastore.archive.segmentOrders", 100000);
+
+   private static final String SUFFIX = ".orders";
+   private static final String PARTIAL = ".tmp";
+
+   private static final int MAGIC = 0x504f4131;   // "POA1"
+   private static final int FORMAT = 1;
+   // timestamps per delta block; each block starts from a full timestamp
+   private static final int BLOCK = 128;
+
+   // the sections of a segment, whose offsets follow the fixed header fields
+   private static final int ITEM_DICTIONARY = 0, LOGIN_DICTIONARY = 1, STATUS_DICTIONARY = 2,
+                            ORDER_IDS = 3, TIME_BLOCKS = 4, TIME_DELTAS = 5, LOGINS = 6, STORES = 7,
+                            CENTS = 8, STATUSES = 9, FIRST_LINES = 10, LINE_ITEMS = 11, LINE_QUANTITIES = 12,
+                            SECTIONS = 13;
+   // magic, format, orders, lines, lowest and highest orderID, earliest and latest timestamp
+   private static final int HEADER_BYTES = 6 * 4 + 2 * 8 + SECTIONS * 4;
+
+   /**
+    * One archived order.
+    */
+   public static class Order {
+      public final int orderID;
+      public final String login;
+      public final int storeID;
+      public final long cents;
+      public final String timestamp;
+      public final String status;
+      public final List<String> items;
+      public final List<Integer> quantities;
+
+      Order (int orderID, String login, int storeID, long cents, String timestamp, String status,
+             List<String> items, List<Integer> quantities) {
+         this.orderID = orderID;
+         this.login = login;
+         this.storeID = storeID;
+         this.cents = cents;
+         this.timestamp = timestamp;
+         this.status = status;
+         this.items = items;
+         this.quantities = quantities;
+      }//end Order
+
+      /**
+       * @return the order in the column order of SELECT * FROM FoodOrder
+       */
+      public List<String> toRow () {
+         return new ArrayList<String>(List.of (Integer.toString (this.orderID), this.login, Integer.toString (this.storeID),
+                                               BigDecimal.valueOf (this.cents, 2).toPlainString (), this.timestamp, this.status));
+      }//end toRow
+   }//end Order
+
+   /**
+    * Sales totals of the archived orders in a time range; canceled
+    * orders are left out.
+    */
+   public static class Sales {
+      public long orders = 0;
+      public long cents = 0;
+      // storeID to { orders, cents }
+      public final Map<Integer, long[]> byStore = new TreeMap<Integer, long[]>();
+      // item name to quantity sold
+      public final Map<String, Long> byItem = new TreeMap<String, Long>();
+   }//end Sales
+
+   /*
+    * One memory-mapped segment file.  Every read is an absolute get, so
+    * threads share a segment freely.
+    **/
+   private static final class Segment {
+      final Path path;
+      final ByteBuffer data;
+      final int orders;
+      final int lines;
+      final int minOrderID;
+      final int maxOrderID;
+      final long minMicros;
+      final long maxMicros;
+      final int[] at = new int[SECTIONS];
+      final String[] items;
+      final String[] logins;
+      final String[] statuses;
+      final boolean[] canceled;
+
+      Segment (Path path) throws IOException {
+         this.path = path;
+         try (FileChannel channel = FileChannel.open (path, StandardOpenOption.READ)) {
+            this.data = channel.map (FileChannel.MapMode.READ_ONLY, 0, channel.size ());
+         }//end try
+         if (this.data.capacity () < HEADER_BYTES || this.data.getInt (0) != MAGIC || this.data.getInt (4) != FORMAT)
+            throw new IOException("Not an order archive segment: " + path);
+         this.orders = this.data.getInt (8);
+         this.lines = this.data.getInt (12);
+         this.minOrderID = this.data.getInt (16);
+         this.maxOrderID = this.data.getInt (20);
+         this.minMicros = this.data.getLong (24);
+         this.maxMicros = this.data.getLong (32);
+         for (int i = 0; i < SECTIONS; ++i)
+            this.at[i] = this.data.getInt (40 + 4 * i);
+         this.items = dictionary(this.data, this.at[ITEM_DICTIONARY]);
+         this.logins = dictionary(this.data, this.at[LOGIN_DICTIONARY]);
+         this.statuses = dictionary(this.data, this.at[STATUS_DICTIONARY]);
+         this.canceled = new boolean[this.statuses.length];
+         for (int i = 0; i < this.statuses.length; ++i)
+            this.canceled[i] = this.statuses[i].equalsIgnoreCase ("canceled");
+      }//end Segment
+
+      int orderID (int i) {
+         return this.data.getInt (this.at[ORDER_IDS] + 4 * i);
+      }//end orderID
+
+      // position of an order, or -1
+      int indexOf (int orderID) {
+         if (orderID < this.minOrderID || orderID > this.maxOrderID)
+            return -1;
+         int low = 0, high = this.orders - 1;
+         while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int id = orderID(mid);
+            if (id < orderID)
+               low = mid + 1;
+            else if (id > orderID)
+               high = mid - 1;
+            else
+               return mid;
+         }//end while
+         return -1;
+      }//end indexOf
+
+      // the timestamp of order i, decoded from the start of its block
+      long micros (int i) {
+         int block = i / BLOCK;
+         int[] position = { this.at[TIME_DELTAS] + this.data.getInt (this.at[TIME_BLOCKS] + 12 * block) };
+         long micros = this.data.getLong (this.at[TIME_BLOCKS] + 12 * block + 4);
+         for (int j = block * BLOCK; j <= i; ++j)
+            micros += readDelta(this.data, position);
+         return micros;
+      }//end micros
+
+      Order order (int i) {
+         int first = this.data.getInt (this.at[FIRST_LINES] + 4 * i);
+         int last = this.data.getInt (this.at[FIRST_LINES] + 4 * (i + 1));
+         List<String> items = new ArrayList<String>(last - first);
+         List<Integer> quantities = new ArrayList<Integer>(last - first);
+         for (int line = first; line < last; ++line) {
+            items.add(this.items[this.data.getChar (this.at[LINE_ITEMS] + 2 * line)]);
+            quantities.add(this.data.getInt (this.at[LINE_QUANTITIES] + 4 * line));
+         }//end for
+         return new Order(orderID(i), this.logins[this.data.getInt (this.at[LOGINS] + 4 * i)],
+                          this.data.getInt (this.at[STORES] + 4 * i), this.data.getInt (this.at[CENTS] + 4 * i),
+                          format(micros(i)), this.statuses[this.data.get (this.at[STATUSES] + i) & 0xff],
+                          items, quantities);
+      }//end order
+
+      /*
+       * Adds the orders placed in [from, to) to the totals, in one pass
+       * over the timestamp, status, store, cents and line columns.
+       **/
+      void addSales (Sales sales, long from, long to) {
+         long[] quantities = new long[this.items.length];
+         int[] position = { this.at[TIME_DELTAS] };
+         long micros = 0;
+         for (int i = 0; i < this.orders; ++i) {
+            if (i % BLOCK == 0)
+               micros = this.data.getLong (this.at[TIME_BLOCKS] + 12 * (i / BLOCK) + 4);
+            micros += readDelta(this.data, position);
+            if (micros < from || micros >= to || this.canceled[this.data.get (this.at[STATUSES] + i) & 0xff])
+               continue;
+            long cents = this.data.getInt (this.at[CENTS] + 4 * i);
+            long[] store = sales.byStore.computeIfAbsent (this.data.getInt (this.at[STORES] + 4 * i), k -> new long[2]);
+            ++store[0];
+            store[1] += cents;
+            ++sales.orders;
+            sales.cents += cents;
+            int last = this.data.getInt (this.at[FIRST_LINES] + 4 * (i + 1));
+            for (int line = this.data.getInt (this.at[FIRST_LINES] + 4 * i); line < last; ++line)
+               quantities[this.data.getChar (this.at[LINE_ITEMS] + 2 * line)] += this.data.getInt (this.at[LINE_QUANTITIES] + 4 * line);
+         }//end for
+         for (int item = 0; item < quantities.length; ++item)
+            if (quantities[item] > 0)
+               sales.byItem.merge (this.items[item], quantities[item], Long::sum);
+      }//end addSales
+   }//end Segment
+
+   private final Path _dir;
+
+   // the loaded segments and the directory's modification time when they were listed
+   private volatile List<Segment> _segments = null;
+   private volatile FileTime _listed = null;
+
+   // held while the segments are listed, and for a whole archive run
+   private final ReentrantLock _load = new ReentrantLock();
+   private final ReentrantLock _archive = new ReentrantLock();
+
+   /**
+    * Creates an archive over the segment files in a directory, which is
+    * created by the first archive run.
+    *
+    * @param dir the directory of the segment files
+    */
+   public OrderArchive (Path dir) {
+      this._dir = dir;
+   }//end OrderArchive
+
+   /**
+    * Method to look an order up in the archive.
+    *
+    * @param orderID the order
+    * @return the order with its lines, or null when it is not archived
+    */
+   public Order find (int orderID) {
+      for (Segment segment : segments()) {
+         int i = segment.indexOf (orderID);
+         if (i >= 0)
+            return segment.order (i);
+      }//end for
+      return null;
+   }//end find
+
+   /**
+    * Method to total the archived sales placed in a time range, skipping
+    * segments that lie wholly outside it.
+    *
+    * @param from the earliest order time, or null for no lower bound
+    * @param to the order time to stop before, or null for no upper bound
+    * @return the totals
+    */
+   public Sales sales (LocalDateTime from, LocalDateTime to) {
+      long fromMicros = from == null ? Long.MIN_VALUE : micros(from);
+      long toMicros = to == null ? Long.MAX_VALUE : micros(to);
+      Sales sales = new Sales();
+      for (Segment segment : segments())
+         if (segment.maxMicros >= fromMicros && segment.minMicros < toMicros)
+            segment.addSales (sales, fromMicros, toMicros);
+      return sales;
+   }//end sales
+
+   /**
+    * Method to move the finished orders placed before a cutoff out of
+    * FoodOrder and ItemsInOrder into new segment files.  Each segment is
+    * moved in its own transaction.
+    *
+    * @param esql the store whose primary holds the orders
+    * @param before the cutoff; only orders placed earlier are moved
+    * @return how many orders were moved
+    * @throws java.sql.SQLException when the orders could not be read or deleted
+    * @throws java.io.IOException when a segment could not be written
+    */
+   public int archive (PizzaStore esql, LocalDateTime before) throws SQLException, IOException {
+      this._archive.lock ();
+      try {
+         Files.createDirectories (this._dir);
+         recover(esql);
+         Timestamp cutoff = Timestamp.valueOf (before);
+         int archived = 0;
+         int moved;
+         do {
+            moved = archiveSegment(esql, cutoff);
+            archived += moved;
+         } while (moved == SEGMENT_ORDERS);
+         return archived;
+      }finally {
+         this._segments = null;
+         this._archive.unlock ();
+      }//end try
+   }//end archive
+
+   private int archiveSegment (PizzaStore esql, Timestamp cutoff) throws SQLException, IOException {
+      Path partial = null;
+      boolean committing = false;
+      esql.beginTransaction ();
+      try {
+         List<List<String>> orders = esql.executeQueryAndReturnResult (SELECT_ORDERS_QUERY, cutoff, SEGMENT_ORDERS);
+         if (orders.isEmpty ()) {
+            esql.rollback ();
+            return 0;
+         }//end if
+         Integer[] ids = new Integer[orders.size ()];
+         for (int i = 0; i < ids.length; ++i)
+            ids[i] = Integer.parseInt (orders.get(i).get(0).trim ());
+         List<List<String>> lines = esql.executeQueryAndReturnResult (SELECT_LINES_QUERY, new Object[] { ids });
+
+         String name = "orders-" + ids[0] + "-" + ids[ids.length - 1] + SUFFIX;
+         partial = this._dir.resolve (name + PARTIAL);
+         write(partial, orders, lines);
+         esql.executeUpdate (DELETE_LINES_QUERY, new Object[] { ids });
+         esql.executeUpdate (DELETE_ORDERS_QUERY, ids, cutoff);
+         committing = true;
+         esql.commit ();
+         Files.move (partial, this._dir.resolve (name), StandardCopyOption.ATOMIC_MOVE);
+         return ids.length;
+      }catch (SQLException | IOException | RuntimeException e) {
+         esql.rollback ();
+         // once the commit was sent, only the database knows whether the
+         // rows are gone; the next run decides what to do with the file
+         if (partial != null && !committing)
+            Files.deleteIfExists (partial);
+         throw e;
+      }//end try
+   }//end archiveSegment
+
+   /*
+    * Settles the .tmp files of runs that stopped around their commit: a
+    * file whose first order is gone from FoodOrder was committed.  The
+    * check reads the primary, inside a transaction.
+    **/
+   private void recover (PizzaStore esql) throws SQLException, IOException {
+      try (DirectoryStream<Path> files = Files.newDirectoryStream (this._dir, "*" + SUFFIX + PARTIAL)) {
+         for (Path partial : files) {
+            Segment segment;
+            try {
+               segment = new Segment(partial);
+            }catch (IOException | RuntimeException e) {
+               // written only in part, so never committed
+               Files.delete (partial);
+               continue;
+            }//end try
+            boolean present;
+            esql.beginTransaction ();
+            try {
+               present = esql.queryForValue (Integer.class, ORDER_EXISTS_QUERY, segment.orderID (0)) != null;
+            }finally {
+               esql.rollback ();
+            }//end try
+            String name = partial.getFileName ().toString ();
+            if (present)
+               Files.delete (partial);
+            else
+               Files.move (partial, partial.resolveSibling (name.substring (0, name.length () - PARTIAL.length ())),
+                           StandardCopyOption.ATOMIC_MOVE);
+         }//end for
+      }//end try
+   }//end recover
+
+   /*
+    * Writes one segment from the rows of SELECT_ORDERS_QUERY and
+    * SELECT_LINES_QUERY, both in orderID order, and forces it to disk.
+    **/
+   private static void write (Path path, List<List<String>> orders, List<List<String>> lines) throws IOException {
+      Map<String, Integer> items = new LinkedHashMap<String, Integer>();
+      Map<String, Integer> logins = new LinkedHashMap<String, Integer>();
+      Map<String, Integer> statuses = new LinkedHashMap<String, Integer>();
+      ByteArrayOutputStream[] bytes = new ByteArrayOutputStream[SECTIONS];
+      DataOutputStream[] out = new DataOutputStream[SECTIONS];
+      for (int i = 0; i < SECTIONS; ++i)
+         out[i] = new DataOutputStream(bytes[i] = new ByteArrayOutputStream());
+
+      int minOrderID = Integer.MAX_VALUE, maxOrderID = Integer.MIN_VALUE;
+      long minMicros = Long.MAX_VALUE, maxMicros = Long.MIN_VALUE, previous = 0;
+      int line = 0;
+      for (int i = 0; i < orders.size (); ++i) {
+         List<String> order = orders.get(i);
+         int orderID = Integer.parseInt (order.get(0).trim ());
+         long micros = micros(Timestamp.valueOf (order.get(4).trim ()).toLocalDateTime ());
+         minOrderID = Math.min(minOrderID, orderID);
+         maxOrderID = Math.max(maxOrderID, orderID);
+         minMicros = Math.min(minMicros, micros);
+         maxMicros = Math.max(maxMicros, micros);
+
+         out[ORDER_IDS].writeInt (orderID);
+         if (i % BLOCK == 0) {
+            out[TIME_BLOCKS].writeInt (out[TIME_DELTAS].size ());
+            out[TIME_BLOCKS].writeLong (micros);
+            previous = micros;
+         }//end if
+         writeDelta(out[TIME_DELTAS], micros - previous);
+         previous = micros;
+         out[LOGINS].writeInt (code(logins, order.get(1).trim (), Integer.MAX_VALUE));
+         out[STORES].writeInt (Integer.parseInt (order.get(2).trim ()));
+         out[CENTS].writeInt (new BigDecimal(order.get(3).trim ()).movePointRight (2).intValueExact ());
+         out[STATUSES].writeByte (code(statuses, order.get(5) == null ? "" : order.get(5).trim (), 0xff));
+
+         out[FIRST_LINES].writeInt (line);
+         for (; line < lines.size () && Integer.parseInt (lines.get(line).get(0).trim ()) == orderID; ++line) {
+            out[LINE_ITEMS].writeChar (code(items, lines.get(line).get(1).trim (), Character.MAX_VALUE));
+            out[LINE_QUANTITIES].writeInt (Integer.parseInt (lines.get(line).get(2).trim ()));
+         }//end for
+      }//end for
+      out[FIRST_LINES].writeInt (line);
+      writeDictionary(out[ITEM_DICTIONARY], items);
+      writeDictionary(out[LOGIN_DICTIONARY], logins);
+      writeDictionary(out[STATUS_DICTIONARY], statuses);
+
+      ByteBuffer header = ByteBuffer.allocate (HEADER_BYTES);
+      header.putInt (MAGIC).putInt (FORMAT).putInt (orders.size ()).putInt (line)
+            .putInt (minOrderID).putInt (maxOrderID).putLong (minMicros).putLong (maxMicros);
+      int offset = HEADER_BYTES;
+      for (int i = 0; i < SECTIONS; ++i) {
+         header.putInt (offset);
+         offset += bytes[i].size ();
+      }//end for
+      header.flip ();
+
+      try (FileChannel channel = FileChannel.open (path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                                                   StandardOpenOption.WRITE)) {
+         while (header.hasRemaining ())
+            channel.write (header);
+         for (ByteArrayOutputStream section : bytes) {
+            ByteBuffer buffer = ByteBuffer.wrap (section.toByteArray ());
+            while (buffer.hasRemaining ())
+               channel.write (buffer);
+         }//end for
+         channel.force (true);
+      }//end try
+   }//end write
+
+   private static int code (Map<String, Integer> dictionary, String value, int max) {
+      Integer code = dictionary.get (value);
+      if (code == null) {
+         if (dictionary.size () > max)
+            throw new IllegalStateException("Too many distinct values for one archive segment: " + value);
+         code = dictionary.size ();
+         dictionary.put (value, code);
+      }//end if
+      return code;
+   }//end code
+
+   private static void writeDictionary (DataOutputStream out, Map<String, Integer> dictionary) throws IOException {
+      out.writeInt (dictionary.size ());
+      for (String value : dictionary.keySet ()) {
+         byte[] utf8 = value.getBytes (StandardCharsets.UTF_8);
+         out.writeInt (utf8.length);
+         out.write (utf8);
+      }//end for
+   }//end writeDictionary
+
+   private static String[] dictionary (ByteBuffer data, int at) {
+      String[] values = new String[data.getInt (at)];
+      int position = at + 4;
+      for (int i = 0; i < values.length; ++i) {
+         byte[] utf8 = new byte[data.getInt (position)];
+         for (int j = 0; j < utf8.length; ++j)
+            utf8[j] = data.get (position + 4 + j);
+         values[i] = new String(utf8, StandardCharsets.UTF_8);
+         position += 4 + utf8.length;
+      }//end for
+      return values;
+   }//end dictionary
+
+   /*
+    * Deltas are zigzag varints: seven bits a byte, low bits first, with the
+    * sign in the lowest bit so small steps back in time stay short.
+    **/
+   private static void writeDelta (DataOutputStream out, long delta) throws IOException {
+      long value = (delta << 1) ^ (delta >> 63);
+      while ((value & ~0x7fL) != 0) {
+         out.writeByte ((int) ((value & 0x7f) | 0x80));
+         value >>>= 7;
+      }//end while
+      out.writeByte ((int) value);
+   }//end writeDelta
+
+   private static long readDelta (ByteBuffer data, int[] position) {
+      long value = 0;
+      int shift = 0;
+      byte b;
+      do {
+         b = data.get (position[0]++);
+         value |= (long) (b & 0x7f) << shift;
+         shift += 7;
+      } while (b < 0);
+      return (value >>> 1) ^ -(value & 1);
+   }//end readDelta
+
+   private static long micros (LocalDateTime time) {
+      return time.toEpochSecond (ZoneOffset.UTC) * 1000000L + time.getNano () / 1000;
+   }//end micros
+
+   // the timestamp as Postgres prints it
+   private static String format (long micros) {
+      LocalDateTime time = LocalDateTime.ofEpochSecond (Math.floorDiv (micros, 1000000L),
+                                                        (int) Math.floorMod (micros, 1000000L) * 1000, ZoneOffset.UTC);
+      String text = Timestamp.valueOf (time).toString ();
+      return text.endsWith (".0") ? text.substring (0, text.length () - 2) : text;
+   }//end format
+
+   /*
+    * The segments in the directory, listed again whenever the directory
+    * has changed.  A segment that cannot be read is reported and skipped.
+    **/
+   private List<Segment> segments () {
+      List<Segment> current = this._segments;
+      FileTime modified;
+      try {
+         if (!Files.isDirectory (this._dir))
+            return Collections.emptyList ();
+         modified = Files.getLastModifiedTime (this._dir);
+      }catch (IOException e) {
+         System.err.println ("Error reading order archive: " + e.getMessage ());
+         return current == null ? Collections.<Segment>emptyList () : current;
+      }//end try
+      if (current != null && modified.equals (this._listed))
+         return current;
+
+      this._load.lock ();
+      try {
+         Map<Path, Segment> loaded = new HashMap<Path, Segment>();
+         if (this._segments != null)
+            for (Segment segment : this._segments)
+               loaded.put(segment.path, segment);
+         List<Segment> segments = new ArrayList<Segment>();
+         try (DirectoryStream<Path> files = Files.newDirectoryStream (this._dir, "*" + SUFFIX)) {
+            for (Path file : files) {
+               Segment segment = loaded.get (file);
+               try {
+                  segments.add(segment != null ? segment : new Segment(file));
+               }catch (IOException | RuntimeException e) {
+                  System.err.println ("Error reading order archive " + file + ": " + e.getMessage ());
+               }//end try
+            }//end for
+         }catch (IOException e) {
+            System.err.println ("Error reading order archive: " + e.getMessage ());
+         }//end try
+         segments.sort ((a, b) -> Integer.compare (a.minOrderID, b.minOrderID));
+         this._segments = Collections.unmodifiableList (segments);
+         this._listed = modified;
+         return this._segments;
+      }finally {
+         this._load.unlock ();
+      }//end try
+   }//end segments
+
+   @Override
+   public String toString () {
+      long orders = 0, lines = 0, bytes = 0;
+      List<Segment> segments = segments();
+      for (Segment segment : segments) {
+         orders += segment.orders;
+         lines += segment.lines;
+         bytes += segment.data.capacity ();
+      }//end for
+      return "dir=" + this._dir + " segments=" + segments.size () + " orders=" + orders + " lines=" + lines
+           + " bytes=" + bytes;
+   }//end toString
+
+   /**
+    * Archives the finished orders older than a number of days.
+    *
+    * @param args <dbname> <port> <user> <days>
+    */
+   public static void main (String[] args) throws Exception {
+      if (args.length < 4) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            OrderArchive.class.getName () +
+            " <dbname> <port> <user> <days>");
+         return;
+      }//end if
+      Class.forName ("org.postgresql.Driver");
+      PizzaStore esql = new PizzaStore(args[0], args[1], args[2], "");
+      try {
+         LocalDateTime before = LocalDateTime.now ().minusDays (Integer.parseInt (args[3]));
+         long start = System.currentTimeMillis ();
+         int archived = esql.getArchive ().archive (esql, before);
+         System.out.println ("Archived " + archived + " orders placed before " + before + " in "
+                             + (System.currentTimeMillis () - start) + " ms");
+         System.out.println ("Order archive: " + esql.getArchive ());
+      }finally {
+         esql.cleanup ();
+      }//end try
+   }//end main
+}//end OrderArchive
@@ -0,0 +1,292 @@
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * This class pushes order changes to interested sessions, so nobody has
+ * to re-read FoodOrder to find new orders or status changes.  Triggers
+ * from sql/src/create_functions.sql send a notification on the
+ * order_events channel for every new order and every status change.
+ * One dedicated connection LISTENs on that channel for the whole process,
+ * and each event is handed to the subscriptions whose filter it passes:
+ * customers only hear about their own orders, drivers and managers about
+ * every order or the orders of one store.
+ *
+ * Notifications carry their payload only with a driver newer than the
+ * bundled one (pgjdbc 9.0 or later); the feed refuses to start otherwise.
+ * Events sent while the listening connection is being re-established are
+ * missed.
+ *
+ * Settings:
+ *    -Dpizzastore.feed.pollMs    how often the connection is checked for events (default 250)
+ *
+ */
+public class OrderFeed {
+
+   public static final String CHANNEL = "order_events";
+
+   // what the triggers send: the operation, then the order
+   public static final String PLACED = "insert";
+   public static final String STATUS_CHANGED = "update";
+
+   private static final long POLL_MS = Long.getLong("pizzastore.feed.pollMs", 250L);
+   private static final long RECONNECT_MS = 5000;
+
+   /**
+    * One new order or status change.
+    */
+   public static class Event {
+      // PLACED or STATUS_CHANGED
+      public final String kind;
+      public final int orderID;
+      public final int storeID;
+      public final String status;
+      public final String login;
+
+      Event (String kind, int orderID, int storeID, String status, String login) {
+         this.kind = kind;
+         this.orderID = orderID;
+         this.storeID = storeID;
+         this.status = status;
+         this.login = login;
+      }//end Event
+
+      @Override
+      public String toString () {
+         return (PLACED.equals (this.kind) ? "New order " : "Order ") + this.orderID + " at store " + this.storeID
+              + " for " + this.login + (PLACED.equals (this.kind) ? ": " : " is now ") + this.status;
+      }//end toString
+   }//end Event
+
+   /**
+    * Receives the events of one subscription, on the feed's thread; it
+    * should return quickly, e.g. by queueing the event.
+    */
+   public interface Listener {
+      void onEvent (Event event);
+   }//end Listener
+
+   /**
+    * An active subscription; close it to stop receiving events.
+    */
+   public class Subscription implements AutoCloseable {
+      private final UserSession _session;
+      private final Integer _storeID;
+      private final Listener _listener;
+
+      Subscription (UserSession session, Integer storeID, Listener listener) {
+         this._session = session;
+         this._storeID = storeID;
+         this._listener = listener;
+      }//end Subscription
+
+      boolean wants (Event event) {
+         // customers follow their own orders at every store
+         if (this._session.isCustomer ())
+            return this._session.login.equals (event.login);
+         return this._storeID == null || this._storeID == event.storeID;
+      }//end wants
+
+      @Override
+      public void close () {
+         OrderFeed.this._subscriptions.remove (this);
+      }//end close
+   }//end Subscription
+
+   private final ConnectionPool _pool;
+   private final List<Subscription> _subscriptions = new CopyOnWriteArrayList<Subscription>();
+
+   // held while the listening thread is started or stopped
+   private final ReentrantLock _lifecycle = new ReentrantLock();
+   private Thread _listener = null;
+   private volatile boolean _closed = false;
+
+   private final AtomicLong _events = new AtomicLong();
+   private final AtomicLong _delivered = new AtomicLong();
+   private final AtomicLong _reconnects = new AtomicLong();
+
+   /**
+    * Creates a feed that opens its listening connection when the first
+    * subscription is made.
+    *
+    * @param pool the pool whose database and credentials to connect with
+    */
+   public OrderFeed (ConnectionPool pool) {
+      this._pool = pool;
+   }//end OrderFeed
+
+   /**
+    * Method to start receiving events.  Customers receive the events of
+    * their own orders only, whatever store is asked for.
+    *
+    * @param session the user subscribing
+    * @param storeID only events of this store, or null for every store
+    * @param listener receives the events
+    * @return the subscription, to close when done
+    * @throws java.sql.SQLException when the feed could not start listening
+    */
+   public Subscription subscribe (UserSession session, Integer storeID, Listener listener) throws SQLException {
+      start();
+      Subscription subscription = new Subscription(session, storeID, listener);
+      this._subscriptions.add(subscription);
+      return subscription;
+   }//end subscribe
+
+   /**
+    * Method to stop listening and drop every subscription.
+    */
+   public void close () {
+      this._lifecycle.lock ();
+      try {
+         this._closed = true;
+         this._subscriptions.clear ();
+         if (this._listener != null)
+            this._listener.interrupt ();
+      }finally {
+         this._lifecycle.unlock ();
+      }//end try
+   }//end close
+
+   private void start () throws SQLException {
+      this._lifecycle.lock ();
+      try {
+         if (this._closed)
+            throw new SQLException("The order feed is closed");
+         if (this._listener != null)
+            return;
+         // listen once here, so a failure reaches the first subscriber
+         Connection conn = listen();
+         this._listener = new Thread(() -> run(conn), "order-feed");
+         this._listener.setDaemon (true);
+         this._listener.start ();
+      }finally {
+         this._lifecycle.unlock ();
+      }//end try
+   }//end start
+
+   private Connection listen () throws SQLException {
+      Connection conn = this._pool.openUnpooled ();
+      try {
+         if (payloadMethod(conn) == null)
+            throw new SQLException("The JDBC driver does not pass notification payloads; use pgjdbc 9.0 or later");
+         Statement stmt = conn.createStatement ();
+         stmt.execute ("LISTEN " + CHANNEL);
+         stmt.close ();
+         return conn;
+      }catch (SQLException e) {
+         conn.close ();
+         throw e;
+      }//end try
+   }//end listen
+
+   /*
+    * Polls the listening connection and fans events out, reconnecting
+    * after a failure until the feed is closed.
+    **/
+   private void run (Connection conn) {
+      Method payload = null;
+      while (!this._closed) {
+         try {
+            if (conn == null) {
+               conn = listen();
+               this._reconnects.incrementAndGet ();
+            }//end if
+            if (payload == null)
+               payload = payloadMethod(conn);
+            // the driver reads notifications while it runs a statement
+            Statement stmt = conn.createStatement ();
+            stmt.execute ("SELECT 1");
+            stmt.close ();
+            PGNotification[] notifications = ((PGConnection) conn).getNotifications ();
+            if (notifications != null)
+               for (PGNotification notification : notifications)
+                  dispatch((String) payload.invoke (notification));
+            TimeUnit.MILLISECONDS.sleep (POLL_MS);
+         }catch (InterruptedException e) {
+            break;
+         }catch (Exception e) {
+            if (this._closed)
+               break;
+            System.err.println ("Error listening for order events: " + e.getMessage ());
+            closeQuietly(conn);
+            conn = null;
+            payload = null;
+            try {
+               TimeUnit.MILLISECONDS.sleep (RECONNECT_MS);
+            }catch (InterruptedException stop) {
+               break;
+            }//end try
+         }//end try
+      }//end while
+      closeQuietly(conn);
+   }//end run
+
+   private void dispatch (String payload) {
+      Event event = parse(payload);
+      if (event == null)
+         return;
+      this._events.incrementAndGet ();
+      for (Subscription subscription : this._subscriptions) {
+         if (!subscription.wants (event))
+            continue;
+         try {
+            subscription._listener.onEvent (event);
+            this._delivered.incrementAndGet ();
+         }catch (RuntimeException e) {
+            System.err.println ("Error delivering order event: " + e.getMessage ());
+         }//end try
+      }//end for
+   }//end dispatch
+
+   /*
+    * Reads "kind|orderID|storeID|status|login" as sent by the triggers;
+    * the login goes last since only it could hold a separator.
+    **/
+   static Event parse (String payload) {
+      if (payload == null)
+         return null;
+      String[] fields = payload.split ("\\|", 5);
+      if (fields.length < 5)
+         return null;
+      try {
+         return new Event(fields[0], Integer.parseInt (fields[1]), Integer.parseInt (fields[2]), fields[3], fields[4]);
+      }catch (NumberFormatException e) {
+         return null;
+      }//end try
+   }//end parse
+
+   // PGNotification.getParameter, which drivers before 9.0 lack
+   private static Method payloadMethod (Connection conn) {
+      try {
+         Class<?> notification = Class.forName ("org.postgresql.PGNotification", false, conn.getClass ().getClassLoader ());
+         return notification.getMethod ("getParameter");
+      }catch (ReflectiveOperationException e) {
+         return null;
+      }//end try
+   }//end payloadMethod
+
+   private static void closeQuietly (Connection conn) {
+      if (conn == null)
+         return;
+      try {
+         conn.close ();
+      }catch (SQLException e) {
+         // already broken
+      }//end try
+   }//end closeQuietly
+
+   @Override
+   public String toString () {
+      return "subscriptions=" + this._subscriptions.size () + " events=" + this._events.get ()
+           + " delivered=" + this._delivered.get () + " reconnects=" + this._reconnects.get ();
+   }//end toString
+}//end OrderFeed
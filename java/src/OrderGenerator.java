@@ -0,0 +1,189 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * This class writes synthetic foodorder.csv and itemsinorder.csv files for
+ * the users, stores and items under data/, so the system can be loaded
+ * with millions of orders.  Users, stores and items are picked with a Zipf
+ * distribution, so a few of each are far more popular than the rest, as in
+ * real traffic.  Every order references existing rows, its lines name
+ * distinct items, and its totalPrice is the exact sum of its lines.
+ *
+ */
+public class OrderGenerator {
+
+   private static final DateTimeFormatter TIMESTAMP =
+      DateTimeFormatter.ofPattern ("yyyy-MM-dd HH:mm:ss");
+
+   // statuses of orders still being worked on, for orders from the last day
+   private static final String[] OPEN_STATUSES = { "Pending", "In Progress", "Out for Delivery" };
+
+   /*
+    * Draws ranks 0..n-1 with probability proportional to 1 / (rank + 1)^skew.
+    **/
+   private static final class Zipf {
+      private final double[] cdf;
+
+      Zipf (int n, double skew) {
+         cdf = new double[n];
+         double sum = 0;
+         for (int rank = 0; rank < n; ++rank) {
+            sum += 1.0 / Math.pow(rank + 1, skew);
+            cdf[rank] = sum;
+         }//end for
+         for (int rank = 0; rank < n; ++rank)
+            cdf[rank] /= sum;
+      }//end Zipf
+
+      int next (Random random) {
+         double u = random.nextDouble ();
+         int low = 0, high = cdf.length - 1;
+         while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (cdf[mid] < u)
+               low = mid + 1;
+            else
+               high = mid;
+         }//end while
+         return low;
+      }//end next
+   }//end Zipf
+
+   /**
+    * Method to write the generated order files.
+    *
+    * @param dataDir directory holding users.csv, store.csv and items.csv
+    * @param outDir directory the foodorder.csv and itemsinorder.csv files are written to
+    * @param orders how many orders to generate
+    * @param skew the Zipf exponent; 0 is uniform, larger is more skewed
+    * @param days how many days back from now the orders are spread over
+    * @param seed random seed, so the same arguments give the same files
+    * @throws java.io.IOException when a file cannot be read or written
+    */
+   public static void generate (String dataDir, String outDir, long orders, double skew,
+                                int days, long seed) throws IOException {
+      Random random = new Random(seed);
+
+      // popularity rank is independent of file order
+      List<String> logins = new ArrayList<String>();
+      for (List<String> row : CsvFile.read (dataDir + "/users.csv"))
+         logins.add(row.get(0));
+      List<String> storeIDs = new ArrayList<String>();
+      for (List<String> row : CsvFile.read (dataDir + "/store.csv"))
+         storeIDs.add(row.get(0));
+      List<List<String>> items = CsvFile.read (dataDir + "/items.csv");
+      Collections.shuffle (logins, random);
+      Collections.shuffle (storeIDs, random);
+      Collections.shuffle (items, random);
+
+      String[] itemNames = new String[items.size ()];
+      long[] itemCents = new long[items.size ()];
+      for (int i = 0; i < itemNames.length; ++i) {
+         itemNames[i] = items.get(i).get(0);
+         itemCents[i] = new BigDecimal(items.get(i).get(3)).movePointRight (2).longValueExact ();
+      }//end for
+
+      Zipf userRank = new Zipf(logins.size (), skew);
+      Zipf storeRank = new Zipf(storeIDs.size (), skew);
+      Zipf itemRank = new Zipf(itemNames.length, skew);
+
+      // orders are spread evenly over the window, oldest first, so orderID
+      // and orderTimestamp grow together as they would in production
+      long end = LocalDateTime.now ().toEpochSecond (ZoneOffset.UTC);
+      long start = end - days * 86400L;
+      double step = orders == 0 ? 0 : (double) (end - start) / orders;
+
+      Writer orderOut = new BufferedWriter(new FileWriter(outDir + "/foodorder.csv"), 1 << 20);
+      Writer lineOut = new BufferedWriter(new FileWriter(outDir + "/itemsinorder.csv"), 1 << 20);
+      try {
+         orderOut.write ("orderID,login,storeID,totalPrice,orderTimestamp,orderStatus\n");
+         lineOut.write ("orderID,itemName,quantity\n");
+
+         StringBuilder order = new StringBuilder();
+         StringBuilder lines = new StringBuilder();
+         int[] picked = new int[5];
+         for (long n = 0; n < orders; ++n) {
+            long orderID = 10000 + n;
+            long when = start + (long) (n * step) + random.nextInt (Math.max(1, (int) step));
+            String status = end - when < 86400 ? OPEN_STATUSES[random.nextInt (OPEN_STATUSES.length)]
+                          : random.nextInt (50) == 0 ? "Canceled" : "Completed";
+
+            // one to five distinct items per order
+            int lineCount = 1 + random.nextInt (Math.min(5, itemNames.length));
+            long cents = 0;
+            lines.setLength (0);
+            for (int l = 0; l < lineCount; ++l) {
+               int item;
+               boolean repeat;
+               do {
+                  item = itemRank.next (random);
+                  repeat = false;
+                  for (int p = 0; p < l; ++p)
+                     repeat |= picked[p] == item;
+               } while (repeat);
+               picked[l] = item;
+               int quantity = 1 + random.nextInt (3);
+               cents += itemCents[item] * quantity;
+               lines.append (orderID).append (',');
+               appendField(lines, itemNames[item]);
+               lines.append (',').append (quantity).append ('\n');
+            }//end for
+            lineOut.append (lines);
+
+            order.setLength (0);
+            order.append (orderID).append (',')
+                 .append (logins.get(userRank.next (random))).append (',')
+                 .append (storeIDs.get(storeRank.next (random))).append (',')
+                 .append (BigDecimal.valueOf (cents, 2).toPlainString ()).append (',')
+                 .append (TIMESTAMP.format (LocalDateTime.ofEpochSecond (when, 0, ZoneOffset.UTC))).append (',')
+                 .append (status).append ('\n');
+            orderOut.append (order);
+         }//end for
+      }finally {
+         orderOut.close ();
+         lineOut.close ();
+      }//end try
+   }//end generate
+
+   private static void appendField (StringBuilder out, String value) {
+      if (value.indexOf (',') >= 0 || value.indexOf ('"') >= 0)
+         out.append ('"').append (value.replace ("\"", "\"\"")).append ('"');
+      else
+         out.append (value);
+   }//end appendField
+
+   /**
+    * Writes generated order files.
+    *
+    * @param args <data dir> <out dir> <orders> [skew] [days] [seed]
+    */
+   public static void main (String[] args) throws IOException {
+      if (args.length < 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            OrderGenerator.class.getName () +
+            " <data dir> <out dir> <orders> [skew] [days] [seed]");
+         return;
+      }//end if
+      long orders = Long.parseLong (args[2]);
+      double skew = args.length > 3 ? Double.parseDouble (args[3]) : 1.1;
+      int days = args.length > 4 ? Integer.parseInt (args[4]) : 365;
+      long seed = args.length > 5 ? Long.parseLong (args[5]) : 166;
+
+      long start = System.currentTimeMillis ();
+      generate(args[0], args[1], orders, skew, days, seed);
+      System.out.println ("Generated " + orders + " orders in " +
+                          (System.currentTimeMillis () - start) + " ms");
+   }//end main
+}//end OrderGenerator
@@ -0,0 +1,85 @@
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class hands out new FoodOrder IDs without touching FoodOrder.
+ * Each call to nextval on FoodOrder_orderID_seq reserves a block of
+ * increment_by IDs for this process, which are then dispensed from memory
+ * with an atomic counter.  Blocks never overlap across sessions or
+ * processes, so concurrent orders cannot collide on a key.
+ *
+ */
+public class OrderIdAllocator {
+
+   // reserves the next block and reads its size in one round trip
+   private static final String NEXT_BLOCK_QUERY =
+      "SELECT nextval('foodorder_orderid_seq'), increment_by " +
+      "FROM pg_sequences WHERE sequencename = 'foodorder_orderid_seq'";
+
+   /*
+    * A reserved range of IDs, [next, end).
+    **/
+   private static final class Block {
+      final AtomicLong next;
+      final long end;
+
+      Block (long start, long end) {
+         this.next = new AtomicLong(start);
+         this.end = end;
+      }
+   }//end Block
+
+   private final PizzaStore _esql;
+
+   // the block IDs are currently dispensed from; starts out exhausted
+   private volatile Block _block = new Block(0, 0);
+
+   // held while one thread reserves the next block
+   private final ReentrantLock _refill = new ReentrantLock();
+
+   /**
+    * Creates an allocator that reserves blocks through the given store.
+    *
+    * @param esql the store whose connection pool runs the sequence query
+    */
+   public OrderIdAllocator (PizzaStore esql) {
+      this._esql = esql;
+   }//end OrderIdAllocator
+
+   /**
+    * Method to take the next unused order ID.  Only the thread that finds
+    * the current block exhausted goes to the database.
+    *
+    * @return a new order ID unique across all sessions
+    * @throws java.sql.SQLException when a new block could not be reserved
+    */
+   public int nextId () throws SQLException {
+      while (true) {
+         Block block = this._block;
+         long id = block.next.getAndIncrement ();
+         if (id < block.end)
+            return Math.toIntExact (id);
+
+         // one thread reserves the next block while the others wait for it
+         this._refill.lock ();
+         try {
+            // another thread may already have replaced the block
+            if (this._block == block)
+               this._block = reserveBlock ();
+         }finally {
+            this._refill.unlock ();
+         }//end try
+      }//end while
+   }//end nextId
+
+   private Block reserveBlock () throws SQLException {
+      List<List<String>> result = this._esql.executeQueryAndReturnResult (NEXT_BLOCK_QUERY);
+      if (result.isEmpty ())
+         throw new SQLException("Sequence foodorder_orderid_seq does not exist");
+      long start = Long.parseLong (result.get(0).get(0));
+      long size = Long.parseLong (result.get(0).get(1));
+      return new Block(start, start + size);
+   }//end reserveBlock
+}//end OrderIdAllocator
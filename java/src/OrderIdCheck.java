@@ -0,0 +1,176 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class checks that OrderIdAllocator never hands out the same order
+ * ID twice.  Several threads take IDs from one allocator, as the sessions
+ * of one process do, while a second JVM does the same against the same
+ * sequence.  Every ID from both is collected, and the check fails when
+ * one repeats.  Nothing is written to FoodOrder; only
+ * FoodOrder_orderID_seq advances.
+ *
+ * Settings:
+ *    -Dpizzastore.idcheck.threads   threads per JVM (default 8)
+ *    -Dpizzastore.idcheck.ids       IDs taken per thread (default 10000)
+ *    -Dpizzastore.idcheck.jvms      JVMs taking IDs at once (default 2)
+ *
+ */
+public class OrderIdCheck {
+
+   private static final int THREADS = Integer.getInteger("pizzastore.idcheck.threads", 8);
+   private static final int IDS = Integer.getInteger("pizzastore.idcheck.ids", 10000);
+   private static final int JVMS = Integer.getInteger("pizzastore.idcheck.jvms", 2);
+   // set for the JVMs started by the first one: where they write their IDs
+   private static final String OUTPUT = System.getProperty ("pizzastore.idcheck.output");
+
+   private final PizzaStore _esql;
+
+   /**
+    * Creates a checker taking IDs through the given database.
+    *
+    * @param esql the connected database
+    */
+   public OrderIdCheck (PizzaStore esql) {
+      this._esql = esql;
+   }//end OrderIdCheck
+
+   /**
+    * Method to take IDs on THREADS threads from one allocator.
+    *
+    * @return every ID taken, by thread
+    * @throws java.lang.Exception when an ID could not be taken
+    */
+   public List<int[]> take () throws Exception {
+      OrderIdAllocator allocator = new OrderIdAllocator(this._esql);
+      ExecutorService workers = Executors.newFixedThreadPool (THREADS);
+      try {
+         List<Future<int[]>> takers = new ArrayList<Future<int[]>>();
+         for (int t = 0; t < THREADS; ++t)
+            takers.add(workers.submit (() -> {
+               int[] ids = new int[IDS];
+               for (int i = 0; i < ids.length; ++i)
+                  ids[i] = allocator.nextId ();
+               return ids;
+            }));
+         List<int[]> taken = new ArrayList<int[]>();
+         for (Future<int[]> taker : takers)
+            taken.add(taker.get ());
+         return taken;
+      }finally {
+         workers.shutdownNow ();
+      }//end try
+   }//end take
+
+   /*
+    * Starts another JVM running this check with the same classpath and
+    * arguments, writing its IDs to output.
+    **/
+   private static Process fork (String[] args, File output) throws IOException {
+      List<String> command = new ArrayList<String>();
+      command.add(System.getProperty ("java.home") + File.separator + "bin" + File.separator + "java");
+      command.add("-cp");
+      command.add(System.getProperty ("java.class.path"));
+      command.add("-Dpizzastore.idcheck.threads=" + THREADS);
+      command.add("-Dpizzastore.idcheck.ids=" + IDS);
+      command.add("-Dpizzastore.idcheck.output=" + output.getPath ());
+      command.add(OrderIdCheck.class.getName ());
+      for (String arg : args)
+         command.add(arg);
+      return new ProcessBuilder(command).inheritIO ().start ();
+   }//end fork
+
+   /*
+    * Adds ids to seen and returns how many of them were there already.
+    **/
+   private static int collect (Set<Integer> seen, int[] ids) {
+      int repeats = 0;
+      for (int id : ids)
+         if (!seen.add(id)) {
+            if (repeats++ < 10)
+               System.err.println ("Order ID " + id + " was handed out twice");
+         }//end if
+      return repeats;
+   }//end collect
+
+   /**
+    * Takes IDs in this JVM and the others at once and checks them.
+    *
+    * @param args <dbname> <port> <user>
+    */
+   public static void main (String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            OrderIdCheck.class.getName () +
+            " <dbname> <port> <user>");
+         return;
+      }//end if
+      Class.forName ("org.postgresql.Driver");
+
+      List<Process> others = new ArrayList<Process>();
+      List<File> outputs = new ArrayList<File>();
+      if (OUTPUT == null)
+         for (int j = 1; j < JVMS; ++j) {
+            File output = File.createTempFile ("orderids", ".txt");
+            output.deleteOnExit ();
+            outputs.add(output);
+            others.add(fork(args, output));
+         }//end for
+
+      PizzaStore esql = new PizzaStore(args[0], args[1], args[2], "");
+      List<int[]> taken;
+      long start = System.currentTimeMillis ();
+      try {
+         taken = new OrderIdCheck(esql).take ();
+      }finally {
+         esql.cleanup ();
+      }//end try
+      long millis = System.currentTimeMillis () - start;
+
+      if (OUTPUT != null) {
+         try (PrintWriter out = new PrintWriter(new FileWriter(OUTPUT))) {
+            for (int[] ids : taken)
+               for (int id : ids)
+                  out.println (id);
+         }//end try
+         return;
+      }//end if
+
+      Set<Integer> seen = new HashSet<Integer>();
+      int repeats = 0;
+      for (int[] ids : taken)
+         repeats += collect(seen, ids);
+      for (int j = 0; j < others.size (); ++j) {
+         if (others.get(j).waitFor () != 0) {
+            System.err.println ("JVM " + (j + 2) + " failed");
+            System.exit (1);
+         }//end if
+         List<Integer> ids = new ArrayList<Integer>();
+         try (BufferedReader in = new BufferedReader(new FileReader(outputs.get(j)))) {
+            for (String line = in.readLine (); line != null; line = in.readLine ())
+               ids.add(Integer.parseInt (line));
+         }//end try
+         repeats += collect(seen, ids.stream ().mapToInt (Integer::intValue).toArray ());
+      }//end for
+
+      System.out.println (seen.size () + repeats + " IDs from " + THREADS + " threads in each of "
+                          + (others.size () + 1) + " JVMs, " + millis + " ms in this one");
+      if (repeats > 0) {
+         System.err.println (repeats + " order IDs were handed out more than once");
+         System.exit (1);
+      }//end if
+      System.out.println ("No order ID was handed out twice");
+   }//end main
+}//end OrderIdCheck
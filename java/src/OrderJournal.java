@@ -0,0 +1,524 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * This class lets placeOrder acknowledge an order as soon as it is in a
+ * local journal, and writes orders to FoodOrder and ItemsInOrder in the
+ * background, many per transaction.  The journal is a memory-mapped file
+ * of checksummed records appended one after the other.  Its header holds
+ * the checkpoint, the offset up to which every record is committed in the
+ * database.  When the writer catches up, the journal starts over from the
+ * top under a new generation number, so records left over from an earlier
+ * generation are never read as new.
+ *
+ * After a restart the records past the checkpoint are written again.  The
+ * inserts skip rows that already exist, so an order committed just before
+ * a crash, whose checkpoint was not saved yet, is not written twice.
+ *
+ * Records reach the page cache when they are appended, so they survive the
+ * process dying; with pizzastore.journal.force they are also forced to
+ * disk before placeOrder returns, and survive the machine dying.
+ *
+ * A batch that keeps failing is written again one order at a time.  An
+ * order that fails on its own while the database answers, e.g. because
+ * its user was renamed, is set aside in the rejected file next to the
+ * journal, one line per order with the error, and the writer moves on.
+ * An append that finds the journal full waits a bounded time for the
+ * writer and then fails, instead of holding placeOrder forever.
+ *
+ * Settings:
+ *    -Dpizzastore.writeBehind              true to place orders through the journal (default false)
+ *    -Dpizzastore.journal                  journal file (default orders.journal)
+ *    -Dpizzastore.journal.sizeBytes        size of the mapped file (default 64 MB)
+ *    -Dpizzastore.journal.batch            most orders written per transaction (default 500)
+ *    -Dpizzastore.journal.force            true to force every record to disk (default false)
+ *    -Dpizzastore.journal.retries          failed attempts at a batch before it is written order by order (default 5)
+ *    -Dpizzastore.journal.appendTimeoutMs  how long an append waits for room in a full journal (default 10000)
+ *
+ */
+public class OrderJournal {
+
+   static final String INSERT_ORDER_QUERY =
+      "INSERT INTO FoodOrder (orderID, login, storeID, totalPrice, orderStatus, orderTimestamp) " +
+      "VALUES (?, ?, ?, ?, 'Pending', ?) ON CONFLICT (orderID, orderTimestamp) DO NOTHING";
+   static final String INSERT_ORDER_ITEM_QUERY =
+      "INSERT INTO ItemsInOrder (orderID, itemName, quantity) VALUES (?, ?, ?) " +
+      "ON CONFLICT (orderID, itemName) DO NOTHING";
+
+   // "PJNL"; the header is magic, format, generation and checkpoint
+   private static final int MAGIC = 0x504a4e4c;
+   private static final int FORMAT = 1;
+   private static final int GENERATION_AT = 8;
+   private static final int CHECKPOINT_AT = 16;
+   private static final int HEADER_BYTES = 24;
+
+   // each record is length, crc and generation, then the encoded order;
+   // the crc covers the generation and the order
+   private static final int RECORD_HEADER_BYTES = 16;
+
+   // how long the writer waits before retrying after a database failure
+   private static final long RETRY_MS = 1000;
+
+   // orders the database refused on their own, appended to <journal>.rejected
+   private static final String REJECTED_SUFFIX = ".rejected";
+   private static final String PROBE_QUERY = "SELECT 1";
+
+   /**
+    * One order as journaled: everything needed to insert its rows.
+    */
+   public static class Order {
+      public final int orderID;
+      public final String login;
+      public final int storeID;
+      public final BigDecimal totalPrice;
+      public final long timestamp;
+      public final String[] items;
+      public final int[] quantities;
+
+      public Order (int orderID, String login, int storeID, BigDecimal totalPrice, long timestamp,
+                    String[] items, int[] quantities) {
+         this.orderID = orderID;
+         this.login = login;
+         this.storeID = storeID;
+         this.totalPrice = totalPrice;
+         this.timestamp = timestamp;
+         this.items = items;
+         this.quantities = quantities;
+      }//end Order
+   }//end Order
+
+   private final PizzaStore _esql;
+   private final String _path;
+   private final int _batch = Integer.getInteger("pizzastore.journal.batch", 500);
+   private final boolean _force = Boolean.getBoolean("pizzastore.journal.force");
+   private final int _retries = Integer.getInteger("pizzastore.journal.retries", 5);
+   private final long _appendTimeoutNanos =
+      TimeUnit.MILLISECONDS.toNanos (Long.getLong("pizzastore.journal.appendTimeoutMs", 10000L));
+
+   private final RandomAccessFile _file;
+   private final MappedByteBuffer _map;
+
+   // guards the positions below and every write to the map
+   private final ReentrantLock _lock = new ReentrantLock();
+   // signalled when a record is appended or the journal is closed
+   private final Condition _appended = this._lock.newCondition ();
+   // signalled when the checkpoint moves
+   private final Condition _written = this._lock.newCondition ();
+   private long _generation;
+   private int _checkpoint;
+   private int _position;
+   private boolean _closing = false;
+
+   private final Thread _writer;
+
+   private final AtomicLong _appends = new AtomicLong();
+   private final AtomicLong _ordersWritten = new AtomicLong();
+   private final AtomicLong _batches = new AtomicLong();
+   private final AtomicLong _fullWaits = new AtomicLong();
+   private final AtomicLong _failures = new AtomicLong();
+   private final AtomicLong _rejected = new AtomicLong();
+
+   /**
+    * Opens the journal, creating it if needed, and starts the writer,
+    * which first writes any records a previous run left past the checkpoint.
+    *
+    * @param esql the database orders are written to
+    * @param path the journal file
+    * @param sizeBytes the size of the file, which bounds the orders not yet written
+    * @throws java.io.IOException when the file cannot be opened or mapped
+    */
+   public OrderJournal (PizzaStore esql, String path, int sizeBytes) throws IOException {
+      this._esql = esql;
+      this._path = path;
+      this._file = new RandomAccessFile(path, "rw");
+      if (this._file.length () < sizeBytes)
+         this._file.setLength (sizeBytes);
+      this._map = this._file.getChannel ().map (FileChannel.MapMode.READ_WRITE, 0, this._file.length ());
+
+      if (this._map.getInt (0) == MAGIC && this._map.getInt (4) == FORMAT) {
+         this._generation = this._map.getLong (GENERATION_AT);
+         this._checkpoint = (int) this._map.getLong (CHECKPOINT_AT);
+         this._position = scan(this._checkpoint);
+         if (this._position > this._checkpoint)
+            System.out.println ("Replaying " + countRecords(this._checkpoint, this._position)
+                                + " journaled orders from " + path);
+      }else {
+         this._map.putInt (0, MAGIC);
+         this._map.putInt (4, FORMAT);
+         startGeneration(1);
+      }//end if
+
+      this._writer = new Thread(this::writeLoop, "order-journal-writer");
+      this._writer.setDaemon (true);
+      this._writer.start ();
+   }//end OrderJournal
+
+   /**
+    * Method to journal an order.  Once this returns the order is as good
+    * as placed; it reaches the database when the writer gets to it.
+    *
+    * @param order the order to journal
+    * @throws java.lang.IllegalArgumentException when the order is larger than the journal
+    * @throws java.lang.IllegalStateException when the journal is closed, or stayed full
+    *         for longer than pizzastore.journal.appendTimeoutMs
+    */
+   public void append (Order order) {
+      byte[] payload = encode(order);
+      int length = RECORD_HEADER_BYTES + payload.length;
+      if (length > this._map.capacity () - HEADER_BYTES)
+         throw new IllegalArgumentException("Order " + order.orderID + " does not fit in the journal");
+
+      this._lock.lock ();
+      try {
+         // full: wait for the writer to catch up, which starts the journal over
+         long remaining = this._appendTimeoutNanos;
+         while (!this._closing && this._position + length > this._map.capacity ()) {
+            if (remaining <= 0)
+               throw new IllegalStateException("The order journal is full; orders are not reaching the database");
+            this._fullWaits.incrementAndGet ();
+            this._appended.signal ();
+            try {
+               remaining = this._written.awaitNanos (remaining);
+            }catch (InterruptedException e) {
+               Thread.currentThread ().interrupt ();
+               throw new IllegalStateException("Interrupted waiting for room in the order journal");
+            }//end try
+         }//end while
+         if (this._closing)
+            throw new IllegalStateException("The order journal is closed");
+
+         int at = this._position;
+         CRC32 crc = new CRC32();
+         ByteBuffer generation = ByteBuffer.allocate (8).putLong (0, this._generation);
+         crc.update (generation.array (), 0, 8);
+         crc.update (payload, 0, payload.length);
+         ByteBuffer view = this._map.duplicate ();
+         view.position (at + RECORD_HEADER_BYTES);
+         view.put (payload);
+         this._map.putLong (at + 8, this._generation);
+         this._map.putInt (at + 4, (int) crc.getValue ());
+         // the length goes in last: a record without one was never appended
+         this._map.putInt (at, payload.length);
+         this._position = at + length;
+         if (this._force)
+            this._map.force ();
+         this._appends.incrementAndGet ();
+         this._appended.signal ();
+      }finally {
+         this._lock.unlock ();
+      }//end try
+   }//end append
+
+   /**
+    * Method to stop the writer once everything appended is written.  When
+    * the database cannot be reached the writer gives up and the remaining
+    * records are written on the next start.
+    */
+   public void close () {
+      this._lock.lock ();
+      try {
+         this._closing = true;
+         this._appended.signalAll ();
+         this._written.signalAll ();
+      }finally {
+         this._lock.unlock ();
+      }//end try
+      try {
+         this._writer.join ();
+      }catch (InterruptedException e) {
+         Thread.currentThread ().interrupt ();
+      }//end try
+      this._map.force ();
+      try {
+         this._file.close ();
+      }catch (IOException e) {
+         System.err.println ("Error closing order journal: " + e.getMessage ());
+      }//end try
+   }//end close
+
+   private void writeLoop () {
+      // failed attempts at the batch starting at failedFrom
+      int failedFrom = -1;
+      int attempts = 0;
+      while (true) {
+         int from, to;
+         this._lock.lock ();
+         try {
+            while (!this._closing && this._checkpoint == this._position)
+               this._appended.awaitUninterruptibly ();
+            if (this._checkpoint == this._position)
+               return;
+            from = this._checkpoint;
+            to = this._position;
+         }finally {
+            this._lock.unlock ();
+         }//end try
+
+         // records below the position are complete and no longer change
+         List<Order> orders = new ArrayList<Order>();
+         int end = read(from, to, orders);
+         try {
+            if (from == failedFrom && attempts >= this._retries)
+               writeEach(orders);
+            else
+               write(orders);
+            failedFrom = -1;
+            attempts = 0;
+         }catch (SQLException | RuntimeException e) {
+            this._failures.incrementAndGet ();
+            System.err.println ("Error writing journaled orders: " + e.getMessage ());
+            if (from != failedFrom) {
+               failedFrom = from;
+               attempts = 0;
+            }//end if
+            ++attempts;
+            if (isClosing ())
+               return;
+            sleep(RETRY_MS);
+            continue;
+         }//end try
+
+         this._lock.lock ();
+         try {
+            if (end == this._position)
+               startGeneration(this._generation + 1);
+            else
+               saveCheckpoint(end);
+            this._written.signalAll ();
+         }finally {
+            this._lock.unlock ();
+         }//end try
+      }//end while
+   }//end writeLoop
+
+   /*
+    * Writes a batch of orders and their lines in one transaction.
+    **/
+   private void write (List<Order> orders) throws SQLException {
+      List<Object[]> orderRows = new ArrayList<Object[]>(orders.size ());
+      List<Object[]> itemRows = new ArrayList<Object[]>();
+      for (Order order : orders) {
+         orderRows.add(new Object[] { order.orderID, order.login, order.storeID, order.totalPrice,
+                                      new Timestamp(order.timestamp) });
+         for (int i = 0; i < order.items.length; ++i)
+            itemRows.add(new Object[] { order.orderID, order.items[i], order.quantities[i] });
+      }//end for
+
+      this._esql.beginTransaction ();
+      try {
+         this._esql.executeBatch (INSERT_ORDER_QUERY, orderRows);
+         this._esql.executeBatch (INSERT_ORDER_ITEM_QUERY, itemRows);
+         this._esql.commit ();
+      }catch (SQLException | RuntimeException e) {
+         this._esql.rollback ();
+         throw e;
+      }//end try
+      this._ordersWritten.addAndGet (orders.size ());
+      this._batches.incrementAndGet ();
+   }//end write
+
+   /*
+    * Writes a batch that keeps failing one order at a time, so one bad
+    * order cannot hold back the others.  An order that fails while the
+    * database still answers a probe is rejected; when the probe fails too
+    * the database is down, and the batch is retried as a whole later.
+    * Orders written before that are skipped on the retry by ON CONFLICT.
+    **/
+   private void writeEach (List<Order> orders) throws SQLException {
+      for (Order order : orders) {
+         try {
+            write(Collections.singletonList (order));
+         }catch (SQLException | RuntimeException e) {
+            // throws when the database is unreachable
+            this._esql.queryForValue (Integer.class, PROBE_QUERY);
+            reject(order, e);
+         }//end try
+      }//end for
+   }//end writeEach
+
+   /*
+    * Appends an order the database refused to the rejected file, forced to
+    * disk before the checkpoint can move past it.
+    **/
+   private void reject (Order order, Exception error) {
+      StringBuilder line = new StringBuilder();
+      line.append (order.orderID).append ('\t').append (order.login).append ('\t').append (order.storeID)
+          .append ('\t').append (order.totalPrice.toPlainString ()).append ('\t').append (new Timestamp(order.timestamp));
+      for (int i = 0; i < order.items.length; ++i)
+         line.append ('\t').append (order.items[i]).append ('\t').append (order.quantities[i]);
+      line.append ("\t# ").append (String.valueOf (error.getMessage ()).replace ('\n', ' ')).append ('\n');
+      try (FileChannel rejected = FileChannel.open (Paths.get (this._path + REJECTED_SUFFIX), StandardOpenOption.CREATE,
+                                                    StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+         ByteBuffer bytes = ByteBuffer.wrap (line.toString ().getBytes (StandardCharsets.UTF_8));
+         while (bytes.hasRemaining ())
+            rejected.write (bytes);
+         rejected.force (true);
+      }catch (IOException e) {
+         // without a copy on disk the order must stay in the journal
+         throw new IllegalStateException("Cannot set aside order " + order.orderID + ": " + e.getMessage (), e);
+      }//end try
+      this._rejected.incrementAndGet ();
+      System.err.println ("Rejected journaled order " + order.orderID + " into " + this._path + REJECTED_SUFFIX
+                          + ": " + error.getMessage ());
+   }//end reject
+
+   /*
+    * Decodes up to one batch of records starting at from, and returns the
+    * offset after the last one decoded.
+    **/
+   private int read (int from, int to, List<Order> orders) {
+      int at = from;
+      while (at < to && orders.size () < this._batch) {
+         int length = this._map.getInt (at);
+         byte[] payload = new byte[length];
+         ByteBuffer view = this._map.duplicate ();
+         view.position (at + RECORD_HEADER_BYTES);
+         view.get (payload);
+         orders.add(decode(payload));
+         at += RECORD_HEADER_BYTES + length;
+      }//end while
+      return at;
+   }//end read
+
+   /*
+    * Finds the end of the valid records from an offset: the first record
+    * that is empty, of another generation, cut short or fails its crc.
+    **/
+   private int scan (int from) {
+      int at = from;
+      while (at + RECORD_HEADER_BYTES <= this._map.capacity ()) {
+         int length = this._map.getInt (at);
+         if (length <= 0 || at + RECORD_HEADER_BYTES + length > this._map.capacity ())
+            break;
+         if (this._map.getLong (at + 8) != this._generation)
+            break;
+         byte[] record = new byte[8 + length];
+         ByteBuffer view = this._map.duplicate ();
+         view.position (at + 8);
+         view.get (record);
+         CRC32 crc = new CRC32();
+         crc.update (record, 0, record.length);
+         if ((int) crc.getValue () != this._map.getInt (at + 4))
+            break;
+         at += RECORD_HEADER_BYTES + length;
+      }//end while
+      return at;
+   }//end scan
+
+   private int countRecords (int from, int to) {
+      int count = 0;
+      for (int at = from; at < to; at += RECORD_HEADER_BYTES + this._map.getInt (at))
+         ++count;
+      return count;
+   }//end countRecords
+
+   // called with the lock held, or before the writer starts
+   private void startGeneration (long generation) {
+      this._generation = generation;
+      this._position = HEADER_BYTES;
+      this._map.putLong (GENERATION_AT, generation);
+      saveCheckpoint(HEADER_BYTES);
+   }//end startGeneration
+
+   private void saveCheckpoint (int checkpoint) {
+      this._checkpoint = checkpoint;
+      this._map.putLong (CHECKPOINT_AT, checkpoint);
+      if (this._force)
+         this._map.force ();
+   }//end saveCheckpoint
+
+   private boolean isClosing () {
+      this._lock.lock ();
+      try {
+         return this._closing;
+      }finally {
+         this._lock.unlock ();
+      }//end try
+   }//end isClosing
+
+   private static void sleep (long millis) {
+      try {
+         TimeUnit.MILLISECONDS.sleep (millis);
+      }catch (InterruptedException e) {
+         Thread.currentThread ().interrupt ();
+      }//end try
+   }//end sleep
+
+   private static byte[] encode (Order order) {
+      try {
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + 32 * order.items.length);
+         DataOutputStream out = new DataOutputStream(bytes);
+         out.writeInt (order.orderID);
+         out.writeUTF (order.login);
+         out.writeInt (order.storeID);
+         out.writeUTF (order.totalPrice.toPlainString ());
+         out.writeLong (order.timestamp);
+         out.writeInt (order.items.length);
+         for (int i = 0; i < order.items.length; ++i) {
+            out.writeUTF (order.items[i]);
+            out.writeInt (order.quantities[i]);
+         }//end for
+         out.flush ();
+         return bytes.toByteArray ();
+      }catch (IOException e) {
+         // a ByteArrayOutputStream does not throw
+         throw new IllegalStateException(e);
+      }//end try
+   }//end encode
+
+   private static Order decode (byte[] payload) {
+      try {
+         DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+         int orderID = in.readInt ();
+         String login = in.readUTF ();
+         int storeID = in.readInt ();
+         BigDecimal totalPrice = new BigDecimal(in.readUTF ());
+         long timestamp = in.readLong ();
+         String[] items = new String[in.readInt ()];
+         int[] quantities = new int[items.length];
+         for (int i = 0; i < items.length; ++i) {
+            items[i] = in.readUTF ();
+            quantities[i] = in.readInt ();
+         }//end for
+         return new Order(orderID, login, storeID, totalPrice, timestamp, items, quantities);
+      }catch (IOException e) {
+         // the crc was checked when the record was appended or scanned
+         throw new IllegalStateException(e);
+      }//end try
+   }//end decode
+
+   @Override
+   public String toString () {
+      this._lock.lock ();
+      try {
+         return this._path + ": pending=" + countRecords(this._checkpoint, this._position)
+              + " bytes=" + (this._position - HEADER_BYTES) + "/" + (this._map.capacity () - HEADER_BYTES)
+              + " appended=" + this._appends.get () + " written=" + this._ordersWritten.get ()
+              + " batches=" + this._batches.get () + " fullWaits=" + this._fullWaits.get ()
+              + " failures=" + this._failures.get () + " rejected=" + this._rejected.get ();
+      }finally {
+         this._lock.unlock ();
+      }//end try
+   }//end toString
+}//end OrderJournal
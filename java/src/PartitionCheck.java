@@ -0,0 +1,139 @@
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class checks that create_foodorder_partitions keeps an order whole
+ * when it moves it out of FoodOrder_default.  It writes an order with one
+ * line for a month that has no partition yet, so the order lands in
+ * FoodOrder_default, then creates that month's partition and checks that
+ * the order moved there with its FoodOrderID claim and its line intact.
+ * Everything runs in one transaction that is rolled back, so the
+ * database is left as it was.
+ *
+ */
+public class PartitionCheck {
+
+   // the partition holding an order
+   static final String PARTITION_QUERY =
+      "SELECT tableoid::regclass::text FROM FoodOrder WHERE orderID = ?";
+   static final String CLAIM_QUERY =
+      "SELECT COUNT(*)::integer FROM FoodOrderID WHERE orderID = ?";
+   static final String LINES_QUERY =
+      "SELECT COUNT(*)::integer FROM ItemsInOrder WHERE orderID = ?";
+
+   private final PizzaStore _esql;
+   private final List<String> _failures = new ArrayList<String>();
+
+   /**
+    * Creates a checker working through the given database.
+    *
+    * @param esql the connected database
+    */
+   public PartitionCheck (PizzaStore esql) {
+      this._esql = esql;
+   }//end PartitionCheck
+
+   /*
+    * Records a failure unless actual equals expected.
+    **/
+   private void expect (String what, Object expected, Object actual) {
+      if (expected.equals(actual))
+         System.out.println ("ok    " + what + ": " + actual);
+      else {
+         System.out.println ("FAIL  " + what + ": expected " + expected + ", got " + actual);
+         this._failures.add(what);
+      }//end if
+   }//end expect
+
+   /*
+    * Returns the first month after the partitions made ahead that has no
+    * partition of its own.
+    **/
+   private LocalDate emptyMonth () throws SQLException {
+      LocalDate month = LocalDate.now ().withDayOfMonth (1).plusMonths (24);
+      while (this._esql.exists ("SELECT 1 FROM pg_class WHERE relname = ?", partitionName(month)))
+         month = month.plusMonths (1);
+      return month;
+   }//end emptyMonth
+
+   /*
+    * Returns the name create_foodorder_partitions gives month's partition.
+    **/
+   private static String partitionName (LocalDate month) {
+      return String.format ("foodorder_%04d_%02d", month.getYear (), month.getMonthValue ());
+   }//end partitionName
+
+   /**
+    * Method to write an order into FoodOrder_default, split its month out
+    * and check what the order looks like afterwards.  Everything is rolled
+    * back.
+    *
+    * @return the names of the checks that failed
+    * @throws java.sql.SQLException when the check could not run
+    */
+   public List<String> run () throws SQLException {
+      String login = this._esql.queryForValue (String.class, "SELECT login FROM Users LIMIT 1");
+      Integer storeID = this._esql.queryForValue (Integer.class, "SELECT storeID FROM Store LIMIT 1");
+      String itemName = this._esql.queryForValue (String.class, "SELECT itemName FROM Items LIMIT 1");
+      if (login == null || storeID == null || itemName == null)
+         throw new SQLException("The check needs at least one user, store and item");
+      LocalDate month = emptyMonth ();
+      int ahead = (int) ChronoUnit.MONTHS.between (LocalDate.now ().withDayOfMonth (1), month);
+
+      this._esql.beginTransaction ();
+      try {
+         int orderID = this._esql.nextOrderId ();
+         this._esql.executeUpdate (
+            "INSERT INTO FoodOrder (orderID, login, storeID, totalPrice, orderStatus, orderTimestamp) "
+            + "VALUES (?, ?, ?, ?, 'Pending', ?::timestamp)",
+            orderID, login, storeID, new BigDecimal("1.00"), month.plusDays (14) + " 12:00");
+         this._esql.executeUpdate (
+            "INSERT INTO ItemsInOrder (orderID, itemName, quantity) VALUES (?, ?, 1)", orderID, itemName);
+         expect("partition before the split", "foodorder_default",
+                this._esql.queryForValue (String.class, PARTITION_QUERY, orderID));
+
+         this._esql.queryForValue (Integer.class, PartitionMaintainer.CREATE_QUERY, month.toString (), ahead);
+         expect("partition after the split", partitionName(month),
+                this._esql.queryForValue (String.class, PARTITION_QUERY, orderID));
+         expect("FoodOrderID claims", 1, this._esql.queryForValue (Integer.class, CLAIM_QUERY, orderID));
+         expect("lines", 1, this._esql.queryForValue (Integer.class, LINES_QUERY, orderID));
+      }finally {
+         this._esql.rollback ();
+      }//end try
+      return this._failures;
+   }//end run
+
+   /**
+    * Runs the check against the given database.
+    *
+    * @param args <dbname> <port> <user>
+    */
+   public static void main (String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            PartitionCheck.class.getName () +
+            " <dbname> <port> <user>");
+         return;
+      }//end if
+      Class.forName ("org.postgresql.Driver");
+
+      PizzaStore esql = new PizzaStore(args[0], args[1], args[2], "");
+      List<String> failures;
+      try {
+         failures = new PartitionCheck(esql).run ();
+      }finally {
+         esql.cleanup ();
+      }//end try
+      if (!failures.isEmpty ()) {
+         System.err.println (failures.size () + " partition checks failed");
+         System.exit (1);
+      }//end if
+      System.out.println ("Orders moved out of FoodOrder_default kept their ID claim and lines");
+   }//end main
+}//end PartitionCheck
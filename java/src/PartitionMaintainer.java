@@ -0,0 +1,130 @@
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class keeps FoodOrder's monthly partitions ahead of the clock, so
+ * an order placed in a new month always has a partition to go to, and
+ * optionally detaches the partitions that are past their retention.  It
+ * calls the functions of sql/src/create_partitions.sql, which do nothing
+ * for months that are already in shape, once when started and then on a
+ * schedule.  Run on its own (java/scripts/partitions.sh) it makes one
+ * pass, e.g. from cron.  Only the console and PizzaHttpServer start it, so
+ * orders written while neither runs may find no partition for their
+ * month; they wait in FoodOrder_default and the next pass moves them to
+ * the month's partition.
+ *
+ * Detached partitions leave every query on FoodOrder but keep their rows
+ * in FoodOrder_detached_YYYY_MM tables, and their lines in
+ * ItemsInOrder_detached_YYYY_MM.  Nothing is detached unless a retention
+ * is set.
+ *
+ * Settings:
+ *    -Dpizzastore.partitions.monthsAhead   months to create past the current one (default 3)
+ *    -Dpizzastore.partitions.retainMonths  months kept in FoodOrder before the current one, 0 keeps all (default 0)
+ *    -Dpizzastore.partitions.checkHours    hours between passes (default 12)
+ *
+ */
+public class PartitionMaintainer {
+
+   static final String CREATE_QUERY = "SELECT create_foodorder_partitions(?::date, ?)";
+   static final String DETACH_QUERY = "SELECT detach_foodorder_partitions(?::date)";
+
+   private static final int MONTHS_AHEAD = Integer.getInteger("pizzastore.partitions.monthsAhead", 3);
+   private static final int RETAIN_MONTHS = Integer.getInteger("pizzastore.partitions.retainMonths", 0);
+   private static final long CHECK_HOURS = Long.getLong("pizzastore.partitions.checkHours", 12L);
+
+   private final PizzaStore _esql;
+   private ScheduledExecutorService _scheduler = null;
+
+   /**
+    * Creates a maintainer working through the given store.
+    *
+    * @param esql the store whose primary holds FoodOrder
+    */
+   public PartitionMaintainer (PizzaStore esql) {
+      this._esql = esql;
+   }//end PartitionMaintainer
+
+   /**
+    * Method to make one pass: create the partitions from last month through
+    * the months ahead, then detach those past the retention if one is set.
+    *
+    * @return the names of the tables detached in this pass
+    * @throws java.sql.SQLException when a partition could not be created or detached
+    */
+   public List<String> run () throws SQLException {
+      LocalDate month = LocalDate.now ().withDayOfMonth (1);
+      // last month too, in case the previous pass did not make it
+      this._esql.queryForValue (Integer.class, CREATE_QUERY, month.minusMonths (1).toString (), MONTHS_AHEAD);
+
+      List<String> detached = new ArrayList<String>();
+      if (RETAIN_MONTHS > 0)
+         for (List<String> row : this._esql.executeQueryAndReturnResult (
+                 DETACH_QUERY, month.minusMonths (RETAIN_MONTHS).toString ()))
+            detached.add(row.get(0));
+      return detached;
+   }//end run
+
+   /**
+    * Method to make a pass now and then every few hours on a daemon thread.
+    * A failed pass is reported and retried at the next one.
+    */
+   public void start () {
+      if (this._scheduler != null)
+         return;
+      this._scheduler = Executors.newSingleThreadScheduledExecutor (r -> {
+         Thread t = new Thread(r, "pizzastore-partition-maintainer");
+         t.setDaemon(true);
+         return t;
+      });
+      this._scheduler.scheduleWithFixedDelay (this::runQuietly, 0, Math.max(1L, CHECK_HOURS), TimeUnit.HOURS);
+   }//end start
+
+   /**
+    * Method to stop the scheduled passes.
+    */
+   public void stop () {
+      if (this._scheduler != null)
+         this._scheduler.shutdownNow ();
+   }//end stop
+
+   private void runQuietly () {
+      try {
+         for (String table : run())
+            System.out.println ("Detached " + table + " from FoodOrder");
+      }catch (SQLException | RuntimeException e) {
+         System.err.println ("Error maintaining FoodOrder partitions: " + e.getMessage ());
+      }//end try
+   }//end runQuietly
+
+   /**
+    * Makes one maintenance pass.
+    *
+    * @param args <dbname> <port> <user>
+    */
+   public static void main (String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            PartitionMaintainer.class.getName () +
+            " <dbname> <port> <user>");
+         return;
+      }//end if
+      Class.forName ("org.postgresql.Driver");
+      PizzaStore esql = new PizzaStore(args[0], args[1], args[2], "");
+      try {
+         List<String> detached = new PartitionMaintainer(esql).run ();
+         for (String table : detached)
+            System.out.println ("Detached " + table + " from FoodOrder");
+         System.out.println ("FoodOrder partitions are in place through " + MONTHS_AHEAD + " months ahead");
+      }finally {
+         esql.cleanup ();
+      }//end try
+   }//end main
+}//end PartitionMaintainer
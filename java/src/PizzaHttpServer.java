@@ -0,0 +1,536 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This class serves PizzaService over HTTP with the JDK's built-in server,
+ * one thread per request (a virtual thread where the JVM has them), so a
+ * single JVM serves many customers and drivers at once while the
+ * connection pool bounds how many of them talk to the database at a time.
+ *
+ * Requests carry form or query parameters; responses are JSON.  Log in
+ * with POST /login and send the returned token as "Authorization: Bearer
+ * <token>" on every other request.
+ *
+ *    POST /login                 login, password          -> { token, login, role }
+ *    POST /logout
+ *    GET  /menu                  [type] [max] [sort=asc|desc]
+ *    POST /menu/{item}           ingredients, typeOfItem, price, description (any of)
+ *    POST /orders                storeID, item and quantity (repeated, in pairs)
+ *    GET  /orders/recent
+ *    GET  /orders/{id}
+ *    POST /orders/{id}/status    status
+ *    POST /orders/status         status, id (repeated) [expected, one per id or one for all]
+ *    GET  /orders/events         [storeID]  -> text/event-stream of new orders and status changes
+ *
+ * Bad input answers 400, a missing, unknown or expired token 401, a
+ * forbidden operation 403, an unknown order or item 404 and a database
+ * failure 500, each with a JSON body holding the error message.
+ *
+ * A token expires once it has not been used for sessionIdleMinutes, and
+ * expired tokens are swept from memory every minute.  An open event
+ * stream does not count as use.
+ *
+ * Settings:
+ *    -Dpizzastore.http.sessionIdleMinutes   idle time after which a token expires (default 30)
+ *
+ */
+public class PizzaHttpServer {
+
+   // FoodOrder columns, in the order SELECT * returns them
+   private static final String[] ORDER_COLUMNS =
+      { "orderID", "login", "storeID", "totalPrice", "orderTimestamp", "orderStatus" };
+
+   /*
+    * A request that cannot be served, with the HTTP status to answer.
+    **/
+   private static final class HttpError extends Exception {
+      private static final long serialVersionUID = 1L;
+
+      final int status;
+
+      HttpError (int status, String message) {
+         super(message);
+         this.status = status;
+      }//end HttpError
+   }//end HttpError
+
+   /*
+    * A logged in user behind a token, and when the token was last used.
+    **/
+   private static final class Login {
+      final UserSession session;
+      volatile long usedAt = System.nanoTime ();
+
+      Login (UserSession session) {
+         this.session = session;
+      }//end Login
+   }//end Login
+
+   private static final long SESSION_IDLE_NANOS =
+      TimeUnit.MINUTES.toNanos (Long.getLong("pizzastore.http.sessionIdleMinutes", 30L));
+
+   // seconds between keep-alive comments on an idle event stream
+   private static final int EVENT_KEEPALIVE_SECONDS = 15;
+   // events held for a slow event stream client before more are dropped
+   private static final int EVENT_BACKLOG = 1000;
+
+   private final PizzaService _service;
+   private final OrderFeed _feed;
+   private final HttpServer _server;
+   private final ExecutorService _threads;
+
+   // logged in users by session token
+   private final Map<String, Login> _sessions = new ConcurrentHashMap<String, Login>();
+   private final SecureRandom _random = new SecureRandom();
+   // drops the tokens nobody has used for SESSION_IDLE_NANOS
+   private final ScheduledExecutorService _sweeper = Executors.newSingleThreadScheduledExecutor (r -> {
+      Thread t = new Thread(r, "pizzastore-session-sweeper");
+      t.setDaemon(true);
+      return t;
+   });
+
+   /**
+    * Creates the server; call start to begin accepting requests.
+    *
+    * @param esql the connected database
+    * @param port the TCP port to listen on
+    * @throws java.io.IOException when the port cannot be bound
+    */
+   public PizzaHttpServer (PizzaStore esql, int port) throws IOException {
+      this._service = esql.getService ();
+      this._feed = esql.getFeed ();
+      this._server = HttpServer.create (new InetSocketAddress(port), 0);
+      this._threads = VirtualThreads.newPerTaskExecutor ();
+      this._server.setExecutor (this._threads);
+      this._server.createContext ("/", this::handle);
+   }//end PizzaHttpServer
+
+   /**
+    * Method to start accepting requests.
+    */
+   public void start () {
+      this._sweeper.scheduleWithFixedDelay (this::sweep, 1, 1, TimeUnit.MINUTES);
+      this._server.start ();
+   }//end start
+
+   /**
+    * Method to stop accepting requests, letting running ones finish for
+    * up to the given time.
+    *
+    * @param delaySeconds how long to wait for running requests
+    */
+   public void stop (int delaySeconds) {
+      this._server.stop (delaySeconds);
+      this._threads.shutdown ();
+      this._sweeper.shutdownNow ();
+   }//end stop
+
+   private void sweep () {
+      long now = System.nanoTime ();
+      this._sessions.values ().removeIf (login -> now - login.usedAt > SESSION_IDLE_NANOS);
+   }//end sweep
+
+   private void handle (HttpExchange exchange) throws IOException {
+      int status = 200;
+      String body;
+      try {
+         if (exchange.getRequestMethod ().equals ("GET")
+             && exchange.getRequestURI ().getPath ().replaceAll ("^/+|/+$", "").equals ("orders/events")) {
+            streamEvents(exchange);
+            return;
+         }//end if
+         body = route(exchange);
+      }catch (HttpError e) {
+         status = e.status;
+         body = error(e.getMessage ());
+      }catch (IllegalArgumentException e) {
+         status = 400;
+         body = error(e.getMessage ());
+      }catch (SecurityException e) {
+         status = 403;
+         body = error(e.getMessage ());
+      }catch (SQLException | RuntimeException e) {
+         status = 500;
+         body = error(e.getMessage ());
+      }//end try
+
+      byte[] bytes = body.getBytes ("UTF-8");
+      exchange.getResponseHeaders ().set ("Content-Type", "application/json; charset=utf-8");
+      exchange.sendResponseHeaders (status, bytes.length);
+      try (OutputStream out = exchange.getResponseBody ()) {
+         out.write (bytes);
+      }//end try
+   }//end handle
+
+   private String route (HttpExchange exchange) throws HttpError, IOException, SQLException {
+      String method = exchange.getRequestMethod ();
+      String[] path = exchange.getRequestURI ().getPath ().replaceAll ("^/+|/+$", "").split ("/");
+      Map<String, List<String>> params = readParams(exchange);
+
+      if (path.length == 1 && path[0].equals ("login") && method.equals ("POST"))
+         return logIn(params);
+
+      UserSession session = authorise(exchange);
+      if (path.length == 1 && path[0].equals ("logout") && method.equals ("POST")) {
+         this._sessions.remove (token(exchange));
+         return "{}";
+      }//end if
+      if (path[0].equals ("menu")) {
+         if (path.length == 1 && method.equals ("GET"))
+            return menu(params);
+         if (path.length == 2 && method.equals ("POST"))
+            return updateMenuItem(session, path[1], params);
+      }//end if
+      if (path[0].equals ("orders")) {
+         if (path.length == 1 && method.equals ("POST"))
+            return placeOrder(session, params);
+         if (path.length == 2 && path[1].equals ("status") && method.equals ("POST"))
+            return updateOrderStatuses(session, params);
+         if (path.length == 2 && path[1].equals ("recent") && method.equals ("GET"))
+            return recentOrders(session);
+         if (path.length == 2 && method.equals ("GET"))
+            return orderInfo(session, parseInt(path[1], "order ID"));
+         if (path.length == 3 && path[2].equals ("status") && method.equals ("POST"))
+            return updateOrderStatus(session, parseInt(path[1], "order ID"), params);
+      }//end if
+      throw new HttpError(404, "No such resource: " + method + " " + exchange.getRequestURI ().getPath ());
+   }//end route
+
+   private String logIn (Map<String, List<String>> params) throws HttpError, SQLException {
+      UserSession session = this._service.logIn (required(params, "login"), required(params, "password"));
+      if (session == null)
+         throw new HttpError(401, "Invalid username or password");
+      byte[] bytes = new byte[16];
+      this._random.nextBytes (bytes);
+      StringBuilder token = new StringBuilder();
+      for (byte b : bytes)
+         token.append (String.format ("%02x", b));
+      this._sessions.put (token.toString (), new Login(session));
+      return "{\"token\":" + quote(token.toString ()) + ",\"login\":" + quote(session.login)
+           + ",\"role\":" + quote(session.role) + "}";
+   }//end logIn
+
+   private String menu (Map<String, List<String>> params) throws SQLException {
+      MenuCatalog menu = this._service.getMenu ();
+      List<MenuCatalog.Item> items;
+      String type = optional(params, "type");
+      String max = optional(params, "max");
+      String sort = optional(params, "sort");
+      if (type != null) {
+         items = menu.ofType (type);
+      } else if (max != null) {
+         try {
+            items = menu.atMost (new BigDecimal(max));
+         }catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid price: " + max);
+         }//end try
+      } else if (sort != null) {
+         items = menu.sortedByPrice (!sort.equals ("desc"));
+      } else {
+         items = menu.all ();
+      }//end if
+
+      StringBuilder out = new StringBuilder("[");
+      for (MenuCatalog.Item item : items) {
+         if (out.length () > 1)
+            out.append (',');
+         out.append ("{\"itemName\":").append (quote(item.name))
+            .append (",\"ingredients\":").append (quote(item.ingredients))
+            .append (",\"typeOfItem\":").append (quote(item.type))
+            .append (",\"price\":").append (item.price.toPlainString ())
+            .append (",\"description\":").append (quote(item.description)).append ('}');
+      }//end for
+      return out.append (']').toString ();
+   }//end menu
+
+   private String updateMenuItem (UserSession session, String itemName, Map<String, List<String>> params)
+         throws HttpError, SQLException {
+      boolean changed = false;
+      for (String field : PizzaService.ITEM_FIELDS) {
+         String value = optional(params, field);
+         if (value == null)
+            continue;
+         if (!this._service.updateMenuItem (session, itemName, field, value))
+            throw new HttpError(404, "Item not found: " + itemName);
+         changed = true;
+      }//end for
+      if (!changed)
+         throw new IllegalArgumentException("Nothing to update");
+      MenuCatalog.Item item = this._service.getMenu ().find (itemName);
+      return "{\"itemName\":" + quote(itemName) + ",\"price\":"
+           + (item == null ? "null" : item.price.toPlainString ()) + "}";
+   }//end updateMenuItem
+
+   private String placeOrder (UserSession session, Map<String, List<String>> params) throws HttpError, SQLException {
+      int storeID = parseInt(required(params, "storeID"), "store ID");
+      List<String> items = params.getOrDefault ("item", new ArrayList<String>());
+      List<String> quantities = params.getOrDefault ("quantity", new ArrayList<String>());
+      if (items.size () != quantities.size ())
+         throw new IllegalArgumentException("Every item needs a quantity");
+      Map<String, Integer> cart = new LinkedHashMap<String, Integer>();
+      for (int i = 0; i < items.size (); ++i)
+         cart.merge(items.get(i).trim (), parseInt(quantities.get(i), "quantity"), Integer::sum);
+
+      PizzaService.Receipt receipt = this._service.placeOrder (session, storeID, cart);
+      return "{\"orderID\":" + receipt.orderID + ",\"totalPrice\":" + receipt.totalPrice + "}";
+   }//end placeOrder
+
+   private String recentOrders (UserSession session) throws SQLException {
+      StringBuilder out = new StringBuilder("[");
+      for (List<String> row : this._service.getRecentOrders (session)) {
+         if (out.length () > 1)
+            out.append (',');
+         out.append (row.get(0));
+      }//end for
+      return out.append (']').toString ();
+   }//end recentOrders
+
+   private String orderInfo (UserSession session, int orderID) throws HttpError, SQLException {
+      List<List<String>> rows = this._service.getOrderInfo (session, orderID);
+      if (rows.isEmpty ())
+         throw new HttpError(404, "Order not found: " + orderID);
+      return order(rows.get(0));
+   }//end orderInfo
+
+   private String updateOrderStatus (UserSession session, int orderID, Map<String, List<String>> params)
+         throws HttpError, SQLException {
+      if (!this._service.updateOrderStatus (session, orderID, required(params, "status")))
+         throw new HttpError(404, "Order not found: " + orderID);
+      return orderInfo(session, orderID);
+   }//end updateOrderStatus
+
+   private String updateOrderStatuses (UserSession session, Map<String, List<String>> params) throws SQLException {
+      List<String> ids = params.getOrDefault ("id", new ArrayList<String>());
+      List<String> expected = params.getOrDefault ("expected", new ArrayList<String>());
+      if (ids.isEmpty ())
+         throw new IllegalArgumentException("Missing parameter: id");
+      if (expected.size () > 1 && expected.size () != ids.size ())
+         throw new IllegalArgumentException("Give one expected status per id, or one for all");
+      Map<Integer, String> orders = new LinkedHashMap<Integer, String>();
+      for (int i = 0; i < ids.size (); ++i) {
+         String status = expected.isEmpty () ? "" : expected.get(expected.size () == 1 ? 0 : i);
+         orders.put (parseInt(ids.get(i), "order ID"), status.isEmpty () ? null : status);
+      }//end for
+
+      StringBuilder out = new StringBuilder("[");
+      for (PizzaService.StatusChange change : this._service.updateOrderStatuses (session, orders, required(params, "status"))) {
+         if (out.length () > 1)
+            out.append (',');
+         out.append ("{\"orderID\":").append (change.orderID)
+            .append (",\"result\":").append (quote(change.result))
+            .append (",\"orderStatus\":").append (quote(change.status)).append ('}');
+      }//end for
+      return out.append (']').toString ();
+   }//end updateOrderStatuses
+
+   /*
+    * Sends order events as server-sent events until the client goes away
+    * or the user's account changes.  Errors before the stream starts are
+    * answered like any other request.
+    **/
+   private void streamEvents (HttpExchange exchange) throws HttpError, IOException, SQLException {
+      UserSession session = authorise(exchange);
+      String store = optional(readParams(exchange), "storeID");
+      Integer storeID = store == null ? null : parseInt(store, "store ID");
+
+      BlockingQueue<OrderFeed.Event> events = new LinkedBlockingQueue<OrderFeed.Event>(EVENT_BACKLOG);
+      OrderFeed.Subscription subscription = this._feed.subscribe (session, storeID, events::offer);
+      try {
+         exchange.getResponseHeaders ().set ("Content-Type", "text/event-stream; charset=utf-8");
+         exchange.getResponseHeaders ().set ("Cache-Control", "no-cache");
+         exchange.sendResponseHeaders (200, 0);
+         try (OutputStream out = exchange.getResponseBody ()) {
+            while (this._service.isCurrent (session)) {
+               OrderFeed.Event event = events.poll (EVENT_KEEPALIVE_SECONDS, TimeUnit.SECONDS);
+               String message = event == null ? ": keep-alive\n\n"
+                  : "event: " + event.kind + "\ndata: {\"orderID\":" + event.orderID + ",\"storeID\":" + event.storeID
+                    + ",\"login\":" + quote(event.login) + ",\"orderStatus\":" + quote(event.status) + "}\n\n";
+               out.write (message.getBytes ("UTF-8"));
+               out.flush ();
+            }//end while
+         }//end try
+      }catch (InterruptedException e) {
+         Thread.currentThread ().interrupt ();
+      }catch (IOException e) {
+         // the client went away
+      }finally {
+         subscription.close ();
+      }//end try
+   }//end streamEvents
+
+   private static String order (List<String> row) {
+      StringBuilder out = new StringBuilder("{");
+      for (int i = 0; i < ORDER_COLUMNS.length; ++i) {
+         if (i > 0)
+            out.append (',');
+         out.append (quote(ORDER_COLUMNS[i])).append (':');
+         String value = row.get(i) == null ? null : row.get(i).trim ();
+         if (i == 0 || i == 2 || i == 3)
+            out.append (value);
+         else
+            out.append (quote(value));
+      }//end for
+      return out.append ('}').toString ();
+   }//end order
+
+   private UserSession authorise (HttpExchange exchange) throws HttpError {
+      String token = token(exchange);
+      Login login = token == null ? null : this._sessions.get (token);
+      if (login == null)
+         throw new HttpError(401, "Log in first and send the token as a Bearer authorization");
+      long now = System.nanoTime ();
+      if (now - login.usedAt > SESSION_IDLE_NANOS) {
+         this._sessions.remove (token);
+         throw new HttpError(401, "Your session expired; log in again");
+      }//end if
+      login.usedAt = now;
+      UserSession session = login.session;
+      // a manager changed the user's login or role since the token was issued
+      if (!this._service.isCurrent (session)) {
+         this._sessions.remove (token);
+         throw new HttpError(401, "Your account changed; log in again");
+      }//end if
+      return session;
+   }//end authorise
+
+   private static String token (HttpExchange exchange) {
+      String header = exchange.getRequestHeaders ().getFirst ("Authorization");
+      if (header == null || !header.startsWith ("Bearer "))
+         return null;
+      return header.substring (7).trim ();
+   }//end token
+
+   /*
+    * Collects the query string and, for POST, the url-encoded form body.
+    **/
+   private static Map<String, List<String>> readParams (HttpExchange exchange) throws IOException {
+      Map<String, List<String>> params = new HashMap<String, List<String>>();
+      parseForm(exchange.getRequestURI ().getRawQuery (), params);
+      if (exchange.getRequestMethod ().equals ("POST")) {
+         ByteArrayOutputStream body = new ByteArrayOutputStream();
+         try (InputStream in = exchange.getRequestBody ()) {
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read (buffer)) > 0)
+               body.write (buffer, 0, n);
+         }//end try
+         parseForm(body.toString ("UTF-8"), params);
+      }//end if
+      return params;
+   }//end readParams
+
+   private static void parseForm (String form, Map<String, List<String>> params) throws UnsupportedEncodingException {
+      if (form == null || form.isEmpty ())
+         return;
+      for (String pair : form.split ("&")) {
+         if (pair.isEmpty ())
+            continue;
+         int eq = pair.indexOf ('=');
+         String name = URLDecoder.decode (eq < 0 ? pair : pair.substring (0, eq), "UTF-8");
+         String value = eq < 0 ? "" : URLDecoder.decode (pair.substring (eq + 1), "UTF-8");
+         params.computeIfAbsent (name, k -> new ArrayList<String>()).add(value);
+      }//end for
+   }//end parseForm
+
+   private static String optional (Map<String, List<String>> params, String name) {
+      List<String> values = params.get (name);
+      return values == null || values.isEmpty () ? null : values.get(0);
+   }//end optional
+
+   private static String required (Map<String, List<String>> params, String name) {
+      String value = optional(params, name);
+      if (value == null)
+         throw new IllegalArgumentException("Missing parameter: " + name);
+      return value;
+   }//end required
+
+   private static int parseInt (String value, String what) {
+      try {
+         return Integer.parseInt (value.trim ());
+      }catch (NumberFormatException e) {
+         throw new IllegalArgumentException("Invalid " + what + ": " + value);
+      }//end try
+   }//end parseInt
+
+   private static String error (String message) {
+      return "{\"error\":" + quote(message) + "}";
+   }//end error
+
+   /*
+    * Writes a string as a JSON string literal, or null.
+    **/
+   static String quote (String value) {
+      if (value == null)
+         return "null";
+      StringBuilder out = new StringBuilder(value.length () + 2).append ('"');
+      for (int i = 0; i < value.length (); ++i) {
+         char c = value.charAt(i);
+         switch (c) {
+            case '"':  out.append ("\\\""); break;
+            case '\\': out.append ("\\\\"); break;
+            case '\n': out.append ("\\n"); break;
+            case '\r': out.append ("\\r"); break;
+            case '\t': out.append ("\\t"); break;
+            default:
+               if (c < 0x20)
+                  out.append (String.format ("\\u%04x", (int) c));
+               else
+                  out.append (c);
+         }//end switch
+      }//end for
+      return out.append ('"').toString ();
+   }//end quote
+
+   /**
+    * Serves the order API until the process is stopped.
+    *
+    * @param args <dbname> <port> <user> [http port]
+    */
+   public static void main (String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] [-Dpizzastore.pool.maxSize=<connections>] " +
+            PizzaHttpServer.class.getName () +
+            " <dbname> <port> <user> [http port]");
+         return;
+      }//end if
+      int httpPort = args.length > 3 ? Integer.parseInt (args[3]) : 8080;
+
+      Class.forName ("org.postgresql.Driver");
+      PizzaStore esql = new PizzaStore(args[0], args[1], args[2], "");
+      esql.getPartitions ().start ();
+      esql.getRollups ().start ();
+      PizzaHttpServer server = new PizzaHttpServer(esql, httpPort);
+      Runtime.getRuntime ().addShutdownHook (new Thread(() -> {
+         server.stop (2);
+         esql.cleanup ();
+      }));
+      server.start ();
+      System.out.println ("Serving on port " + httpPort + " with " +
+                          (VirtualThreads.available () ? "virtual" : "platform") + " threads per request");
+   }//end main
+}//end PizzaHttpServer
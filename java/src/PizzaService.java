@@ -0,0 +1,541 @@
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class holds the PizzaStore operations without any console input or
+ * output, so they can be driven by the menu in PizzaStore.main as well as
+ * by scripts and many concurrent sessions.  Methods take their arguments
+ * directly, return results instead of printing them, and report bad input
+ * with an IllegalArgumentException and database failures with an
+ * SQLException.  One instance is shared by all threads.
+ *
+ */
+public class PizzaService {
+
+   // order statuses in the order an order moves through them
+   public static final String[] ORDER_STATUSES =
+      { "Pending", "In Progress", "Out for Delivery", "Completed", "Canceled" };
+
+   static final String UPDATE_ORDER_STATUS_QUERY = "UPDATE FoodOrder SET orderStatus = ? WHERE orderID = ?";
+
+   // moves many orders in one statement: an order is only changed while its
+   // status is still the one expected (any status where none is given), and
+   // every requested order comes back with what happened to it.  The orders
+   // are locked first; FOR UPDATE waits out anyone else moving them and
+   // reads the status they committed, not the statement's snapshot, so the
+   // check and the status reported for a CONFLICT are both current.
+   static final String BULK_UPDATE_ORDER_STATUS_QUERY =
+      "WITH requested AS (SELECT * FROM unnest(?::integer[], ?::varchar[]) AS r(orderID, expected)), " +
+      "locked AS (SELECT f.orderID, f.orderTimestamp, trim(f.orderStatus) AS status " +
+      "FROM FoodOrder f JOIN requested r ON f.orderID = r.orderID FOR UPDATE OF f), " +
+      "updated AS (UPDATE FoodOrder f SET orderStatus = ? FROM requested r JOIN locked l ON l.orderID = r.orderID " +
+      "WHERE f.orderID = l.orderID AND f.orderTimestamp = l.orderTimestamp " +
+      "AND (r.expected IS NULL OR l.status = r.expected) " +
+      "RETURNING f.orderID) " +
+      "SELECT r.orderID, u.orderID IS NOT NULL, l.orderID IS NOT NULL, l.status FROM requested r " +
+      "LEFT JOIN updated u ON u.orderID = r.orderID LEFT JOIN locked l ON l.orderID = r.orderID";
+
+   // what happened to one order of a bulk status update
+   public static final String UPDATED = "updated";
+   public static final String CONFLICT = "conflict";
+   public static final String NOT_FOUND = "not found";
+
+   // the kinds of item on the menu
+   public static final String[] ITEM_TYPES = { "entree", "sides", "drinks" };
+
+   // the Items columns a manager may change
+   public static final String[] ITEM_FIELDS = { "ingredients", "typeOfItem", "price", "description" };
+
+   // the roles a user can have
+   public static final String[] ROLES = { "customer", "driver", "manager" };
+
+   // sales reports, read from the rollups in sql/src/create_functions.sql,
+   // a row per store or item and day, plus the deltas not folded in yet;
+   // the date range is bound once for each
+   static final String STORE_SALES_QUERY =
+      "SELECT storeID, SUM(orders), SUM(revenue) FROM (" +
+      "SELECT storeID, orders, revenue FROM StoreDailySales WHERE salesDate BETWEEN ? AND ? UNION ALL " +
+      "SELECT storeID, orders, revenue FROM StoreSalesDelta WHERE salesDate BETWEEN ? AND ?) s " +
+      "GROUP BY storeID ORDER BY SUM(revenue) DESC, storeID LIMIT ?";
+   static final String STORE_DAILY_SALES_QUERY =
+      "SELECT salesDate, SUM(orders), SUM(revenue) FROM (" +
+      "SELECT salesDate, orders, revenue FROM StoreDailySales WHERE storeID = ? AND salesDate BETWEEN ? AND ? UNION ALL " +
+      "SELECT salesDate, orders, revenue FROM StoreSalesDelta WHERE storeID = ? AND salesDate BETWEEN ? AND ?) s " +
+      "GROUP BY salesDate ORDER BY salesDate";
+   static final String TOP_ITEMS_QUERY =
+      "SELECT itemName, SUM(quantity) FROM (" +
+      "SELECT itemName, quantity FROM ItemDailySales WHERE salesDate BETWEEN ? AND ? UNION ALL " +
+      "SELECT itemName, quantity FROM ItemSalesDelta WHERE salesDate BETWEEN ? AND ?) s " +
+      "GROUP BY itemName ORDER BY SUM(quantity) DESC, itemName LIMIT ?";
+
+   static final String UPDATE_LOGIN_QUERY = "UPDATE Users SET login = ? WHERE login = ?";
+   static final String UPDATE_ROLE_QUERY = "UPDATE Users SET role = ? WHERE login = ?";
+
+   /**
+    * The ID and total price of a newly placed order.
+    */
+   public static class Receipt {
+      public final int orderID;
+      public final String totalPrice;
+
+      Receipt (int orderID, String totalPrice) {
+         this.orderID = orderID;
+         this.totalPrice = totalPrice;
+      }//end Receipt
+   }//end Receipt
+
+   private final PizzaStore _esql;
+
+   // each user's latest order IDs, kept current by placeOrder
+   private final RecentOrdersCache _recentOrders;
+
+   // account version per login, bumped when a manager changes the login or
+   // role; logins never changed are at version 0 and not stored
+   private final Map<String, Long> _accountVersions = new ConcurrentHashMap<String, Long>();
+
+   /**
+    * Creates the service on top of a connected PizzaStore.
+    *
+    * @param esql the database the operations run against
+    */
+   public PizzaService (PizzaStore esql) {
+      this._esql = esql;
+      this._recentOrders = new RecentOrdersCache(esql);
+   }//end PizzaService
+
+   /**
+    * Method to check log in credentials and read the user's role in the
+    * same query.
+    *
+    * @param login the user name, as typed
+    * @param password the password
+    * @return the new session, or null if the credentials do not match
+    * @throws java.sql.SQLException when the lookup failed
+    */
+   public UserSession logIn (String login, String password) throws SQLException {
+      login = login.trim ().toLowerCase ();
+      // read the version first, so a change racing the query leaves the session stale
+      long version = accountVersion(login);
+      List<List<String>> rows = this._esql.executeQueryAndReturnResult (PizzaStore.LOGIN_QUERY, login, password);
+      return rows.isEmpty () ? null : new UserSession(login, rows.get(0).get(0).trim (), version);
+   }//end logIn
+
+   /**
+    * Method to tell whether a session still reflects its user's account.
+    *
+    * @param session the session
+    * @return false once a manager changed the user's login or role after the session was created
+    */
+   public boolean isCurrent (UserSession session) {
+      return session.version == accountVersion(session.login);
+   }//end isCurrent
+
+   private long accountVersion (String login) {
+      Long version = this._accountVersions.get (login);
+      return version == null ? 0 : version;
+   }//end accountVersion
+
+   private void invalidateSessions (String login) {
+      this._accountVersions.merge (login, 1L, Long::sum);
+   }//end invalidateSessions
+
+   /*
+    * Fails unless the session is current; every operation starts here.
+    **/
+   private void check (UserSession session) {
+      if (session == null)
+         throw new SecurityException("Log in first");
+      if (!isCurrent(session))
+         throw new SecurityException("Your account changed; log in again");
+      this._esql.bindCaller (session.login);
+   }//end check
+
+   /**
+    * @return the menu catalog serving all menu reads
+    */
+   public MenuCatalog getMenu () {
+      return this._esql.getMenu ();
+   }//end getMenu
+
+   /**
+    * Method to place an order with one call of the place_order database
+    * function, which prices the lines from Items and writes the order and
+    * all of its lines atomically, in one round trip whatever the cart size.
+    * With write-behind on, the order is priced from the menu and appended
+    * to the order journal instead, and is written to the database shortly
+    * after this returns.
+    *
+    * @param session the user placing the order
+    * @param storeID the store the order is placed at
+    * @param cart quantity ordered per item name, each item once
+    * @return the new order's ID and total price
+    * @throws java.lang.IllegalArgumentException when the store does not exist, the
+    *         cart is empty, names an item not on the menu or has a quantity below one
+    * @throws java.sql.SQLException when the order could not be written
+    */
+   public Receipt placeOrder (UserSession session, int storeID, Map<String, Integer> cart) throws SQLException {
+      check(session);
+      if (this._esql.getStores ().find (storeID) == null)
+         throw new IllegalArgumentException("Store not found: " + storeID);
+      if (cart.isEmpty ())
+         throw new IllegalArgumentException("No items selected");
+      MenuCatalog menu = getMenu ();
+      // the journal prices the order here, so the menu must be current, not a check old
+      if (this._esql.getJournal () != null)
+         menu.refresh ();
+      for (Map.Entry<String, Integer> line : cart.entrySet ()) {
+         if (menu.find (line.getKey ()) == null)
+            throw new IllegalArgumentException("Item not found: " + line.getKey ());
+         if (line.getValue () == null || line.getValue () <= 0)
+            throw new IllegalArgumentException("Quantity must be greater than zero: " + line.getKey ());
+      }//end for
+
+      // take a new orderID from the sequence-backed allocator
+      int orderID = this._esql.nextOrderId ();
+      String[] items = new String[cart.size ()];
+      Integer[] quantities = new Integer[cart.size ()];
+      int line = 0;
+      for (Map.Entry<String, Integer> entry : cart.entrySet ()) {
+         items[line] = entry.getKey ();
+         quantities[line++] = entry.getValue ();
+      }//end for
+
+      String totalPrice;
+      OrderJournal journal = this._esql.getJournal ();
+      if (journal != null) {
+         BigDecimal total = BigDecimal.ZERO;
+         int[] counts = new int[quantities.length];
+         for (int i = 0; i < items.length; ++i) {
+            total = total.add (menu.find (items[i]).price.multiply (BigDecimal.valueOf (quantities[i])));
+            counts[i] = quantities[i];
+         }//end for
+         total = total.setScale (2);
+         journal.append (new OrderJournal.Order(orderID, session.login, storeID, total,
+                                                System.currentTimeMillis (), items, counts));
+         totalPrice = total.toPlainString ();
+      }else {
+         totalPrice = this._esql.queryForValue (String.class, PizzaStore.PLACE_ORDER_QUERY,
+                                                orderID, session.login, storeID, items, quantities);
+      }//end if
+      this._recentOrders.orderPlaced (session.login, orderID);
+      return new Receipt(orderID, totalPrice);
+   }//end placeOrder
+
+   /**
+    * Method to read one order.  Customers only see their own orders;
+    * managers and drivers see any order.  Orders no longer in FoodOrder
+    * are looked up in the order archive.
+    *
+    * @param session the user asking
+    * @param orderID the order
+    * @return the order row, or no rows when it does not exist or is not visible to the user
+    * @throws java.sql.SQLException when the lookup failed
+    */
+   public List<List<String>> getOrderInfo (UserSession session, int orderID) throws SQLException {
+      check(session);
+      List<List<String>> rows = session.isCustomer ()
+         ? this._esql.executeQueryAndReturnResult (PizzaStore.CUSTOMER_ORDER_INFO_QUERY, orderID, session.login)
+         : this._esql.executeQueryAndReturnResult (PizzaStore.ORDER_INFO_QUERY, orderID);
+      if (rows.isEmpty ()) {
+         OrderArchive.Order archived = this._esql.getArchive ().find (orderID);
+         if (archived != null && (!session.isCustomer () || archived.login.equals (session.login)))
+            rows.add(archived.toRow ());
+      }//end if
+      return rows;
+   }//end getOrderInfo
+
+   /**
+    * Method to list the IDs of a user's five most recent orders, from
+    * memory unless the user's list is not cached.
+    *
+    * @param session the user
+    * @return one row per order, newest first
+    * @throws java.sql.SQLException when the list had to be loaded and that failed
+    */
+   public List<List<String>> getRecentOrders (UserSession session) throws SQLException {
+      check(session);
+      List<List<String>> rows = new ArrayList<List<String>>();
+      for (int orderID : this._recentOrders.get (session.login)) {
+         List<String> row = new ArrayList<String>(1);
+         row.add(Integer.toString (orderID));
+         rows.add(row);
+      }//end for
+      return rows;
+   }//end getRecentOrders
+
+   /**
+    * @return the size and hit rate of the recent orders cache
+    */
+   public String getRecentOrdersStats () {
+      return this._recentOrders.toString ();
+   }//end getRecentOrdersStats
+
+   /**
+    * Method to move an order to a new status.  Only managers and drivers
+    * may do this.
+    *
+    * @param session the user making the change
+    * @param orderID the order
+    * @param status one of ORDER_STATUSES
+    * @return false if there is no such order
+    * @throws java.lang.SecurityException when the user is neither a manager nor a driver
+    * @throws java.lang.IllegalArgumentException when the status is not one of ORDER_STATUSES
+    * @throws java.sql.SQLException when the update failed
+    */
+   public boolean updateOrderStatus (UserSession session, int orderID, String status) throws SQLException {
+      check(session);
+      if (!session.isManager () && !session.isDriver ())
+         throw new SecurityException("Only managers and drivers can update order status");
+      if (!isOrderStatus(status))
+         throw new IllegalArgumentException("Unknown order status: " + status);
+      return this._esql.executeUpdate (UPDATE_ORDER_STATUS_QUERY, status, orderID) > 0;
+   }//end updateOrderStatus
+
+   /**
+    * What a bulk status update did to one order.
+    */
+   public static class StatusChange {
+      public final int orderID;
+      // UPDATED, CONFLICT or NOT_FOUND
+      public final String result;
+      // the order's status now; for a conflict, the status another user set
+      public final String status;
+
+      StatusChange (int orderID, String result, String status) {
+         this.orderID = orderID;
+         this.result = result;
+         this.status = status;
+      }//end StatusChange
+   }//end StatusChange
+
+   /**
+    * Method to move many orders to a new status in one statement, e.g. a
+    * driver finishing a route.  Each order can name the status it is
+    * expected to have; an order whose status has changed since (because
+    * another driver or a manager moved it) is left alone and reported as a
+    * CONFLICT, so two users cannot overwrite each other.  Only managers and
+    * drivers may do this.
+    *
+    * @param session the user making the change
+    * @param expected the orders to move, each with the status it must still
+    *        have, or null to move it from any status
+    * @param status one of ORDER_STATUSES
+    * @return one result per order, in the order given
+    * @throws java.lang.SecurityException when the user is neither a manager nor a driver
+    * @throws java.lang.IllegalArgumentException when a status is not one of ORDER_STATUSES
+    * @throws java.sql.SQLException when the update failed
+    */
+   public List<StatusChange> updateOrderStatuses (UserSession session, Map<Integer, String> expected, String status)
+         throws SQLException {
+      check(session);
+      if (!session.isManager () && !session.isDriver ())
+         throw new SecurityException("Only managers and drivers can update order status");
+      if (!isOrderStatus(status))
+         throw new IllegalArgumentException("Unknown order status: " + status);
+      Integer[] orderIDs = new Integer[expected.size ()];
+      String[] statuses = new String[expected.size ()];
+      int i = 0;
+      for (Map.Entry<Integer, String> order : expected.entrySet ()) {
+         if (order.getValue () != null && !isOrderStatus(order.getValue ()))
+            throw new IllegalArgumentException("Unknown order status: " + order.getValue ());
+         orderIDs[i] = order.getKey ();
+         statuses[i++] = order.getValue ();
+      }//end for
+      if (orderIDs.length == 0)
+         return new ArrayList<StatusChange>();
+
+      Map<Integer, StatusChange> changes = new HashMap<Integer, StatusChange>();
+      for (List<String> row : this._esql.executeQueryAndReturnResult (BULK_UPDATE_ORDER_STATUS_QUERY,
+                                                                       orderIDs, statuses, status)) {
+         int orderID = Integer.parseInt (row.get(0));
+         if (isTrue(row.get(1)))
+            changes.put (orderID, new StatusChange(orderID, UPDATED, status));
+         else if (isTrue(row.get(2)))
+            changes.put (orderID, new StatusChange(orderID, CONFLICT, row.get(3)));
+         else
+            changes.put (orderID, new StatusChange(orderID, NOT_FOUND, null));
+      }//end for
+      List<StatusChange> results = new ArrayList<StatusChange>(orderIDs.length);
+      for (Integer orderID : orderIDs)
+         results.add(changes.get (orderID));
+      return results;
+   }//end updateOrderStatuses
+
+   /**
+    * Method to change one column of a menu item.  Only managers may do this.
+    *
+    * @param session the user making the change
+    * @param itemName the item
+    * @param field one of ITEM_FIELDS
+    * @param value the new value; a decimal for price, one of ITEM_TYPES for typeOfItem
+    * @return false if there is no such item
+    * @throws java.lang.SecurityException when the user is not a manager
+    * @throws java.lang.IllegalArgumentException when the field or value is not valid
+    * @throws java.sql.SQLException when the update failed
+    */
+   public boolean updateMenuItem (UserSession session, String itemName, String field, String value) throws SQLException {
+      check(session);
+      if (!session.isManager ())
+         throw new SecurityException("Only managers can update menu items");
+      if (!contains(ITEM_FIELDS, field))
+         throw new IllegalArgumentException("Unknown item field: " + field);
+
+      Object newValue = value;
+      if (field.equals ("price")) {
+         try {
+            newValue = new BigDecimal(value.trim ());
+         }catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid price: " + value);
+         }//end try
+         if (((BigDecimal) newValue).signum () < 0)
+            throw new IllegalArgumentException("Price must not be negative");
+      } else if (field.equals ("typeOfItem") && !contains(ITEM_TYPES, value)) {
+         throw new IllegalArgumentException("Unknown item type: " + value);
+      }//end if
+
+      // field was checked against ITEM_FIELDS, so it is safe to splice in
+      boolean found = this._esql.executeUpdate ("UPDATE Items SET " + field + " = ? WHERE itemName = ?",
+                                                newValue, itemName) > 0;
+      getMenu ().invalidate ();
+      return found;
+   }//end updateMenuItem
+
+   /**
+    * Method to rename a user.  Only managers may do this.  Sessions of the
+    * renamed user are no longer current.
+    *
+    * @param session the user making the change
+    * @param login the user to rename
+    * @param newLogin the new login
+    * @return false if there is no user with that login
+    * @throws java.lang.SecurityException when the user is not a manager
+    * @throws java.lang.IllegalArgumentException when the new login is taken
+    * @throws java.sql.SQLException when the update failed
+    */
+   public boolean updateUserLogin (UserSession session, String login, String newLogin) throws SQLException {
+      check(session);
+      if (!session.isManager ())
+         throw new SecurityException("Only managers can update users");
+      if (this._esql.exists (PizzaStore.USER_EXISTS_QUERY, newLogin))
+         throw new IllegalArgumentException("Username already exists: " + newLogin);
+      boolean found = this._esql.executeUpdate (UPDATE_LOGIN_QUERY, newLogin, login) > 0;
+      if (found) {
+         invalidateSessions(login);
+         this._recentOrders.invalidate (login);
+      }//end if
+      return found;
+   }//end updateUserLogin
+
+   /**
+    * Method to change a user's role.  Only managers may do this.  Sessions
+    * of that user are no longer current, so the new role applies from the
+    * user's next log in.
+    *
+    * @param session the user making the change
+    * @param login the user to change
+    * @param role one of ROLES
+    * @return false if there is no user with that login
+    * @throws java.lang.SecurityException when the user is not a manager
+    * @throws java.lang.IllegalArgumentException when the role is not one of ROLES
+    * @throws java.sql.SQLException when the update failed
+    */
+   public boolean updateUserRole (UserSession session, String login, String role) throws SQLException {
+      check(session);
+      if (!session.isManager ())
+         throw new SecurityException("Only managers can update users");
+      if (!contains(ROLES, role))
+         throw new IllegalArgumentException("Unknown role: " + role);
+      boolean found = this._esql.executeUpdate (UPDATE_ROLE_QUERY, role, login) > 0;
+      if (found)
+         invalidateSessions(login);
+      return found;
+   }//end updateUserRole
+
+   /**
+    * Method to rank the stores by revenue over a range of days.  Canceled
+    * orders are not counted.  Only managers may do this.
+    *
+    * @param session the user asking
+    * @param from the first day
+    * @param to the last day, included
+    * @param limit how many stores to return at most
+    * @return storeID, order count and revenue of each store, highest revenue first
+    * @throws java.lang.SecurityException when the user is not a manager
+    * @throws java.lang.IllegalArgumentException when the range ends before it starts
+    * @throws java.sql.SQLException when the report could not be read
+    */
+   public List<List<String>> getStoreSales (UserSession session, LocalDate from, LocalDate to, int limit) throws SQLException {
+      checkReport(session, from, to);
+      return this._esql.executeQueryAndReturnResult (STORE_SALES_QUERY,
+         Date.valueOf (from), Date.valueOf (to), Date.valueOf (from), Date.valueOf (to), limit);
+   }//end getStoreSales
+
+   /**
+    * Method to list one store's sales day by day.  Days without sales are
+    * left out.  Only managers may do this.
+    *
+    * @param session the user asking
+    * @param storeID the store
+    * @param from the first day
+    * @param to the last day, included
+    * @return day, order count and revenue, earliest day first
+    * @throws java.lang.SecurityException when the user is not a manager
+    * @throws java.lang.IllegalArgumentException when the range ends before it starts
+    * @throws java.sql.SQLException when the report could not be read
+    */
+   public List<List<String>> getStoreDailySales (UserSession session, int storeID, LocalDate from, LocalDate to) throws SQLException {
+      checkReport(session, from, to);
+      return this._esql.executeQueryAndReturnResult (STORE_DAILY_SALES_QUERY,
+         storeID, Date.valueOf (from), Date.valueOf (to), storeID, Date.valueOf (from), Date.valueOf (to));
+   }//end getStoreDailySales
+
+   /**
+    * Method to rank the menu items by quantity sold over a range of days.
+    * Only managers may do this.
+    *
+    * @param session the user asking
+    * @param from the first day
+    * @param to the last day, included
+    * @param limit how many items to return at most
+    * @return item name and quantity sold, best selling first
+    * @throws java.lang.SecurityException when the user is not a manager
+    * @throws java.lang.IllegalArgumentException when the range ends before it starts
+    * @throws java.sql.SQLException when the report could not be read
+    */
+   public List<List<String>> getTopItems (UserSession session, LocalDate from, LocalDate to, int limit) throws SQLException {
+      checkReport(session, from, to);
+      return this._esql.executeQueryAndReturnResult (TOP_ITEMS_QUERY,
+         Date.valueOf (from), Date.valueOf (to), Date.valueOf (from), Date.valueOf (to), limit);
+   }//end getTopItems
+
+   private void checkReport (UserSession session, LocalDate from, LocalDate to) {
+      check(session);
+      if (!session.isManager ())
+         throw new SecurityException("Only managers can view sales reports");
+      if (to.isBefore (from))
+         throw new IllegalArgumentException("The range ends before it starts");
+   }//end checkReport
+
+   private static boolean isOrderStatus (String status) {
+      return contains(ORDER_STATUSES, status);
+   }//end isOrderStatus
+
+   // booleans read as text come back as t or true depending on the driver
+   private static boolean isTrue (String value) {
+      return value != null && value.startsWith ("t");
+   }//end isTrue
+
+   private static boolean contains (String[] values, String value) {
+      for (String known : values)
+         if (known.equals (value))
+            return true;
+      return false;
+   }//end contains
+}//end PizzaService
@@ -14,15 +14,36 @@
 import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.BufferedWriter;
+import java.math.BigDecimal;
+import java.nio.file.Paths;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+import java.util.regex.Pattern;
 import java.lang.Math;
 
 /**
@@ -32,8 +53,145 @@ import java.lang.Math;
  */
 public class PizzaStore {
 
-   // reference to physical database connection.
-   private Connection _connection = null;
+   // pool of physical database connections shared by the query helpers.
+   private ConnectionPool _pool = null;
+
+   // pools of the read replicas read-only statements are spread over, if any
+   private ConnectionPool[] _replicas = new ConnectionPool[0];
+   private final AtomicInteger _nextReplica = new AtomicInteger();
+   private final AtomicLong _replicaFallbacks = new AtomicLong();
+
+   // whether each template may run on a replica, decided once per template
+   private final Map<String, Boolean> _readOnly = new ConcurrentHashMap<String, Boolean>();
+
+   // the user each thread works for, and when each user last wrote, so a
+   // user's reads stay on the primary until replicas have their writes
+   private final ThreadLocal<String> _caller = new ThreadLocal<String>();
+   private final Map<String, Long> _lastWrites = new ConcurrentHashMap<String, Long>();
+
+   // hands out new FoodOrder IDs from blocks reserved on the sequence
+   private final OrderIdAllocator _orderIds = new OrderIdAllocator(this);
+
+   // in-memory copy of the Items table serving all menu reads
+   private final MenuCatalog _menu = new MenuCatalog(this);
+
+   // in-memory copy of the Store table serving store selection and checks
+   private final StoreDirectory _stores = new StoreDirectory(this);
+
+   // latency, rows and failures per query template, also published through JMX
+   private final QueryMetrics _metrics = new QueryMetrics();
+
+   // orders acknowledged before they reach the database, when write-behind is on
+   private OrderJournal _journal = null;
+
+   // new orders and status changes pushed by the database, see OrderFeed
+   private OrderFeed _feed = null;
+
+   // finished orders moved out of the database, see OrderArchive
+   private final OrderArchive _archive = new OrderArchive(Paths.get(ARCHIVE_DIR));
+
+   // keeps FoodOrder's monthly partitions ahead, started by long-running programs
+   private final PartitionMaintainer _partitions = new PartitionMaintainer(this);
+
+   // folds the sales deltas into the rollups, started by long-running programs
+   private final SalesRollupFolder _rollups = new SalesRollupFolder(this);
+
+   // the operations behind the console menu, free of console input and output
+   private final PizzaService _service = new PizzaService(this);
+
+   // rows fetched per cursor round trip when printing query results
+   private static final int FETCH_SIZE = Integer.getInteger("pizzastore.fetchSize", 100);
+
+   // the cursor executeQueryAndPrintResult reads through, one at a time
+   // per connection
+   private static final String PRINT_CURSOR = "pizzastore_print";
+   private static final String PRINT_FETCH = "FETCH FORWARD " + FETCH_SIZE + " FROM " + PRINT_CURSOR;
+   private static final String PRINT_CLOSE = "CLOSE " + PRINT_CURSOR;
+
+   // stores shown per page when browsing the store directory
+   private static final int STORES_PER_PAGE = Integer.getInteger("pizzastore.storesPerPage", 20);
+
+   // widest a printed value is; longer ones are cut and end in ELLIPSIS
+   private static final int MAX_COLUMN_WIDTH = 30;
+   private static final String ELLIPSIS = "...";
+   private static final char[] SPACES = new char[MAX_COLUMN_WIDTH];
+   private static final char[] COLUMN_GAP = { ' ', ' ' };
+   static {
+      Arrays.fill(SPACES, ' ');
+   }
+
+   // buffered writer reused for all printed query results
+   private static final PrintWriter OUT = new PrintWriter(
+      new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16), false);
+
+   // query templates shared by the menu code and the benchmarks
+   static final String LOGIN_QUERY = "SELECT role FROM Users WHERE login = ? AND password = ?";
+   static final String RECENT_ORDERS_QUERY =
+      "SELECT OrderID as Recent_OrderIds FROM foodorder WHERE login = ? ORDER BY orderTimestamp DESC LIMIT 5";
+   static final String ORDER_INFO_QUERY = "SELECT * FROM FoodOrder WHERE orderID = ?";
+   static final String ORDER_STATUS_QUERY = "SELECT orderStatus FROM FoodOrder WHERE orderID = ?";
+   static final String USER_EXISTS_QUERY = "SELECT 1 FROM Users WHERE login = ? LIMIT 1";
+   static final String CUSTOMER_ORDER_INFO_QUERY = "SELECT * FROM FoodOrder WHERE orderID = ? AND login = ?";
+   // sql/src/create_functions.sql: writes an order and its lines, returns the total
+   static final String PLACE_ORDER_QUERY = "SELECT place_order(?, ?, ?, ?::varchar[], ?::integer[])";
+
+   // column name of the list printed by viewRecentOrders
+   private static final String[] RECENT_ORDERS_HEADER = { "recent_orderids" };
+
+   // column names of SELECT * FROM FoodOrder, for orders read from the archive
+   private static final String[] ORDER_INFO_HEADER =
+      { "orderid", "login", "storeid", "totalprice", "ordertimestamp", "orderstatus" };
+   // columns of the sales reports
+   private static final String[] STORE_SALES_HEADER = { "storeid", "orders", "revenue" };
+   private static final String[] STORE_DAILY_SALES_HEADER = { "salesdate", "orders", "revenue" };
+   private static final String[] ITEM_SALES_HEADER = { "itemname", "quantity" };
+   // rows per table of the sales reports
+   private static final int SALES_REPORT_ROWS = 10;
+   // days covered by the sales reports unless asked otherwise
+   private static final int SALES_REPORT_DAYS = 7;
+
+   // column names of a page of orders printed by browseOrders
+   private static final String[] ORDER_PAGE_HEADER =
+      { "orderid", "ordertimestamp", "login", "storeid", "totalprice", "orderstatus" };
+
+   // column names of the results printed by updateOrderStatus
+   private static final String[] STATUS_CHANGE_HEADER = { "orderid", "result", "orderstatus" };
+
+   // orders shown per page when browsing order history; users can change it
+   static int ordersPerPage = Integer.getInteger("pizzastore.pageSize", 20);
+
+   // pool sizing, overridable with -Dpizzastore.pool.* system properties
+   private static final int POOL_MAX_SIZE = Integer.getInteger("pizzastore.pool.maxSize", 10);
+   private static final int POOL_MIN_IDLE = Integer.getInteger("pizzastore.pool.minIdle", 1);
+   private static final long POOL_IDLE_TIMEOUT_MS = Long.getLong("pizzastore.pool.idleTimeoutMs", 300000L);
+   private static final long POOL_BORROW_TIMEOUT_MS = Long.getLong("pizzastore.pool.borrowTimeoutMs", 30000L);
+
+   // read replicas as host:port,host:port; empty sends everything to the primary
+   private static final String REPLICAS = System.getProperty("pizzastore.replicas", "");
+   private static final long READ_YOUR_WRITES_NANOS = Long.getLong("pizzastore.readYourWritesMs", 5000L) * 1000000L;
+
+   // statements that look like reads but write, and must run on the primary
+   private static final Pattern WRITES = Pattern.compile(
+      "\\b(INSERT|UPDATE|DELETE|nextval|setval|place_order|\\w+_foodorder_partitions|fold_sales_deltas|FOR\\s+UPDATE|FOR\\s+SHARE)\\b", Pattern.CASE_INSENSITIVE);
+
+   // where OrderArchive keeps its segment files
+   private static final String ARCHIVE_DIR = System.getProperty("pizzastore.archive", "archive");
+
+   // write-behind order placement, see OrderJournal
+   private static final boolean WRITE_BEHIND = Boolean.getBoolean("pizzastore.writeBehind");
+   private static final String JOURNAL_PATH = System.getProperty("pizzastore.journal", "orders.journal");
+   private static final int JOURNAL_SIZE_BYTES = Integer.getInteger("pizzastore.journal.sizeBytes", 64 << 20);
+
+   // connection of the transaction open on each thread, if any
+   private final ThreadLocal<ConnectionPool.Lease> _transaction =
+      new ThreadLocal<ConnectionPool.Lease>();
+
+   /*
+    * A unit of work run against a connection borrowed from the pool.
+    **/
+   private interface LeaseWork<T> {
+      T run (ConnectionPool.Lease lease) throws SQLException;
+   }
 
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
@@ -57,8 +215,23 @@ public class PizzaStore {
          String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
          System.out.println ("Connection URL: " + url + "\n");
 
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         // open the connection pool, which obtains the first physical connection
+         this._pool = new ConnectionPool(url, user, passwd, POOL_MAX_SIZE, POOL_MIN_IDLE,
+                                         POOL_IDLE_TIMEOUT_MS, POOL_BORROW_TIMEOUT_MS);
+         List<ConnectionPool> replicas = new ArrayList<ConnectionPool>();
+         for (String replica : REPLICAS.split(",")) {
+            if (replica.trim().isEmpty())
+               continue;
+            String replicaUrl = "jdbc:postgresql://" + replica.trim() + "/" + dbname;
+            System.out.println ("Replica URL: " + replicaUrl);
+            replicas.add(new ConnectionPool(replicaUrl, user, passwd, POOL_MAX_SIZE, POOL_MIN_IDLE,
+                                            POOL_IDLE_TIMEOUT_MS, POOL_BORROW_TIMEOUT_MS));
+         }//end for
+         this._replicas = replicas.toArray(new ConnectionPool[0]);
+         this._metrics.register ();
+         this._feed = new OrderFeed(this._pool);
+         if (WRITE_BEHIND)
+            this._journal = new OrderJournal(this, JOURNAL_PATH, JOURNAL_SIZE_BYTES);
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -67,128 +240,573 @@ public class PizzaStore {
       }//end catch
    }//end PizzaStore
 
+   /**
+    * Method to borrow a connection from the pool, run a unit of work on it
+    * and hand it back, discarding the connection if it failed underneath.
+    * Read-only statements go to a replica, in turn, unless the calling
+    * thread's user wrote within the read-your-writes window; everything
+    * else, and everything inside a transaction, goes to the primary.
+    *
+    * @param sql the statement the work runs, which decides where it runs
+    * @param work the work to run on the borrowed connection
+    * @return the result of the work
+    * @throws java.sql.SQLException when the work or the borrow failed
+    */
+   private <T> T withLease (String sql, LeaseWork<T> work) throws SQLException {
+      boolean readOnly = isReadOnly(sql);
+      if (!readOnly)
+         noteWrite();
+
+      // work inside an open transaction stays on the transaction's connection
+      ConnectionPool.Lease bound = this._transaction.get ();
+      if (bound != null) {
+         try {
+            return work.run(bound);
+         }catch (SQLException e) {
+            bound.failed(e);
+            throw e;
+         }//end try
+      }//end if
+
+      if (readOnly && this._replicas.length > 0 && !wroteRecently()) {
+         ConnectionPool replica = this._replicas[Math.floorMod(this._nextReplica.getAndIncrement(), this._replicas.length)];
+         ConnectionPool.Lease lease;
+         try {
+            lease = replica.borrow ();
+         }catch (SQLException e) {
+            // an unreachable replica costs a read its offload, not its answer
+            this._replicaFallbacks.incrementAndGet ();
+            return runOn(this._pool, work);
+         }//end try
+         return runOn(replica, lease, work);
+      }//end if
+      return runOn(this._pool, work);
+   }//end withLease
+
+   private static <T> T runOn (ConnectionPool pool, LeaseWork<T> work) throws SQLException {
+      return runOn(pool, pool.borrow (), work);
+   }//end runOn
+
+   private static <T> T runOn (ConnectionPool pool, ConnectionPool.Lease lease, LeaseWork<T> work) throws SQLException {
+      try {
+         return work.run(lease);
+      }catch (SQLException e) {
+         lease.failed(e);
+         throw e;
+      }finally {
+         pool.release(lease);
+      }//end try
+   }//end runOn
+
+   /**
+    * Method to name the user the calling thread works for from now on, so
+    * that user's reads right after a write are served by the primary.
+    * PizzaService calls it at the start of every operation.
+    *
+    * @param login the user, or null for none
+    */
+   public void bindCaller (String login) {
+      if (login == null)
+         this._caller.remove ();
+      else
+         this._caller.set (login);
+   }//end bindCaller
+
+   /*
+    * Whether a template may run on a replica: a SELECT (or WITH) that
+    * neither changes rows nor takes row locks.  The cached loads and their
+    * version checks read the primary, so a lagging replica cannot pin a
+    * stale copy.
+    **/
+   private boolean isReadOnly (String sql) {
+      Boolean readOnly = this._readOnly.get (sql);
+      if (readOnly == null) {
+         String head = sql.trim ().toUpperCase ();
+         readOnly = (head.startsWith ("SELECT") || head.startsWith ("WITH"))
+                    && !WRITES.matcher (sql).find ()
+                    && !sql.equals (MenuCatalog.LOAD_QUERY) && !sql.equals (StoreDirectory.LOAD_QUERY)
+                    && !sql.equals (MenuCatalog.VERSION_QUERY) && !sql.equals (StoreDirectory.VERSION_QUERY);
+         this._readOnly.put (sql, readOnly);
+      }//end if
+      return readOnly;
+   }//end isReadOnly
+
+   private void noteWrite () {
+      String login = this._caller.get ();
+      if (login == null || this._replicas.length == 0)
+         return;
+      long now = System.nanoTime ();
+      this._lastWrites.put (login, now);
+      // forget users whose window has passed, now and then
+      if (this._lastWrites.size () > 10000)
+         this._lastWrites.values ().removeIf (at -> now - at > READ_YOUR_WRITES_NANOS);
+   }//end noteWrite
+
+   private boolean wroteRecently () {
+      String login = this._caller.get ();
+      Long at = login == null ? null : this._lastWrites.get (login);
+      return at != null && System.nanoTime () - at < READ_YOUR_WRITES_NANOS;
+   }//end wroteRecently
+
+   /**
+    * Method to run a statement through withLease and record its latency,
+    * row count and failure under its query template.
+    *
+    * @param sql the query template, used as the metrics key
+    * @param work the work to run on the borrowed connection
+    * @param rowCount how many rows the work's result stands for
+    * @return the result of the work
+    * @throws java.sql.SQLException when the work or the borrow failed
+    */
+   private <T> T measured (String sql, LeaseWork<T> work, ToLongFunction<T> rowCount) throws SQLException {
+      long start = System.nanoTime ();
+      T result = null;
+      boolean failed = true;
+      try {
+         result = withLease(sql, work);
+         failed = false;
+         return result;
+      }finally {
+         this._metrics.record (sql, System.nanoTime () - start, failed ? 0 : rowCount.applyAsLong (result), failed);
+      }//end try
+   }//end measured
+
+   private static long updatedRows (int[] counts) {
+      long rows = 0;
+      for (int count : counts)
+         rows += Math.max(count, 0);
+      return rows;
+   }//end updatedRows
+
+   /**
+    * Method to fetch the prepared statement for a query template from the
+    * lease's statement cache, preparing it on first use, and bind its
+    * parameters.  Each distinct template is parsed and planned once per
+    * connection.
+    *
+    * @param lease the borrowed connection
+    * @param sql the query template, using ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the prepared statement ready to execute
+    * @throws java.sql.SQLException when the statement cannot be prepared
+    */
+   private static PreparedStatement prepare (ConnectionPool.Lease lease, String sql, Object... params) throws SQLException {
+      PreparedStatement stmt = lease.prepare(sql);
+      bind(stmt, params);
+      return stmt;
+   }//end prepare
+
+   /*
+    * Binds parameters in order.  Arrays are sent as Postgres array literals,
+    * so the template casts their placeholder, e.g. ?::integer[]; this works
+    * with drivers that predate Connection.createArrayOf.
+    **/
+   private static void bind (PreparedStatement stmt, Object... params) throws SQLException {
+      stmt.clearParameters ();
+      for (int i = 0; i < params.length; ++i) {
+         if (params[i] instanceof Object[])
+            stmt.setString (i + 1, arrayLiteral((Object[]) params[i]));
+         else
+            stmt.setObject (i + 1, params[i]);
+      }//end for
+   }//end bind
+
+   private static String arrayLiteral (Object[] values) {
+      StringBuilder literal = new StringBuilder("{");
+      for (int i = 0; i < values.length; ++i) {
+         if (i > 0)
+            literal.append (',');
+         if (values[i] == null) {
+            literal.append ("NULL");
+            continue;
+         }//end if
+         literal.append ('"');
+         String value = values[i].toString ();
+         for (int j = 0; j < value.length (); ++j) {
+            char c = value.charAt (j);
+            if (c == '"' || c == '\\')
+               literal.append ('\\');
+            literal.append (c);
+         }//end for
+         literal.append ('"');
+      }//end for
+      return literal.append ('}').toString ();
+   }//end arrayLiteral
+
+   /**
+    * Method to start a transaction on the calling thread.  Until commit or
+    * rollback, every helper called from this thread runs on the same
+    * connection with autocommit off.
+    *
+    * @throws java.sql.SQLException when a transaction is already open or no connection is available
+    */
+   public void beginTransaction () throws SQLException {
+      if (this._transaction.get () != null)
+         throw new SQLException("A transaction is already open on this thread");
+      ConnectionPool.Lease lease = this._pool.borrow ();
+      try {
+         lease.connection ().setAutoCommit (false);
+      }catch (SQLException e) {
+         lease.failed(e);
+         this._pool.release(lease);
+         throw e;
+      }//end try
+      this._transaction.set(lease);
+   }//end beginTransaction
+
+   /**
+    * Method to commit the calling thread's transaction and return its
+    * connection to the pool.
+    *
+    * @throws java.sql.SQLException when no transaction is open or the commit failed
+    */
+   public void commit () throws SQLException {
+      ConnectionPool.Lease lease = this._transaction.get ();
+      if (lease == null)
+         throw new SQLException("No transaction is open on this thread");
+      this._transaction.remove ();
+      long start = System.nanoTime ();
+      boolean failed = true;
+      try {
+         lease.connection ().commit ();
+         failed = false;
+         // the window for reading one's own writes starts when they are visible
+         noteWrite();
+      }catch (SQLException e) {
+         lease.failed(e);
+         throw e;
+      }finally {
+         this._metrics.record ("COMMIT", System.nanoTime () - start, 0, failed);
+         this._pool.release(lease);
+      }//end try
+   }//end commit
+
+   /**
+    * Method to roll back the calling thread's transaction, if any, and
+    * return its connection to the pool.
+    */
+   public void rollback () {
+      ConnectionPool.Lease lease = this._transaction.get ();
+      if (lease == null)
+         return;
+      this._transaction.remove ();
+      try {
+         lease.connection ().rollback ();
+      }catch (SQLException e) {
+         lease.failed(e);
+      }finally {
+         this._pool.release(lease);
+      }//end try
+   }//end rollback
+
+   /**
+    * Method to execute one update SQL statement for many sets of
+    * parameters, sent to the DBMS as a single JDBC batch.
+    *
+    * @param sql the input SQL template, using ? placeholders
+    * @param rows the values bound for each execution, in order
+    * @return the update count of each execution
+    * @throws java.sql.SQLException when update failed
+    */
+   public int[] executeBatch (String sql, List<Object[]> rows) throws SQLException {
+      return measured(sql, lease -> {
+         PreparedStatement stmt = lease.prepare(sql);
+         for (Object[] row : rows) {
+            bind(stmt, row);
+            stmt.addBatch ();
+         }//end for
+         return stmt.executeBatch ();
+      }, PizzaStore::updatedRows);
+   }//end executeBatch
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
     *
-    * @param sql the input SQL string
+    * @param sql the input SQL template, using ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows changed
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the update instruction
-      stmt.executeUpdate (sql);
-
-      // close the instruction
-      stmt.close ();
+   public int executeUpdate (String sql, Object... params) throws SQLException {
+      // issues the update instruction through the cached statement
+      return measured(sql, lease -> prepare(lease, sql, params).executeUpdate (), count -> count);
    }//end executeUpdate
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and outputs the results to
-    * standard out.
+    * standard out.  The bundled driver reads a whole result into memory,
+    * so rows are read through a DECLAREd cursor in a read transaction,
+    * FETCH_SIZE rows per FETCH, and written through one buffered writer
+    * with fixed column widths taken from the result metadata.  Memory
+    * stays flat and the first rows show up right away however large the
+    * result is.
     *
-    * @param query the input query string
+    * @param query the input query template, using ? placeholders
+    * @param params the values bound to the placeholders, in order
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+   public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+      return measured(query, lease -> {
+         // a cursor only lives inside a transaction
+         Connection conn = lease.connection ();
+         boolean readTransaction = conn.getAutoCommit ();
+         if (readTransaction)
+            conn.setAutoCommit (false);
+         int rowCount;
+         try {
+            // issues the query instruction
+            prepare(lease, "DECLARE " + PRINT_CURSOR + " NO SCROLL CURSOR FOR " + query, params).execute ();
+            rowCount = printResult(lease.prepare (PRINT_FETCH));
+            lease.prepare (PRINT_CLOSE).execute ();
+         }catch (SQLException | RuntimeException e) {
+            if (readTransaction) {
+               // the query's own error is the one reported
+               try {
+                  conn.rollback ();
+                  conn.setAutoCommit (true);
+               }catch (SQLException r) {
+                  e.addSuppressed(r);
+               }//end try
+            }//end if
+            throw e;
+         }//end try
+         if (readTransaction) {
+            conn.commit ();
+            conn.setAutoCommit (true);
+         }//end if
+         return rowCount;
+      }, count -> count);
+   }//end executeQuery
 
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
+   /*
+    * Fetches the print cursor until it runs dry and writes it to standard
+    * out, one padded line per row.
+    **/
+   private static int printResult (PreparedStatement fetch) throws SQLException {
       int rowCount = 0;
-
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-		 if(outputHeader){
-			for(int i = 1; i <= numCol; i++){
-			System.out.print(rsmd.getColumnName(i) + "\t");
-			}
-			System.out.println();
-			outputHeader = false;
-		 }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close();
+      int numCol = 0;
+      int[] widths = null;
+      String[] names = null;
+
+      synchronized (OUT) {
+         for (int fetched = FETCH_SIZE; fetched == FETCH_SIZE; ) {
+            fetched = 0;
+            ResultSet rs = fetch.executeQuery ();
+            try {
+               if (widths == null) {
+                  /*
+                   ** obtains the metadata object for the returned result set.  The metadata
+                   ** contains row and column info.
+                   */
+                  ResultSetMetaData rsmd = rs.getMetaData ();
+                  numCol = rsmd.getColumnCount ();
+
+                  // column widths are fixed from the first fetch, so each
+                  // row is written as soon as it arrives
+                  widths = new int[numCol + 1];
+                  names = new String[numCol + 1];
+                  for (int i = 1; i <= numCol; i++) {
+                     names[i] = rsmd.getColumnName(i);
+                     widths[i] = Math.max(names[i].length (),
+                                          Math.min(rsmd.getColumnDisplaySize(i), MAX_COLUMN_WIDTH));
+                  }//end for
+               }//end if
+
+               // iterates through the result set and output them to standard out.
+               while (rs.next()){
+                  if (rowCount + fetched == 0) {
+                     for(int i = 1; i <= numCol; i++)
+                        printCell(names[i], widths[i]);
+                     OUT.println ();
+                  }//end if
+                  for (int i=1; i<=numCol; ++i)
+                     printCell(rs.getString (i), widths[i]);
+                  OUT.println ();
+                  ++fetched;
+               }//end while
+            }finally {
+               rs.close ();
+            }//end try
+            rowCount += fetched;
+
+            // a screenful per fetch
+            OUT.flush ();
+         }//end for
+      }
       return rowCount;
-   }//end executeQuery
+   }//end printResult
+
+   /*
+    * Writes one cell left-aligned in its column, without trailing char(n)
+    * padding, and cut to MAX_COLUMN_WIDTH with "..." at the end.
+    **/
+   private static void printCell (String value, int width) {
+      if (value == null)
+         value = "null";
+      int end = value.length ();
+      while (end > 0 && value.charAt(end - 1) == ' ')
+         --end;
+      if (end > MAX_COLUMN_WIDTH) {
+         OUT.write (value, 0, MAX_COLUMN_WIDTH - ELLIPSIS.length ());
+         OUT.write (ELLIPSIS);
+         end = MAX_COLUMN_WIDTH;
+      }else
+         OUT.write (value, 0, end);
+      for (int pad = width - end; pad > 0; pad -= SPACES.length)
+         OUT.write (SPACES, 0, Math.min(pad, SPACES.length));
+      OUT.write (COLUMN_GAP);
+   }//end printCell
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the results as
     * a list of records. Each record in turn is a list of attribute values
     *
-    * @param query the input query string
+    * @param query the input query template, using ? placeholders
+    * @param params the values bound to the placeholders, in order
     * @return the query result as a list of records
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+   public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+      return measured(query, lease -> {
+         // issues the query instruction
+         ResultSet rs = prepare(lease, query, params).executeQuery ();
 
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and saves the data returned by the query.
-      boolean outputHeader = false;
-      List<List<String>> result  = new ArrayList<List<String>>();
-      while (rs.next()){
-        List<String> record = new ArrayList<String>();
-		for (int i=1; i<=numCol; ++i)
-			record.add(rs.getString (i));
-        result.add(record);
-      }//end while
-      stmt.close ();
-      return result;
+         /*
+          ** obtains the metadata object for the returned result set.  The metadata
+          ** contains row and column info.
+          */
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         int numCol = rsmd.getColumnCount ();
+         int rowCount = 0;
+
+         // iterates through the result set and saves the data returned by the query.
+         boolean outputHeader = false;
+         List<List<String>> result  = new ArrayList<List<String>>();
+         while (rs.next()){
+            List<String> record = new ArrayList<String>();
+            for (int i=1; i<=numCol; ++i)
+               record.add(rs.getString (i));
+            result.add(record);
+         }//end while
+         rs.close ();
+         return result;
+      }, List::size);
    }//end executeQueryAndReturnResult
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the number of results
     *
-    * @param query the input query string
+    * @param query the input query template, using ? placeholders
+    * @param params the values bound to the placeholders, in order
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
+   public int executeQuery (String query, Object... params) throws SQLException {
+       return measured(query, lease -> {
+          // issues the query instruction
+          ResultSet rs = prepare(lease, query, params).executeQuery ();
+
+          int rowCount = 0;
+
+          // iterates through the result set and count nuber of results.
+          while (rs.next()){
+             rowCount++;
+          }//end while
+          rs.close ();
+          return rowCount;
+       }, count -> count);
+   }
 
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+   /**
+    * Method to tell whether a query returns any row.  Only the first row
+    * is read, so callers should send a probe that returns one small row,
+    * e.g. SELECT 1 FROM ... WHERE ... LIMIT 1.
+    *
+    * @param query the input query template, using ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return true if the query returned at least one row
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public boolean exists (String query, Object... params) throws SQLException {
+      return measured(query, lease -> {
+         ResultSet rs = prepare(lease, query, params).executeQuery ();
+         try {
+            return rs.next ();
+         }finally {
+            rs.close ();
+         }//end try
+      }, found -> found ? 1 : 0);
+   }//end exists
 
-       int rowCount = 0;
+   /**
+    * Method to read the first column of the first row of a query as a
+    * value of the given type.  Only the first row is read.
+    *
+    * @param type String, Integer, Long, BigDecimal or Boolean
+    * @param query the input query template, using ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the value, or null if the query returned no row or a NULL
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public <T> T queryForValue (Class<T> type, String query, Object... params) throws SQLException {
+      return measured(query, lease -> {
+         ResultSet rs = prepare(lease, query, params).executeQuery ();
+         try {
+            if (!rs.next ())
+               return null;
+            Object value;
+            if (type == String.class)
+               value = rs.getString (1);
+            else if (type == Integer.class)
+               value = rs.getInt (1);
+            else if (type == Long.class)
+               value = rs.getLong (1);
+            else if (type == BigDecimal.class)
+               value = rs.getBigDecimal (1);
+            else if (type == Boolean.class)
+               value = rs.getBoolean (1);
+            else
+               value = rs.getObject (1);
+            return rs.wasNull () ? null : type.cast (value);
+         }finally {
+            rs.close ();
+         }//end try
+      }, value -> value == null ? 0 : 1);
+   }//end queryForValue
 
-       // iterates through the result set and count nuber of results.
-       while (rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
-   }
+   /**
+    * Method to print rows already read into memory under the given column
+    * names, in the same layout as executeQueryAndPrintResult.
+    *
+    * @param header the column names
+    * @param rows the rows to print, one value per column
+    */
+   public static void printRows (String[] header, List<List<String>> rows) {
+      int[] widths = new int[header.length];
+      for (int i = 0; i < header.length; i++)
+         widths[i] = header[i].length ();
+      for (List<String> row : rows)
+         for (int i = 0; i < header.length; i++)
+            if (row.get(i) != null)
+               widths[i] = Math.max(widths[i], Math.min(row.get(i).stripTrailing ().length (), MAX_COLUMN_WIDTH));
+
+      synchronized (OUT) {
+         for (int i = 0; i < header.length; i++)
+            printCell(header[i], widths[i]);
+         OUT.println ();
+         for (List<String> row : rows) {
+            for (int i = 0; i < header.length; i++)
+               printCell(row.get(i), widths[i]);
+            OUT.println ();
+         }//end for
+         OUT.flush ();
+      }
+   }//end printRows
 
    /**
     * Method to fetch the last value from sequence. This
@@ -200,25 +818,112 @@ public class PizzaStore {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
-
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-	if (rs.next())
-		return rs.getInt(1);
-	return -1;
+	Integer value = queryForValue(Integer.class, "SELECT currval(?)", sequence);
+	return value == null ? -1 : value;
    }
 
    /**
-    * Method to close the physical connection if it is open.
+    * Method to allocate the ID for a new FoodOrder row.
+    *
+    * @return an order ID no other session will receive
+    * @throws java.sql.SQLException when failed to reserve a block of IDs
+    */
+   public int nextOrderId () throws SQLException {
+      return this._orderIds.nextId ();
+   }//end nextOrderId
+
+   /**
+    * @return the menu catalog; call invalidate on it after changing Items
+    */
+   public MenuCatalog getMenu () {
+      return this._menu;
+   }//end getMenu
+
+   /**
+    * @return the store directory; call invalidate on it after changing Store
+    */
+   public StoreDirectory getStores () {
+      return this._stores;
+   }//end getStores
+
+   /**
+    * @return the feed of new orders and status changes
+    */
+   public OrderFeed getFeed () {
+      return this._feed;
+   }//end getFeed
+
+   /**
+    * @return the archive of finished orders moved out of the database
+    */
+   public OrderArchive getArchive () {
+      return this._archive;
+   }//end getArchive
+
+   /**
+    * @return the maintainer of FoodOrder's partitions
+    */
+   public PartitionMaintainer getPartitions () {
+      return this._partitions;
+   }//end getPartitions
+
+   /**
+    * @return the folder of the sales deltas into the rollups
+    */
+   public SalesRollupFolder getRollups () {
+      return this._rollups;
+   }//end getRollups
+
+   /**
+    * @return the order journal, or null when orders are written directly
+    */
+   public OrderJournal getJournal () {
+      return this._journal;
+   }//end getJournal
+
+   /**
+    * @return the operations behind the console menu, for scripted and concurrent callers
+    */
+   public PizzaService getService () {
+      return this._service;
+   }//end getService
+
+   /**
+    * @return the latency, rows and failures recorded per query template
+    */
+   public QueryMetrics getMetrics () {
+      return this._metrics;
+   }//end getMetrics
+
+   /**
+    * @return the connection pool state and borrow wait metrics
+    */
+   public String getPoolStats () {
+      StringBuilder stats = new StringBuilder(this._pool.toString ());
+      for (int i = 0; i < this._replicas.length; ++i)
+         stats.append (" replica").append (i + 1).append (this._replicas[i]);
+      if (this._replicas.length > 0)
+         stats.append (" replicaFallbacks=").append (this._replicaFallbacks.get ());
+      return stats.toString ();
+   }//end getPoolStats
+
+   /**
+    * Method to close the pooled physical connections if they are open.
     */
    public void cleanup(){
-      try{
-         if (this._connection != null){
-            this._connection.close ();
-         }//end if
-      }catch (SQLException e){
-         // ignored.
-      }//end try
+      // the journal writer still needs the pool to drain
+      if (this._journal != null)
+         this._journal.close ();
+      if (this._feed != null)
+         this._feed.close ();
+      this._partitions.stop ();
+      this._rollups.stop ();
+      this._metrics.close ();
+      for (ConnectionPool replica : this._replicas)
+         replica.close ();
+      if (this._pool != null){
+         this._pool.close ();
+      }//end if
    }//end cleanup
 
    /**
@@ -247,6 +952,8 @@ public class PizzaStore {
          String dbport = args[1];
          String user = args[2];
          esql = new PizzaStore (dbname, dbport, user, "");
+         esql.getPartitions ().start ();
+         esql.getRollups ().start ();
 
          boolean keepon = true;
          while(keepon) {
@@ -257,14 +964,16 @@ public class PizzaStore {
             System.out.println("1. Create user");
             System.out.println("2. Log in");
             System.out.println("9. < EXIT");
-            String authorisedUser = null;
+            UserSession session = null;
             switch (readChoice()){
                case 1: CreateUser(esql); break;
-               case 2: authorisedUser = LogIn(esql); break;
+               case 2: session = LogIn(esql); break;
                case 9: keepon = false; break;
                default : System.out.println("Unrecognized choice!"); break;
             }//end switch
-            if (authorisedUser != null) {
+            if (session != null) {
+              // reads right after this user's writes stay on the primary
+              esql.bindCaller(session.login);
               boolean usermenu = true;
               while(usermenu) {
             
@@ -299,24 +1008,39 @@ public class PizzaStore {
                 //**the following functionalities should ony be able to be used by managers**
                 System.out.println("10. Update Menu");
                 System.out.println("11. Update User");
+                System.out.println("12. View Query Metrics");
+                System.out.println("13. Watch Order Events");
+                System.out.println("14. View Archived Sales");
+                System.out.println("15. View Store Sales");
+                System.out.println("16. View Top Items");
 
                 System.out.println(".........................");
                 System.out.println("20. Log out");
                 switch (readChoice()){
-                    case 1: viewProfile(esql, authorisedUser); break;
-                   case 2: updateProfile(esql, authorisedUser); break;
+                    case 1: viewProfile(esql, session); break;
+                   case 2: updateProfile(esql, session); break;
                    case 3: viewMenu(esql); break;
-                   case 4: placeOrder(esql, authorisedUser); break;
-                   case 5: viewAllOrders(esql, authorisedUser); break;
-                   case 6: viewRecentOrders(esql, authorisedUser); break;
-                   case 7: viewOrderInfo(esql, authorisedUser); break;
+                   case 4: placeOrder(esql, session); break;
+                   case 5: viewAllOrders(esql, session); break;
+                   case 6: viewRecentOrders(esql, session); break;
+                   case 7: viewOrderInfo(esql, session); break;
                    case 8: viewStores(esql); break;
-                   case 9: updateOrderStatus(esql, authorisedUser); break;
-                   case 10: updateMenu(esql, authorisedUser); break;
-                   case 11: updateUser(esql, authorisedUser); break;
+                   case 9: updateOrderStatus(esql, session); break;
+                   case 10: updateMenu(esql, session); break;
+                   case 11: updateUser(esql, session); break;
+                   case 12: viewQueryMetrics(esql, session); break;
+                   case 13: watchOrderEvents(esql, session); break;
+                   case 14: viewArchivedSales(esql, session); break;
+                   case 15: viewStoreSales(esql, session); break;
+                   case 16: viewTopItems(esql, session); break;
                    case 20: usermenu = false; break;
                    default : System.out.println("Unrecognized choice!"); break;
                 }
+                // a manager changed this user's login or role
+                if (usermenu && !esql.getService().isCurrent(session)) {
+                   System.out.println("Your account was changed. Please log in again.");
+                   usermenu = false;
+                }
               }
             }
          }//end while
@@ -380,10 +1104,7 @@ public class PizzaStore {
         }
 
       // Since User Name Is A Primary Key, We Must Make Sure Its Unique
-      String checkUserQuery = String.format("SELECT * FROM Users WHERE login = '%s'", login);
-      int userExists = esql.executeQuery(checkUserQuery);
-
-      if (userExists > 0) 
+      if (esql.exists(USER_EXISTS_QUERY, login)) 
       {
          System.out.println("User Already Exists. Please Choose A Different Username.");
          return;
@@ -442,18 +1163,14 @@ public class PizzaStore {
 
       // Default Roles
       String role = "customer";  
-      String favoriteItems = "NULL";
 
-      // Creating String To Insert User Into DataBase
-      String insertUserQuery = String.format
-      (
+      // Creating String To Insert User Into DataBase, No Favorite Item Yet
+      String insertUserQuery =
          "INSERT INTO Users (login, password, role, favoriteItems, phoneNum) " +
-         "VALUES ('%s', '%s', '%s', %s, '%s')", 
-         login, password, role, favoriteItems, phoneNum
-      );
+         "VALUES (?, ?, ?, NULL, ?)";
 
       // Inserting User Into DataBase
-      esql.executeUpdate(insertUserQuery);
+      esql.executeUpdate(insertUserQuery, login, password, role, phoneNum);
       System.out.println("Account Successfully Created. Please Log In.");
 
     } 
@@ -467,9 +1184,9 @@ public class PizzaStore {
 
    /*
     * Check log in credentials for an existing user
-    * @return User login or null is the user does not exist
+    * @return the user's session or null is the user does not exist
     **/
-   public static String LogIn(PizzaStore esql)
+   public static UserSession LogIn(PizzaStore esql)
    {
     try {
       System.out.print("If You Wish To Exit, Type 'exit' Anytime. \n");
@@ -491,18 +1208,14 @@ public class PizzaStore {
             return null;
         }
 
-        // Check If Username & Password Matching
-        String query = String.format
-        (
-            "SELECT * FROM Users WHERE login = '%s' AND password = '%s'", login, password
-        );
-        int userExists = esql.executeQuery(query);
+        // Check If Username & Password Matching, Reading The Role Too
+        UserSession session = esql.getService().logIn(login, password);
 
-        if (userExists > 0) 
+        if (session != null) 
         {
             System.out.println("Login Successful! Hello, " + login);
             // Returns Session
-            return login; 
+            return session; 
         } 
         else 
         {
@@ -520,14 +1233,14 @@ public class PizzaStore {
 
 // Rest of the functions definition go in here
 
-    public static void viewProfile(PizzaStore esql, String authorisedUser) 
+    public static void viewProfile(PizzaStore esql, UserSession session) 
    {
       try {
         System.out.println("------------");
-        System.out.println(authorisedUser + "'s Profile Data:");
+        System.out.println(session.login + "'s Profile Data:");
         System.out.println("------------");
-        String query = String.format("SELECT u.favoriteItems, u.phoneNum FROM Users u WHERE u.login = '%s'", authorisedUser);
-        esql.executeQueryAndPrintResult(query);
+        String query = "SELECT u.favoriteItems, u.phoneNum FROM Users u WHERE u.login = ?";
+        esql.executeQueryAndPrintResult(query, session.login);
       }
       catch (Exception e) 
       {
@@ -535,7 +1248,7 @@ public class PizzaStore {
       }
    }
 
-   public static void updateProfile(PizzaStore esql, String authorisedUser) {
+   public static void updateProfile(PizzaStore esql, UserSession session) {
       try {
         System.out.println("------------");
         System.out.println("Profile Options:");
@@ -556,25 +1269,22 @@ public class PizzaStore {
 
                // current favorite item
                System.out.println("Your current favorite item:");
-               query = String.format("SELECT favoriteItems FROM Users WHERE login = '%s'", authorisedUser);
-               esql.executeQueryAndPrintResult(query);
+               query = "SELECT favoriteItems FROM Users WHERE login = ?";
+               esql.executeQueryAndPrintResult(query, session.login);
 
                //  items to choose from
                System.out.println("-------------------------------");
                System.out.println("Available items to choose from:");
                System.out.println("-------------------------------");
 
-               String itemQuery = "SELECT itemName FROM Items";
-               esql.executeQueryAndPrintResult(itemQuery);
+               MenuCatalog.print(esql.getMenu().all(), false);
 
                System.out.println("-------------------------------");
                System.out.println("Enter New Favorite Item:");
 
                String userItemChoice = in.readLine().trim();
-               String checkUserQuery = String.format("SELECT * FROM Items WHERE itemName = '%s'", userItemChoice);
-               int itemExists = esql.executeQuery(checkUserQuery);
 
-               while(itemExists == 0) 
+               while(esql.getMenu().find(userItemChoice) == null) 
                {
                   // // sql query failed, so reprint menu
                   // System.out.println("Available items to choose from:");
@@ -583,32 +1293,28 @@ public class PizzaStore {
                   // Error handling, output error message and get new user input
                   System.out.println("Error: Item Doesnt Exists. Choose a Different One.");
                   userItemChoice = in.readLine().trim();
-
-                  // execute sql query again
-                  checkUserQuery = String.format("SELECT * FROM Items WHERE itemName = '%s'", userItemChoice);
-                  itemExists = esql.executeQuery(checkUserQuery);
                }
 
                
                // update the favorite item in the database`
-               updateQuery = String.format("UPDATE Users SET favoriteItems = '%s' WHERE login = '%s'", userItemChoice, authorisedUser);
-               esql.executeUpdate(updateQuery);
+               updateQuery = "UPDATE Users SET favoriteItems = ? WHERE login = ?";
+               esql.executeUpdate(updateQuery, userItemChoice, session.login);
 
                System.out.println("Favorite item updated successfully to: " + userItemChoice);
 
                 break; 
             case 2:
                // current phone number
-               query = String.format("SELECT phoneNum FROM Users WHERE login = '%s'", authorisedUser);
-               esql.executeQueryAndPrintResult(query);
+               query = "SELECT phoneNum FROM Users WHERE login = ?";
+               esql.executeQueryAndPrintResult(query, session.login);
 
                // new phone number
                System.out.println("Enter Your New Phone Number:");
                String newPhoneNumber = in.readLine();
 
                // update the phone number
-               updateQuery = String.format("UPDATE Users SET phoneNum = '%s' WHERE login = '%s'", newPhoneNumber, authorisedUser);
-               esql.executeUpdate(updateQuery);
+               updateQuery = "UPDATE Users SET phoneNum = ? WHERE login = ?";
+               esql.executeUpdate(updateQuery, newPhoneNumber, session.login);
 
                System.out.println("Phone number updated successfully to: " + newPhoneNumber);
                 
@@ -619,8 +1325,8 @@ public class PizzaStore {
                String newPassword = in.readLine();
 
                // updating the password in the database
-               String updatePasswordQuery = String.format("UPDATE Users SET password = '%s' WHERE login = '%s'", newPassword, authorisedUser);
-               esql.executeUpdate(updatePasswordQuery);
+               String updatePasswordQuery = "UPDATE Users SET password = ? WHERE login = ?";
+               esql.executeUpdate(updatePasswordQuery, newPassword, session.login);
 
                System.out.println("Password updated successfully.");
                  
@@ -653,10 +1359,13 @@ public class PizzaStore {
 
         int choice = readChoice();
 
-        String query = "SELECT * FROM Items"; 
+        // All Menu Reads Are Served From The In-Memory Catalog
+        MenuCatalog menu = esql.getMenu();
+        List<MenuCatalog.Item> items;
 
         switch (choice) {
             case 1:
+                items = menu.all();
                 break; 
             case 2:
                String type = "";
@@ -672,33 +1381,31 @@ public class PizzaStore {
                   if (input.equals("1")) {
                      System.out.println("You Selected Entree");
                      type = "entree";
-                     query =  String.format("SELECT * FROM Items WHERE typeOfItem = '%s'", type);
                      break;
                   } else if (input.equals("2")) {
                      System.out.println("You Selected Sides");
                      type = "sides";
-                     query =  String.format("SELECT * FROM Items WHERE typeOfItem = '%s'", type);
                      break;
                   } else if (input.equals("3")) {
                      System.out.println("You Selected Drinks");
                      type = "drinks";
-                     query =  String.format("SELECT * FROM Items WHERE typeOfItem = '%s'", type);
                      break;
                   } else {
                      System.out.println("Invalid choice! Please enter 1, 2, or 3.");
                   }
                }
+               items = menu.ofType(type);
                 break;
             case 3:
                 System.out.print("Enter The Maximum Price: ");
-                double maxPrice = Double.parseDouble(in.readLine());
-                query = String.format("SELECT * FROM Items WHERE price <= %.2f", maxPrice);
+                BigDecimal maxPrice = new BigDecimal(in.readLine().trim());
+                items = menu.atMost(maxPrice);
                 break;
             case 4:
-                query = "SELECT * FROM Items ORDER BY price ASC";
+                items = menu.sortedByPrice(true);
                 break;
             case 5:
-                query = "SELECT * FROM Items ORDER BY price DESC";
+                items = menu.sortedByPrice(false);
                 break;
             case 9:
                 return; 
@@ -707,7 +1414,7 @@ public class PizzaStore {
                 return;
         }
 
-        esql.executeQueryAndPrintResult(query);
+        MenuCatalog.print(items, true);
       } 
       catch (Exception e) 
       {
@@ -715,38 +1422,29 @@ public class PizzaStore {
       }
    }
 
-   public static void placeOrder(PizzaStore esql, String authorisedUser) 
+   public static void placeOrder(PizzaStore esql, UserSession session) 
    {
       try{
       
 
-      // Displays All Stores To Choose From
-      System.out.println("Available Stores:");
-      String query = "SELECT * FROM Store";
-      esql.executeQueryAndPrintResult(query);
-
-      System.out.print("Enter the Store ID you want to order from: ");
-      String storeID = in.readLine().trim();
-
-      // Makes Sure Store Exists
-      String checkStoreQuery = String.format("SELECT * FROM Store WHERE storeID = '%s'", storeID);
-        if (esql.executeQuery(checkStoreQuery) == 0) 
-        {
-            System.out.println("Invalid Store ID! Order cancelled.");
-            return;
-         }
+      // Pick A Store From The In-Memory Directory
+      StoreDirectory.Store store = browseStores(esql, true);
+      if (store == null) {
+         System.out.println("No Store Selected. Order Cancelled.");
+         return;
+      }
+      int storeID = store.storeID;
+      if (!store.isOpen)
+         System.out.println("Note: Store " + storeID + " Is Currently Closed.");
 
-      // List All Items In The Store
-      List<String> itemNames = new ArrayList<>();
-      List<Integer> quantities = new ArrayList<>();
-      double totalPrice = 0.0; 
+      // List All Items In The Store, Same Item Entered Twice Adds Up
+      Map<String, Integer> cart = new LinkedHashMap<>();
 
       while (true) 
       {
 
          System.out.println("\nAvailable Items in Store " + storeID + ":");
-         String itemsQuery = "SELECT itemName, price FROM Items"; 
-         esql.executeQueryAndPrintResult(itemsQuery);
+         MenuCatalog.print(esql.getMenu().all(), false);
 
 
          System.out.print("Enter Done Anytime To Finish Ordering: \n");
@@ -759,10 +1457,7 @@ public class PizzaStore {
             break;
          }
             // Check If Item Exists
-            String checkItemQuery = String.format("SELECT price FROM Items WHERE itemName = '%s'", itemName);
-            List<List<String>> itemResult = esql.executeQueryAndReturnResult(checkItemQuery);
-
-            if (itemResult.isEmpty()) 
+            if (esql.getMenu().find(itemName) == null) 
             {
                 System.out.println("Item Not Found!");
                 continue;
@@ -785,51 +1480,20 @@ public class PizzaStore {
             }
 
             // Store Items And Quantity
-            itemNames.add(itemName);
-            quantities.add(quantity);
-
-            // Calculate Total Price
-            double itemPrice = Double.parseDouble(itemResult.get(0).get(0));
-            totalPrice += itemPrice * quantity;
+            cart.merge(itemName, quantity, Integer::sum);
         }
 
-        if (itemNames.isEmpty()) 
+        if (cart.isEmpty()) 
         {
             System.out.println("No Items Selected. Order Cancelled.");
             return;
         }
 
-      // Get Last Order ID, Increase Or Set Value To Make New OrderID
-      String orderIDQuery = "SELECT MAX(orderID) FROM FoodOrder";
-      List<List<String>> orderIDResult = esql.executeQueryAndReturnResult(orderIDQuery);
-
-       int newOrderID;
-        if (orderIDResult.isEmpty() || orderIDResult.get(0).get(0) == null) 
-        {
-            newOrderID = 10000; 
-        } else 
-        {
-            newOrderID = Integer.parseInt(orderIDResult.get(0).get(0)) + 1;
-        }
-
-      String insertOrderQuery = String.format(
-            "INSERT INTO FoodOrder (orderID, login, storeID, totalPrice, orderStatus, orderTimestamp) " +
-            "VALUES (%d, '%s', '%s', %.2f, 'Pending', NOW())",
-            newOrderID, authorisedUser, storeID, totalPrice
-        );
-        esql.executeUpdate(insertOrderQuery);
-
-        // Insert into ItemsInOrder Table
-        for (int i = 0; i < itemNames.size(); i++) {
-            String insertItemQuery = String.format(
-                "INSERT INTO ItemsInOrder (orderID, itemName, quantity) VALUES (%d, '%s', %d)",
-                newOrderID, itemNames.get(i), quantities.get(i)
-            );
-            esql.executeUpdate(insertItemQuery);
-        }
+      PizzaService.Receipt receipt = esql.getService().placeOrder(session, storeID, cart);
 
         System.out.println("Order placed successfully!");
-        System.out.println("Total Price: $" + String.format("%.2f", totalPrice));
+        System.out.println("Order ID: " + receipt.orderID);
+        System.out.println("Total Price: $" + receipt.totalPrice);
 
       /*
        System.out.println("\n===== DEBUG: Current FoodOrder Table =====");
@@ -845,57 +1509,155 @@ public class PizzaStore {
 }
 
 
-   public static void viewAllOrders(PizzaStore esql, String authorisedUser) {
+   public static void viewAllOrders(PizzaStore esql, UserSession session) {
       try {
-         // checking if user is customer
-         String roleQuery = String.format("SELECT login FROM Users WHERE role = 'customer' AND login = '%s'", authorisedUser);
-
-         int isCustomer = esql.executeQuery(roleQuery);
-
-         String orderQuery;
-         if (isCustomer > 0) {
+         if (session.isCustomer()) {
             // customers can only see their own orders
-            orderQuery = String.format("SELECT orderID, orderTimestamp, totalPrice, orderStatus FROM FoodOrder WHERE login = '%s'", authorisedUser);
+            browseOrders(esql, session.login);
          } else {
             // managers and drivers can view all orders
-            orderQuery = "SELECT * FROM FoodOrder ORDER BY orderTimestamp DESC";
+            browseOrders(esql, null);
          }
-         esql.executeQueryAndPrintResult(orderQuery);
       } catch (Exception e) {
          System.err.println("Error retrieving order details: " + e.getMessage());
       }
    }
-   public static void viewRecentOrders(PizzaStore esql, String authorisedUser) {
+   /*
+    * Pages through orders newest first.  Pages seek on (orderTimestamp,
+    * orderID) instead of using OFFSET, so every page is one bounded index
+    * range scan however much history there is.  Only the given customer's
+    * orders are listed when login is not null.  Returns the status shown
+    * for each order on the pages the user saw.
+    **/
+   public static Map<Integer, String> browseOrders(PizzaStore esql, String login) throws IOException, SQLException {
+      String[] queries = orderPageQueries(login != null);
+      String newestQuery = queries[0];
+      String olderQuery = queries[1];
+      String newerQuery = queries[2];
+
+      Map<Integer, String> shown = new HashMap<Integer, String>();
+      List<List<String>> page = esql.executeQueryAndReturnResult(newestQuery, pageParams(login, null, ordersPerPage));
+      if (page.isEmpty()) {
+         System.out.println("No Orders Found.");
+         return shown;
+      }
+      int pageNumber = 1;
+
+      while (true) {
+         System.out.println("----- Page " + pageNumber + " -----");
+         printRows(ORDER_PAGE_HEADER, page);
+         for (List<String> row : page)
+            shown.put(Integer.valueOf(row.get(0).trim()), row.get(5).trim());
+         System.out.println("n. Next Page   p. Previous Page   s. Page Size (" + ordersPerPage + ")   q. Done");
+         System.out.print("Enter your choice: ");
+         String choice = in.readLine().trim().toLowerCase();
+
+         if (choice.equals("n")) {
+            List<List<String>> older = page.size() < ordersPerPage ? new ArrayList<List<String>>()
+               : esql.executeQueryAndReturnResult(olderQuery, pageParams(login, page.get(page.size() - 1), ordersPerPage));
+            if (older.isEmpty()) {
+               System.out.println("No Older Orders.");
+               continue;
+            }
+            page = older;
+            ++pageNumber;
+         } else if (choice.equals("p")) {
+            if (pageNumber == 1) {
+               System.out.println("Already Showing The Newest Orders.");
+               continue;
+            }
+            List<List<String>> newer = esql.executeQueryAndReturnResult(newerQuery, pageParams(login, page.get(0), ordersPerPage));
+            Collections.reverse(newer);
+            --pageNumber;
+            // a short page means we are back at the newest orders
+            if (newer.size() < ordersPerPage) {
+               newer = esql.executeQueryAndReturnResult(newestQuery, pageParams(login, null, ordersPerPage));
+               pageNumber = 1;
+            }
+            page = newer;
+         } else if (choice.equals("s")) {
+            System.out.print("Enter Orders Per Page: ");
+            try {
+               int size = Integer.parseInt(in.readLine().trim());
+               if (size <= 0) {
+                  System.out.println("Page Size Must Be Greater Than Zero.");
+                  continue;
+               }
+               ordersPerPage = size;
+            } catch (NumberFormatException e) {
+               System.out.println("Invalid page size! Please enter a number.");
+               continue;
+            }
+            page = esql.executeQueryAndReturnResult(newestQuery, pageParams(login, null, ordersPerPage));
+            pageNumber = 1;
+         } else if (choice.equals("q")) {
+            return shown;
+         } else {
+            System.out.println("Unrecognized choice!");
+         }
+      }
+   }
+
+   /*
+    * The page queries of browseOrders: the newest page, the page older
+    * than a key and the page newer than a key, filtered on login if asked.
+    * Their parameters come from pageParams.  The row comparison alone does
+    * not prune FoodOrder's partitions, so the seeks repeat the key's
+    * timestamp as a plain bound on orderTimestamp.
+    **/
+   static String[] orderPageQueries(boolean byLogin) {
+      String columns = "SELECT orderID, orderTimestamp, login, storeID, totalPrice, orderStatus FROM FoodOrder ";
+      String filter = byLogin ? "login = ? AND " : "";
+      return new String[] {
+         columns + (byLogin ? "WHERE login = ? " : "")
+                 + "ORDER BY orderTimestamp DESC, orderID DESC LIMIT ?",
+         columns + "WHERE " + filter
+                 + "(orderTimestamp, orderID) < (?, ?) AND orderTimestamp <= ? "
+                 + "ORDER BY orderTimestamp DESC, orderID DESC LIMIT ?",
+         columns + "WHERE " + filter
+                 + "(orderTimestamp, orderID) > (?, ?) AND orderTimestamp >= ? "
+                 + "ORDER BY orderTimestamp ASC, orderID ASC LIMIT ?"
+      };
+   }
+
+   /*
+    * Builds the parameters of a page query: the login filter if any, the
+    * (orderTimestamp, orderID) key of the row to seek past and its timestamp
+    * again if any, and the limit.
+    **/
+   static Object[] pageParams(String login, List<String> keyRow, int limit) {
+      List<Object> params = new ArrayList<>();
+      if (login != null)
+         params.add(login);
+      if (keyRow != null) {
+         Timestamp timestamp = Timestamp.valueOf(keyRow.get(1));
+         params.add(timestamp);
+         params.add(Integer.parseInt(keyRow.get(0)));
+         params.add(timestamp);
+      }
+      params.add(limit);
+      return params.toArray();
+   }
+
+   public static void viewRecentOrders(PizzaStore esql, UserSession session) {
       try {
-         // 5 most recent orders of the current authorized user
-         String query =  String.format("SELECT OrderID as Recent_OrderIds FROM foodorder WHERE login = '%s' ORDER BY orderTimestamp DESC LIMIT 5", authorisedUser);
-         esql.executeQueryAndPrintResult(query);
+         // 5 most recent orders of the current authorized user, usually from memory
+         printRows(RECENT_ORDERS_HEADER, esql.getService().getRecentOrders(session));
       }
       catch (Exception e) 
       {
         System.err.println("Error retrieving orders: " + e.getMessage());
       }
    }
-   public static void viewOrderInfo(PizzaStore esql, String authorisedUser) {
+   public static void viewOrderInfo(PizzaStore esql, UserSession session) {
       try {
          // get the user to enter an order ID
         System.out.print("Enter the Order ID: ");
         int orderID = Integer.parseInt(in.readLine());
 
-        // check if the user is a customer
-        String roleQuery = String.format("SELECT login FROM Users WHERE role = 'customer' AND login = '%s'", authorisedUser);
-        int isCustomer = esql.executeQuery(roleQuery);
-        String orderQuery;
-        if (isCustomer > 0) {
-            // customers can only see their own orders
-            orderQuery = String.format("SELECT * FROM FoodOrder WHERE orderID = %d AND login = '%s'", orderID, authorisedUser );
-        } else {
-            // managers and drivers can view any order
-            orderQuery = String.format("SELECT * FROM FoodOrder WHERE orderID = %d", orderID );
-        }
-
-        // Print order details
-        esql.executeQueryAndPrintResult(orderQuery);
+        // Print order details; customers can only see their own orders,
+        // managers and drivers can view any order, archived ones included
+        printRows(ORDER_INFO_HEADER, esql.getService().getOrderInfo(session, orderID));
 
     } catch (Exception e) {
         System.err.println("Error retrieving order details: " + e.getMessage());
@@ -905,116 +1667,171 @@ public class PizzaStore {
    public static void viewStores(PizzaStore esql) 
    {
       try {
-         String query = "SELECT * FROM Store";
-         esql.executeQueryAndPrintResult(query);
+         browseStores(esql, false);
       } catch (Exception e) {
          System.err.println("Error Retrieving Stores: " + e.getMessage());
       }
    }
 
-  public static void updateOrderStatus(PizzaStore esql, String authorisedUser) {
-    try {
-       
-      String roleQuery = String.format(
-            "SELECT login FROM Users WHERE role = 'manager' AND login = '%s'", 
-            authorisedUser
-        );
-
-         String roleQuery1 = String.format(
-            "SELECT login FROM Users WHERE role = 'driver' AND login = '%s'", 
-            authorisedUser
-        );
-
+   /*
+    * Pages through the stores matching a filter the user can change.
+    * When choosing, the user can also enter a store ID, which is checked
+    * against the directory and returned; otherwise returns null.
+    **/
+   static StoreDirectory.Store browseStores(PizzaStore esql, boolean choosing) throws IOException, SQLException {
+      StoreDirectory directory = esql.getStores();
+      StoreDirectory.Filter filter = new StoreDirectory.Filter();
+      filter.openOnly = choosing;
+      List<StoreDirectory.Store> stores = directory.search(filter);
+      int first = 0;
 
-        int isManager = esql.executeQuery(roleQuery);
-        
-        int isDriver = esql.executeQuery(roleQuery1); 
+      while (true) {
+         int last = Math.min(first + STORES_PER_PAGE, stores.size());
+         System.out.println("----- " + filter + ": " + stores.size() + " stores, showing "
+                            + (stores.isEmpty() ? 0 : first + 1) + "-" + last + " -----");
+         StoreDirectory.print(stores.subList(first, last));
+         System.out.println("n. Next Page   p. Previous Page   f. Filter   q. Done");
+         System.out.print(choosing ? "Enter a Store ID or your choice: " : "Enter your choice: ");
+         String choice = in.readLine().trim().toLowerCase();
+
+         if (choice.equals("n")) {
+            if (last >= stores.size()) {
+               System.out.println("No More Stores.");
+               continue;
+            }
+            first = last;
+         } else if (choice.equals("p")) {
+            if (first == 0) {
+               System.out.println("Already Showing The First Stores.");
+               continue;
+            }
+            first = Math.max(0, first - STORES_PER_PAGE);
+         } else if (choice.equals("f")) {
+            System.out.println("States: " + String.join(", ", directory.states()));
+            System.out.print("State (blank for any): ");
+            filter.state = in.readLine().trim();
+            System.out.print("City (blank for any): ");
+            filter.city = in.readLine().trim();
+            System.out.print("Address starts with (blank for any): ");
+            filter.addressPrefix = in.readLine().trim();
+            System.out.print("Open stores only? (y/n): ");
+            filter.openOnly = in.readLine().trim().equalsIgnoreCase("y");
+            stores = directory.search(filter);
+            first = 0;
+         } else if (choice.equals("q")) {
+            return null;
+         } else if (choosing) {
+            // Makes Sure Store Exists
+            StoreDirectory.Store store;
+            try {
+               store = directory.find(Integer.parseInt(choice));
+            } catch (NumberFormatException e) {
+               store = null;
+            }
+            if (store != null)
+               return store;
+            System.out.println("Invalid Store ID!");
+         } else {
+            System.out.println("Unrecognized choice!");
+         }
+      }
+   }
 
-        if (isManager <0 && isDriver > 0) {
-            System.out.println("Unauthorized: Only managers can update menu items.");
+  public static void updateOrderStatus(PizzaStore esql, UserSession session) {
+    try {
+       
+        if (!session.isManager() && !session.isDriver()) {
+            System.out.println("Unauthorized: Only managers and drivers can update order status.");
             return;
         }
 
 
         System.out.println("\n===== Available Orders =====");
-        String allOrdersQuery = "SELECT orderID, login, storeID, totalPrice, orderStatus, orderTimestamp FROM FoodOrder";
-        esql.executeQueryAndPrintResult(allOrdersQuery);
-
-        System.out.print("\nEnter the Order ID you want to update: ");
-        int orderID = Integer.parseInt(in.readLine().trim());
-
+        Map<Integer, String> shown = browseOrders(esql, null);
 
-        String checkOrderQuery = String.format("SELECT * FROM FoodOrder WHERE orderID = %d", orderID);
-        if (esql.executeQuery(checkOrderQuery) == 0) 
-        {
-            System.out.println("Error: Order ID Not Found.");
+        System.out.print("\nEnter the Order IDs you want to update, separated by spaces: ");
+        Map<Integer, String> orders = new LinkedHashMap<>();
+        for (String id : in.readLine().trim().split("[\\s,]+")) {
+            if (id.isEmpty())
+                continue;
+            try {
+                orders.put(Integer.parseInt(id), null);
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid Order ID: " + id);
+                return;
+            }
+        }
+        if (orders.isEmpty()) {
+            System.out.println("No Orders Selected.");
             return;
         }
 
         System.out.println("\n===== Order Status Options =====");
-        System.out.println("1. Pending");
-        System.out.println("2. In Progress");
-        System.out.println("3. Out for Delivery");
-        System.out.println("4. Completed");
-        System.out.println("5. Canceled");
-
-        String newStatus;
-        while (true) {
-            System.out.print("\nEnter the number corresponding to the new order status: ");
-            String choice = in.readLine().trim();
-
-            switch (choice) {
-                case "1":
-                    newStatus = "Pending";
-                    break;
-                case "2":
-                    newStatus = "In Progress";
-                    break;
-                case "3":
-                    newStatus = "Out for Delivery";
-                    break;
-                case "4":
-                    newStatus = "Completed";
-                    break;
-                case "5":
-                    newStatus = "Canceled";
-                    break;
-                default:
-                    System.out.println("Invalid choice! Please enter a number between 1 and 5.");
-                    continue;
+        for (int i = 0; i < PizzaService.ORDER_STATUSES.length; i++)
+            System.out.println((i + 1) + ". " + PizzaService.ORDER_STATUSES[i]);
+
+        String newStatus = readOrderStatus("\nEnter the number corresponding to the new order status: ", false);
+
+        // Orders Another Driver Or Manager Has Moved Since They Were Shown Are Left Alone
+        String expected = readOrderStatus("Only update orders currently in status (number, Enter for the status shown): ", true);
+        for (Map.Entry<Integer, String> order : orders.entrySet()) {
+            String status = expected != null ? expected : shown.get(order.getKey());
+            if (status == null) {
+                // Not On A Page The User Saw, So Show It Now
+                status = esql.queryForValue(String.class, ORDER_STATUS_QUERY, order.getKey());
+                if (status != null) {
+                    status = status.trim();
+                    System.out.println("Order " + order.getKey() + " is " + status + ".");
+                }
             }
-            break;
+            order.setValue(status);
         }
 
-        // Step 6: Update the order status in the database
-        String updateQuery = String.format("UPDATE FoodOrder SET orderStatus = '%s' WHERE orderID = %d", newStatus, orderID);
-        esql.executeUpdate(updateQuery);
-
-        // Step 7: Display the updated order for confirmation
-        System.out.println("\nOrder status updated successfully!");
-        String updatedOrderQuery = String.format("SELECT * FROM FoodOrder WHERE orderID = %d", orderID);
-        esql.executeQueryAndPrintResult(updatedOrderQuery);
+        // One Statement For All Orders, With A Result Per Order
+        List<List<String>> results = new ArrayList<List<String>>();
+        int updated = 0;
+        for (PizzaService.StatusChange change : esql.getService().updateOrderStatuses(session, orders, newStatus)) {
+            results.add(Arrays.asList(Integer.toString(change.orderID), change.result, change.status));
+            if (change.result.equals(PizzaService.UPDATED))
+                updated++;
+        }
+        System.out.println("\n" + updated + " of " + orders.size() + " orders updated:");
+        printRows(STATUS_CHANGE_HEADER, results);
 
     } catch (Exception e) {
         System.err.println("Error updating order status: " + e.getMessage());
     }
 }
 
+   /*
+    * Reads a choice from PizzaService.ORDER_STATUSES by number until a
+    * valid one is entered.  With optional, an empty line returns null.
+    **/
+   static String readOrderStatus(String prompt, boolean optional) throws IOException {
+      while (true) {
+         System.out.print(prompt);
+         String choice = in.readLine().trim();
+         if (optional && choice.isEmpty())
+            return null;
+         try {
+            int number = Integer.parseInt(choice);
+            if (number >= 1 && number <= PizzaService.ORDER_STATUSES.length)
+               return PizzaService.ORDER_STATUSES[number - 1];
+         } catch (NumberFormatException e) {
+            // asked again below
+         }
+         System.out.println("Invalid choice! Please enter a number between 1 and " + PizzaService.ORDER_STATUSES.length + ".");
+      }
+   }
 
 
 
 
-   public static void updateMenu(PizzaStore esql, String authorisedUser) {
+
+   public static void updateMenu(PizzaStore esql, UserSession session) {
       try {
         // Check if the user is a manager
-        String roleQuery = String.format(
-            "SELECT login FROM Users WHERE role = 'manager' AND login = '%s'", 
-            authorisedUser
-        );
-
-        int isManager = esql.executeQuery(roleQuery);
-
-        if (isManager < 0) {
+        if (!session.isManager()) {
             System.out.println("Unauthorized: Only managers can update menu items.");
             return;
         }
@@ -1023,8 +1840,8 @@ public class PizzaStore {
         System.out.print("Enter the name of the item you want to update: ");
         String itemName = in.readLine();
         
-        String query = String.format("SELECT * FROM Items WHERE itemName = '%s'", itemName);
-        esql.executeQueryAndPrintResult(query);
+        String query = "SELECT * FROM Items WHERE itemName = ?";
+        esql.executeQueryAndPrintResult(query, itemName);
 
         while (true) {
             System.out.println("Select what you want to update:");
@@ -1036,13 +1853,15 @@ public class PizzaStore {
             System.out.print("Enter your choice: ");
 
             String input = in.readLine().trim();
-            String updateQuery = "";
+            String field = "";
+            String newValue = null;
 
             switch (input) {
                 case "1":
                     System.out.print("Enter new ingredients: ");
                     String newIngredients = in.readLine().trim();
-                    updateQuery = String.format("UPDATE Items SET ingredients = '%s' WHERE itemName = '%s'", newIngredients, itemName);
+                    field = "ingredients";
+                    newValue = newIngredients;
                     break;
 
                 case "2":
@@ -1056,13 +1875,13 @@ public class PizzaStore {
                         String typeInput = in.readLine().trim();
                         switch (typeInput) {
                             case "1":
-                                updateQuery = String.format("UPDATE Items SET typeOfItem = 'entree' WHERE itemName = '%s'", itemName);
+                                newValue = "entree";
                                 break;
                             case "2":
-                                updateQuery = String.format("UPDATE Items SET typeOfItem = 'sides' WHERE itemName = '%s'", itemName);
+                                newValue = "sides";
                                 break;
                             case "3":
-                                updateQuery = String.format("UPDATE Items SET typeOfItem = 'drinks' WHERE itemName = '%s'", itemName);
+                                newValue = "drinks";
                                 break;
                             default:
                                 System.out.println("Invalid choice! Please enter 1, 2, or 3.");
@@ -1070,20 +1889,21 @@ public class PizzaStore {
                         }
                         break;
                     }
+                    field = "typeOfItem";
                     break;
 
                 case "3":
                     System.out.print("Enter new price: ");
                     String newPrice = in.readLine();
-                    updateQuery = String.format("UPDATE Items SET price = %s WHERE itemName = '%s'", newPrice, itemName);
+                    field = "price";
+                    newValue = newPrice.trim();
                     break;
 
                 case "4":
                     System.out.print("Enter new description: ");
                     String newDescription = in.readLine();
-                    updateQuery = String.format( "UPDATE Items SET description = '%s' WHERE itemName = '%s'", 
-                        newDescription, itemName
-                    );
+                    field = "description";
+                    newValue = newDescription;
                     break;
 
                 case "9":
@@ -1096,9 +1916,8 @@ public class PizzaStore {
             }
 
             // Execute the update query
-            esql.executeUpdate(updateQuery);
-            query = String.format("SELECT * FROM Items WHERE itemName = '%s'", itemName);
-            esql.executeQueryAndPrintResult(query);
+            esql.getService().updateMenuItem(session, itemName, field, newValue);
+            esql.executeQueryAndPrintResult(query, itemName);
             System.out.println("Item updated successfully.");
         }
       } catch (Exception e) {
@@ -1106,21 +1925,177 @@ public class PizzaStore {
       }
    }
    
-   public static void updateUser(PizzaStore esql,  String authorisedUser) 
+   public static void watchOrderEvents(PizzaStore esql, UserSession session) {
+      // Customers Follow Their Own Orders; Drivers And Managers Can Pick A Store
+      Integer storeID = null;
+      try {
+         if (!session.isCustomer()) {
+            System.out.print("Store ID to watch (Enter for all stores): ");
+            String store = in.readLine().trim();
+            if (!store.isEmpty()) {
+               storeID = Integer.parseInt(store);
+               if (esql.getStores().find(storeID) == null) {
+                  System.out.println("Invalid Store ID!");
+                  return;
+               }
+            }
+         }
+      } catch (NumberFormatException e) {
+         System.out.println("Invalid Store ID!");
+         return;
+      } catch (Exception e) {
+         System.err.println("Error watching order events: " + e.getMessage());
+         return;
+      }
+
+      // Events Arrive On The Feed's Thread While This One Waits For Enter
+      OrderFeed.Subscription subscription = null;
+      try {
+         subscription = esql.getFeed().subscribe(session, storeID, event -> {
+            synchronized (OUT) {
+               OUT.println(LocalTime.now().withNano(0) + "  " + event);
+               OUT.flush();
+            }
+         });
+         System.out.println("Watching " + (session.isCustomer() ? "your orders" : storeID == null ? "all stores" : "store " + storeID)
+                            + ". Press Enter to stop.");
+         in.readLine();
+      } catch (Exception e) {
+         System.err.println("Error watching order events: " + e.getMessage());
+      } finally {
+         if (subscription != null)
+            subscription.close();
+      }
+   }
+
+   /*
+    * Shows where database time goes: latency percentiles, rows and errors
+    * per query template, slowest in total first, and the pool's state.
+    **/
+   public static void viewQueryMetrics(PizzaStore esql, UserSession session) {
+      if (!session.isManager()) {
+         System.out.println("Unauthorized: Only managers can view query metrics.");
+         return;
+      }
+      System.out.println(esql.getMetrics().getReport());
+      System.out.println("Connection pool: " + esql.getPoolStats());
+      System.out.println("Recent orders cache: " + esql.getService().getRecentOrdersStats());
+      if (esql.getJournal() != null)
+         System.out.println("Order journal: " + esql.getJournal());
+      System.out.println("Order feed: " + esql.getFeed());
+      System.out.println("Order archive: " + esql.getArchive());
+   }
+
+   public static void viewArchivedSales(PizzaStore esql, UserSession session) {
+      if (!session.isManager()) {
+         System.out.println("Unauthorized: Only managers can view archived sales.");
+         return;
+      }
+      try {
+         LocalDate from = readDate("From date (yyyy-mm-dd, blank for the first archived order): ", null);
+         LocalDate to = readDate("To date, inclusive (yyyy-mm-dd, blank for the last archived order): ", null);
+
+         // Totals Come From The Archive Files Alone, Not The Database
+         OrderArchive.Sales sales = esql.getArchive().sales(
+            from == null ? null : from.atStartOfDay(),
+            to == null ? null : to.plusDays(1).atStartOfDay());
+         System.out.println("Archived orders: " + sales.orders + ", revenue: " + BigDecimal.valueOf(sales.cents, 2));
+
+         List<Map.Entry<Integer, long[]>> stores = new ArrayList<>(sales.byStore.entrySet());
+         stores.sort((a, b) -> Long.compare(b.getValue()[1], a.getValue()[1]));
+         List<List<String>> storeRows = new ArrayList<>();
+         for (Map.Entry<Integer, long[]> store : stores.subList(0, Math.min(SALES_REPORT_ROWS, stores.size())))
+            storeRows.add(Arrays.asList(store.getKey().toString(), Long.toString(store.getValue()[0]),
+                                        BigDecimal.valueOf(store.getValue()[1], 2).toPlainString()));
+         System.out.println("\nTop stores by revenue:");
+         printRows(STORE_SALES_HEADER, storeRows);
+
+         List<Map.Entry<String, Long>> items = new ArrayList<>(sales.byItem.entrySet());
+         items.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+         List<List<String>> itemRows = new ArrayList<>();
+         for (Map.Entry<String, Long> item : items.subList(0, Math.min(SALES_REPORT_ROWS, items.size())))
+            itemRows.add(Arrays.asList(item.getKey(), item.getValue().toString()));
+         System.out.println("\nTop items by quantity:");
+         printRows(ITEM_SALES_HEADER, itemRows);
+      } catch (Exception e) {
+         System.err.println("Error reading archived sales: " + e.getMessage());
+      }
+   }
+
+   public static void viewStoreSales(PizzaStore esql, UserSession session) {
+      if (!session.isManager()) {
+         System.out.println("Unauthorized: Only managers can view sales reports.");
+         return;
+      }
+      try {
+         LocalDate today = LocalDate.now();
+         LocalDate from = readDate("From date (yyyy-mm-dd, blank for " + today.minusDays(SALES_REPORT_DAYS - 1) + "): ",
+                                   today.minusDays(SALES_REPORT_DAYS - 1));
+         LocalDate to = readDate("To date, inclusive (yyyy-mm-dd, blank for " + today + "): ", today);
+         System.out.print("Store ID (blank for the top stores): ");
+         String store = in.readLine().trim();
+
+         // Read From The Daily Rollup, A Row Per Store And Day
+         if (store.isEmpty()) {
+            System.out.println("\nTop stores by revenue:");
+            printRows(STORE_SALES_HEADER, esql.getService().getStoreSales(session, from, to, SALES_REPORT_ROWS));
+         } else {
+            printRows(STORE_DAILY_SALES_HEADER,
+                      esql.getService().getStoreDailySales(session, Integer.parseInt(store), from, to));
+         }
+      } catch (NumberFormatException e) {
+         System.out.println("Invalid store ID.");
+      } catch (IllegalArgumentException e) {
+         System.out.println(e.getMessage());
+      } catch (Exception e) {
+         System.err.println("Error reading store sales: " + e.getMessage());
+      }
+   }
+
+   public static void viewTopItems(PizzaStore esql, UserSession session) {
+      if (!session.isManager()) {
+         System.out.println("Unauthorized: Only managers can view sales reports.");
+         return;
+      }
+      try {
+         LocalDate today = LocalDate.now();
+         LocalDate from = readDate("From date (yyyy-mm-dd, blank for " + today.minusDays(SALES_REPORT_DAYS - 1) + "): ",
+                                   today.minusDays(SALES_REPORT_DAYS - 1));
+         LocalDate to = readDate("To date, inclusive (yyyy-mm-dd, blank for " + today + "): ", today);
+
+         System.out.println("\nTop items by quantity:");
+         printRows(ITEM_SALES_HEADER, esql.getService().getTopItems(session, from, to, SALES_REPORT_ROWS));
+      } catch (IllegalArgumentException e) {
+         System.out.println(e.getMessage());
+      } catch (Exception e) {
+         System.err.println("Error reading top items: " + e.getMessage());
+      }
+   }
+
+   /*
+    * Reads a yyyy-mm-dd date until a valid one is entered.  An empty line
+    * returns the default, which may be null.
+    **/
+   static LocalDate readDate(String prompt, LocalDate defaultDate) throws IOException {
+      while (true) {
+         System.out.print(prompt);
+         String date = in.readLine().trim();
+         if (date.isEmpty())
+            return defaultDate;
+         try {
+            return LocalDate.parse(date);
+         } catch (DateTimeParseException e) {
+            System.out.println("Invalid date! Please enter it as yyyy-mm-dd.");
+         }
+      }
+   }
+
+   public static void updateUser(PizzaStore esql, UserSession session) 
    {
        try {
         // Check if the user is a manager
-        String roleQuery = String.format(
-            "SELECT login FROM Users WHERE role = 'manager' AND login = '%s'", 
-            authorisedUser
-        );
-
-        
-        int isManager = esql.executeQuery(roleQuery); 
-        
-
-        if (isManager < 0) {
-            System.out.println("Unauthorized: Only managers can update menu items.");
+        if (!session.isManager()) {
+            System.out.println("Unauthorized: Only managers can update users.");
             return;
         }
 
@@ -1151,17 +2126,16 @@ public class PizzaStore {
          System.out.print("Enter the New Username: ");
          String newLogin = in.readLine().trim().toLowerCase();
 
-         String checkUserQuery = String.format("SELECT * FROM Users WHERE login = '%s'", newLogin);
-         int userExists = esql.executeQuery(checkUserQuery);
-         if (userExists > 0) 
-         {
-         System.out.println("Error: Username Already Exists. Choose a Different One.");
-         return;
+         //Update login in database; the user's sessions end
+         try {
+            if (!esql.getService().updateUserLogin(session, targetUser, newLogin)) {
+               System.out.println("Error: User Doesnt Exisit.");
+               return;
+            }
+         } catch (IllegalArgumentException e) {
+            System.out.println("Error: Username Already Exists. Choose a Different One.");
+            return;
          }
-
-         //Update login in database
-         String updateLoginQuery = String.format("UPDATE Users SET login = '%s' WHERE login = '%s'", newLogin, targetUser);
-         esql.executeUpdate(updateLoginQuery);
          System.out.println("User Login Successfully Updated!");
           break;
 
@@ -1179,8 +2153,11 @@ public class PizzaStore {
             return;
          }
 
-         String updateRoleQuery = String.format("UPDATE Users SET role = '%s' WHERE login = '%s'", newRole, userToModify);
-         esql.executeUpdate(updateRoleQuery);
+         // the user's sessions end, so the new role applies from their next log in
+         if (!esql.getService().updateUserRole(session, userToModify, newRole)) {
+            System.out.println("Error: User Doesnt Exisit.");
+            return;
+         }
          System.out.println("User Role Successfully Updated!");
          break;
 
@@ -0,0 +1,189 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * This class records every statement sent through the PizzaStore helpers,
+ * per query template: calls, failures, rows and a latency histogram.
+ * Recording a statement whose template was seen before takes a map lookup
+ * and a few atomic adds and allocates nothing.  Statements slower than
+ * a threshold are also appended to a slow query log.
+ *
+ * Settings:
+ *    -Dpizzastore.slowQueryMs    slow query threshold (default 250; 0 logs all, negative none)
+ *    -Dpizzastore.slowQueryLog   slow query log file (default slow_queries.log)
+ *
+ */
+public class QueryMetrics implements QueryMetricsMBean {
+
+   private static final String OBJECT_NAME = "pizzastore:type=QueryMetrics";
+
+   /*
+    * What was recorded for one query template.
+    **/
+   private static final class Template {
+      final LatencyHistogram latency = new LatencyHistogram();
+      final AtomicLong errors = new AtomicLong();
+      final AtomicLong rows = new AtomicLong();
+   }//end Template
+
+   private final Map<String, Template> _templates = new ConcurrentHashMap<String, Template>();
+
+   private volatile long _slowQueryNanos =
+      Long.getLong("pizzastore.slowQueryMs", 250L) * 1000000L;
+   private final String _slowQueryLogPath = System.getProperty ("pizzastore.slowQueryLog", "slow_queries.log");
+   private final AtomicLong _slowQueries = new AtomicLong();
+
+   // opened on the first slow statement; the lock keeps lines whole
+   private final ReentrantLock _slowQueryLock = new ReentrantLock();
+   private PrintWriter _slowQueryLog = null;
+
+   private ObjectName _registeredAs = null;
+
+   /**
+    * Method to count one statement.
+    *
+    * @param sql the query template
+    * @param nanos how long the statement took
+    * @param rows rows returned or changed
+    * @param failed true if the statement threw
+    */
+   public void record (String sql, long nanos, long rows, boolean failed) {
+      Template template = this._templates.get (sql);
+      if (template == null)
+         template = this._templates.computeIfAbsent (sql, k -> new Template());
+      template.latency.record (nanos);
+      template.rows.addAndGet (rows);
+      if (failed)
+         template.errors.incrementAndGet ();
+
+      long threshold = this._slowQueryNanos;
+      if (threshold >= 0 && nanos >= threshold)
+         logSlowQuery(sql, nanos, rows, failed);
+   }//end record
+
+   private void logSlowQuery (String sql, long nanos, long rows, boolean failed) {
+      this._slowQueries.incrementAndGet ();
+      // parameters are left out, since they include passwords
+      String line = LocalDateTime.now () + String.format (" %.3f ms", nanos / 1e6) + " rows=" + rows
+                  + (failed ? " FAILED" : "") + " [" + Thread.currentThread ().getName () + "] " + sql;
+      this._slowQueryLock.lock ();
+      try {
+         if (this._slowQueryLog == null)
+            this._slowQueryLog = new PrintWriter(new FileWriter(this._slowQueryLogPath, true), true);
+         this._slowQueryLog.println (line);
+      }catch (IOException e) {
+         System.err.println ("Error writing slow query log: " + e.getMessage ());
+         this._slowQueryNanos = -1;
+      }finally {
+         this._slowQueryLock.unlock ();
+      }//end try
+   }//end logSlowQuery
+
+   /**
+    * Method to print every template, the ones taking the most time in
+    * total first.
+    *
+    * @return the report, one template per line
+    */
+   public String getReport () {
+      StringBuilder out = new StringBuilder();
+      out.append (String.format ("%8s %6s %9s %9s %9s %9s %9s %9s  %s%n",
+                                 "calls", "errors", "rows", "total ms", "p50 ms", "p99 ms", "p999 ms", "max ms", "template"));
+      for (String line : getTemplateStats ())
+         out.append (line).append (System.lineSeparator ());
+      out.append ("slow query log: " + this._slowQueries.get () + " statements over "
+                  + getSlowQueryThresholdMillis () + " ms in " + this._slowQueryLogPath);
+      return out.toString ();
+   }//end getReport
+
+   @Override
+   public String[] getTemplateStats () {
+      List<Map.Entry<String, Template>> templates = new ArrayList<Map.Entry<String, Template>>(this._templates.entrySet ());
+      templates.sort ((a, b) -> Long.compare (b.getValue ().latency.getSum (), a.getValue ().latency.getSum ()));
+      String[] lines = new String[templates.size ()];
+      for (int i = 0; i < lines.length; ++i) {
+         Template template = templates.get(i).getValue ();
+         LatencyHistogram latency = template.latency;
+         lines[i] = String.format ("%8d %6d %9d %9.1f %9.2f %9.2f %9.2f %9.2f  %s",
+                                   latency.getCount (), template.errors.get (), template.rows.get (),
+                                   latency.getSum () / 1e6, latency.getPercentile (50) / 1e6,
+                                   latency.getPercentile (99) / 1e6, latency.getPercentile (99.9) / 1e6,
+                                   latency.getMax () / 1e6, templates.get(i).getKey ());
+      }//end for
+      return lines;
+   }//end getTemplateStats
+
+   @Override
+   public long getSlowQueryThresholdMillis () {
+      long nanos = this._slowQueryNanos;
+      return nanos < 0 ? -1 : nanos / 1000000L;
+   }//end getSlowQueryThresholdMillis
+
+   @Override
+   public void setSlowQueryThresholdMillis (long millis) {
+      this._slowQueryNanos = millis < 0 ? -1 : millis * 1000000L;
+   }//end setSlowQueryThresholdMillis
+
+   @Override
+   public long getSlowQueryCount () {
+      return this._slowQueries.get ();
+   }//end getSlowQueryCount
+
+   @Override
+   public void reset () {
+      this._templates.clear ();
+      this._slowQueries.set (0);
+   }//end reset
+
+   /**
+    * Method to publish the metrics through JMX.  Only the first instance
+    * in a JVM is published.
+    */
+   public void register () {
+      try {
+         MBeanServer server = ManagementFactory.getPlatformMBeanServer ();
+         ObjectName name = new ObjectName(OBJECT_NAME);
+         if (!server.isRegistered (name)) {
+            server.registerMBean (this, name);
+            this._registeredAs = name;
+         }//end if
+      }catch (JMException e) {
+         System.err.println ("Error registering query metrics with JMX: " + e.getMessage ());
+      }//end try
+   }//end register
+
+   /**
+    * Method to withdraw the metrics from JMX and close the slow query log.
+    */
+   public void close () {
+      if (this._registeredAs != null) {
+         try {
+            ManagementFactory.getPlatformMBeanServer ().unregisterMBean (this._registeredAs);
+         }catch (JMException e) {
+            // already gone
+         }//end try
+         this._registeredAs = null;
+      }//end if
+      this._slowQueryLock.lock ();
+      try {
+         if (this._slowQueryLog != null)
+            this._slowQueryLog.close ();
+         this._slowQueryLog = null;
+      }finally {
+         this._slowQueryLock.unlock ();
+      }//end try
+   }//end close
+}//end QueryMetrics
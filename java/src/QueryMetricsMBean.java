@@ -0,0 +1,31 @@
+/**
+ * The JMX view of QueryMetrics, registered as pizzastore:type=QueryMetrics.
+ *
+ */
+public interface QueryMetricsMBean {
+
+   /**
+    * @return one line per query template: calls, errors, rows and latency percentiles
+    */
+   String[] getTemplateStats ();
+
+   /**
+    * @return statements slower than this are written to the slow query log; negative turns it off
+    */
+   long getSlowQueryThresholdMillis ();
+
+   /**
+    * @param millis the new slow query threshold; 0 logs every statement, negative none
+    */
+   void setSlowQueryThresholdMillis (long millis);
+
+   /**
+    * @return how many statements were written to the slow query log
+    */
+   long getSlowQueryCount ();
+
+   /**
+    * Forgets every recorded statement.
+    */
+   void reset ();
+}//end QueryMetricsMBean
@@ -0,0 +1,185 @@
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class runs EXPLAIN (ANALYZE, BUFFERS) on every query template the
+ * application sends, with parameters taken from the loaded data, and
+ * fails when a plan reads a table with a sequential scan it is not
+ * expected to.  Run it against a database loaded at production volume
+ * (java/scripts/load.sh with ORDERS set), since on small tables the
+ * planner rightly prefers sequential scans.  Each statement runs in a
+ * transaction that is rolled back, so templates that write leave no trace.
+ *
+ */
+public class QueryPlanCheck {
+
+   private static final Pattern SCAN =
+      Pattern.compile ("((?:Parallel )?(?:Seq|Index Only|Index|Bitmap Heap) Scan)(?: Backward)?(?: using (\\w+))? on (\\w+)");
+   private static final Pattern EXECUTION_TIME = Pattern.compile ("Execution Time: ([0-9.]+) ms");
+   private static final Pattern BUFFERS = Pattern.compile ("Buffers: shared(?: hit=(\\d+))?(?: read=(\\d+))?");
+
+   private final PizzaStore _esql;
+   private int _failures = 0;
+
+   /**
+    * Creates a checker for the given database.
+    *
+    * @param esql the connected database
+    */
+   public QueryPlanCheck (PizzaStore esql) {
+      this._esql = esql;
+   }//end QueryPlanCheck
+
+   /**
+    * Method to explain every template and print one line per template.
+    *
+    * @return how many templates used a sequential scan they are not allowed
+    * @throws java.lang.Exception when the sample data could not be read
+    */
+   public int run () throws Exception {
+      // parameters from the loaded data: the newest order and a random user
+      List<String> order = this._esql.executeQueryAndReturnResult (
+         "SELECT orderID, login, storeID, orderTimestamp FROM FoodOrder ORDER BY orderID DESC LIMIT 1").get(0);
+      int orderID = Integer.parseInt (order.get(0));
+      String orderLogin = order.get(1);
+      int storeID = Integer.parseInt (order.get(2));
+      Timestamp orderTimestamp = Timestamp.valueOf (order.get(3));
+      List<String> user = this._esql.executeQueryAndReturnResult (
+         "SELECT login, password FROM Users ORDER BY random() LIMIT 1").get(0);
+      int limit = PizzaStore.ordersPerPage;
+
+      System.out.println (String.format ("%-24s %10s %10s %10s  %s", "template", "time ms", "hit", "read", "scans"));
+      check("login", PizzaStore.LOGIN_QUERY, none(), user.get(0), user.get(1));
+      check("user exists", PizzaStore.USER_EXISTS_QUERY, none(), user.get(0));
+      check("order info", PizzaStore.ORDER_INFO_QUERY, none(), orderID);
+      check("customer order info", PizzaStore.CUSTOMER_ORDER_INFO_QUERY, none(), orderID, orderLogin);
+      check("recent orders", PizzaStore.RECENT_ORDERS_QUERY, none(), orderLogin);
+
+      String[] pages = PizzaStore.orderPageQueries (false);
+      check("order page", pages[0], none(), limit);
+      check("older order page", pages[1], none(), orderTimestamp, orderID, orderTimestamp, limit);
+      check("newer order page", pages[2], none(), orderTimestamp, orderID - 1, orderTimestamp, limit);
+      String[] customerPages = PizzaStore.orderPageQueries (true);
+      check("customer order page", customerPages[0], none(), orderLogin, limit);
+      check("customer older page", customerPages[1], none(), orderLogin, orderTimestamp, orderID, orderTimestamp, limit);
+      check("customer newer page", customerPages[2], none(), orderLogin, orderTimestamp, orderID - 1, orderTimestamp, limit);
+
+      // the plan of a function call hides the statements inside it; this
+      // times a whole two-line order, which is rolled back
+      List<String> item = this._esql.executeQueryAndReturnResult ("SELECT itemName FROM Items LIMIT 1").get(0);
+      check("place order", PizzaStore.PLACE_ORDER_QUERY, none(), orderID + 1000000, orderLogin, storeID,
+            new String[] { item.get(0), item.get(0) }, new Integer[] { 1, 2 });
+      check("order status update", PizzaService.UPDATE_ORDER_STATUS_QUERY, none(), "Pending", orderID);
+      check("bulk status update", PizzaService.BULK_UPDATE_ORDER_STATUS_QUERY, none(),
+            new Integer[] { orderID, orderID - 1, orderID - 2 }, new String[] { null, "Pending", "Completed" }, "Pending");
+      // a week of sales up to the newest order
+      Date lastDay = Date.valueOf (orderTimestamp.toLocalDateTime ().toLocalDate ());
+      Date firstDay = Date.valueOf (lastDay.toLocalDate ().minusDays (6));
+      // the deltas are kept small by SalesRollupFolder and have no index
+      check("store sales", PizzaService.STORE_SALES_QUERY, allow("storesalesdelta"),
+            firstDay, lastDay, firstDay, lastDay, 10);
+      check("store daily sales", PizzaService.STORE_DAILY_SALES_QUERY, allow("storesalesdelta"),
+            storeID, firstDay, lastDay, storeID, firstDay, lastDay);
+      check("top items", PizzaService.TOP_ITEMS_QUERY, allow("itemsalesdelta"),
+            firstDay, lastDay, firstDay, lastDay, 10);
+      // the menu is read whole into MenuCatalog
+      check("menu load", MenuCatalog.LOAD_QUERY, allow("items"));
+      // the stores are read whole into StoreDirectory
+      check("store load", StoreDirectory.LOAD_QUERY, allow("store"));
+      return this._failures;
+   }//end run
+
+   private static Set<String> none () {
+      return new HashSet<String>();
+   }//end none
+
+   private static Set<String> allow (String... tables) {
+      return new HashSet<String>(Arrays.asList (tables));
+   }//end allow
+
+   /*
+    * Explains one template and prints its time, buffers and scans, plus
+    * the whole plan when it uses a sequential scan it is not allowed.
+    **/
+   private void check (String name, String sql, Set<String> seqScanAllowed, Object... params) throws Exception {
+      List<List<String>> plan;
+      this._esql.beginTransaction ();
+      try {
+         plan = this._esql.executeQueryAndReturnResult ("EXPLAIN (ANALYZE, BUFFERS) " + sql, params);
+      }finally {
+         this._esql.rollback ();
+      }//end try
+
+      String time = "?";
+      long hit = 0, read = 0;
+      boolean buffersSeen = false;
+      Set<String> scans = new LinkedHashSet<String>();
+      List<String> badScans = new ArrayList<String>();
+      for (List<String> row : plan) {
+         String line = row.get(0);
+         Matcher scan = SCAN.matcher (line);
+         if (scan.find ()) {
+            String table = scan.group(3).toLowerCase ();
+            scans.add(scan.group(1) + (scan.group(2) == null ? "" : " using " + scan.group(2)) + " on " + table);
+            if (scan.group(1).endsWith ("Seq Scan") && !seqScanAllowed.contains (table))
+               badScans.add(table);
+         }//end if
+         Matcher buffers = BUFFERS.matcher (line);
+         // the first Buffers line belongs to the top node and covers the whole plan
+         if (!buffersSeen && buffers.find ()) {
+            hit = buffers.group(1) == null ? 0 : Long.parseLong (buffers.group(1));
+            read = buffers.group(2) == null ? 0 : Long.parseLong (buffers.group(2));
+            buffersSeen = true;
+         }//end if
+         Matcher executionTime = EXECUTION_TIME.matcher (line);
+         if (executionTime.find ())
+            time = executionTime.group(1);
+      }//end for
+
+      System.out.println (String.format ("%-24s %10s %10d %10d  %s%s", name, time, hit, read,
+                                         scans.isEmpty () ? "-" : String.join (", ", scans),
+                                         badScans.isEmpty () ? "" : "   <-- SEQUENTIAL SCAN"));
+      if (!badScans.isEmpty ()) {
+         ++this._failures;
+         for (List<String> row : plan)
+            System.out.println ("      " + row.get(0));
+      }//end if
+   }//end check
+
+   /**
+    * Checks the plans of every query template.
+    *
+    * @param args <dbname> <port> <user>
+    */
+   public static void main (String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            QueryPlanCheck.class.getName () +
+            " <dbname> <port> <user>");
+         return;
+      }//end if
+      Class.forName ("org.postgresql.Driver");
+      PizzaStore esql = new PizzaStore(args[0], args[1], args[2], "");
+      int failures;
+      try {
+         failures = new QueryPlanCheck(esql).run ();
+      }finally {
+         esql.cleanup ();
+      }//end try
+      if (failures > 0) {
+         System.err.println (failures + " templates use a sequential scan");
+         System.exit (1);
+      }//end if
+      System.out.println ("All plans use indexes where expected");
+   }//end main
+}//end QueryPlanCheck
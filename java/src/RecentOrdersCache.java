@@ -0,0 +1,241 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class keeps each user's five most recent order IDs in memory, so
+ * "my last 5 orders" is answered without a round trip.  A user's list is
+ * loaded on first use and kept up to date as the user places orders
+ * through this process.  Users not asked for recently are evicted, least
+ * recently used first, once the estimated size of all lists passes a
+ * memory budget.  Lists are also reloaded after a time to live, which
+ * bounds how long orders placed by other processes can be missing.
+ *
+ * Settings:
+ *    -Dpizzastore.recentOrders.budgetBytes   memory budget (default 16 MB)
+ *    -Dpizzastore.recentOrders.ttlMs         time to live of a list (default 60000)
+ *
+ */
+public class RecentOrdersCache {
+
+   // how many order IDs are kept per user
+   public static final int SIZE = 5;
+
+   // estimated bytes per cached user besides the login's characters: map
+   // entry, key string, entry object and the ID array
+   private static final long ENTRY_BYTES = 160;
+
+   /*
+    * One user's list.  ids is null while the list is being loaded, and
+    * orders placed meanwhile are kept in placedWhileLoading.  Threads that
+    * miss while it loads wait on loaded instead of querying themselves.
+    **/
+   private static final class Entry {
+      final long bytes;
+      final CompletableFuture<int[]> loaded = new CompletableFuture<int[]>();
+      int[] ids = null;
+      List<Integer> placedWhileLoading = new ArrayList<Integer>();
+      long loadedAt;
+
+      Entry (String login) {
+         this.bytes = ENTRY_BYTES + 2L * login.length ();
+      }//end Entry
+   }//end Entry
+
+   private final PizzaStore _esql;
+   private final long _budgetBytes = Long.getLong("pizzastore.recentOrders.budgetBytes", 16L << 20);
+   private final long _ttlNanos = Long.getLong("pizzastore.recentOrders.ttlMs", 60000L) * 1000000L;
+
+   // access ordered, so iteration starts at the least recently used user
+   private final LinkedHashMap<String, Entry> _entries = new LinkedHashMap<String, Entry>(1024, 0.75f, true);
+   private final ReentrantLock _lock = new ReentrantLock();
+   private long _usedBytes = 0;
+
+   private final AtomicLong _hits = new AtomicLong();
+   private final AtomicLong _misses = new AtomicLong();
+   private final AtomicLong _evictions = new AtomicLong();
+
+   /**
+    * Creates an empty cache reading from the given database.
+    *
+    * @param esql the database lists are loaded from
+    */
+   public RecentOrdersCache (PizzaStore esql) {
+      this._esql = esql;
+   }//end RecentOrdersCache
+
+   /**
+    * Method to get a user's most recent order IDs.
+    *
+    * @param login the user
+    * @return up to SIZE order IDs, newest first
+    * @throws java.sql.SQLException when the list had to be loaded and that failed
+    */
+   public int[] get (String login) throws SQLException {
+      Entry entry;
+      boolean loader = false;
+      this._lock.lock ();
+      try {
+         entry = this._entries.get (login);
+         if (entry != null && entry.ids != null && System.nanoTime () - entry.loadedAt < this._ttlNanos) {
+            this._hits.incrementAndGet ();
+            return entry.ids.clone ();
+         }//end if
+         // the first thread to miss loads the list for everyone
+         if (entry == null || entry.ids != null) {
+            if (entry != null)
+               remove(login);
+            entry = new Entry(login);
+            this._entries.put (login, entry);
+            this._usedBytes += entry.bytes;
+            evict();
+            loader = true;
+         }//end if
+      }finally {
+         this._lock.unlock ();
+      }//end try
+      this._misses.incrementAndGet ();
+      if (!loader)
+         return await(entry, login);
+
+      int[] ids;
+      try {
+         ids = load(login);
+      }catch (SQLException | RuntimeException e) {
+         this._lock.lock ();
+         try {
+            if (this._entries.get (login) == entry)
+               remove(login);
+         }finally {
+            this._lock.unlock ();
+         }//end try
+         entry.loaded.completeExceptionally (e);
+         throw e;
+      }//end try
+
+      this._lock.lock ();
+      try {
+         // the entry was dropped while loading; do not bring it back
+         if (this._entries.get (login) == entry) {
+            for (int orderID : entry.placedWhileLoading)
+               ids = prepend(ids, orderID);
+            entry.placedWhileLoading = null;
+            entry.ids = ids;
+            entry.loadedAt = System.nanoTime ();
+         }//end if
+      }finally {
+         this._lock.unlock ();
+      }//end try
+      entry.loaded.complete (ids);
+      return ids.clone ();
+   }//end get
+
+   /*
+    * Waits for the thread loading an entry and returns its list.  Only if
+    * that load failed, or the wait is interrupted, is the list queried here.
+    **/
+   private int[] await (Entry entry, String login) throws SQLException {
+      try {
+         return entry.loaded.get ().clone ();
+      }catch (ExecutionException e) {
+         return load(login);
+      }catch (InterruptedException e) {
+         Thread.currentThread ().interrupt ();
+         return load(login);
+      }//end try
+   }//end await
+
+   /**
+    * Method to add a newly committed order to its user's list, if the
+    * list is cached.
+    *
+    * @param login the user who placed the order
+    * @param orderID the new order
+    */
+   public void orderPlaced (String login, int orderID) {
+      this._lock.lock ();
+      try {
+         Entry entry = this._entries.get (login);
+         if (entry == null)
+            return;
+         if (entry.ids == null)
+            entry.placedWhileLoading.add(orderID);
+         else
+            entry.ids = prepend(entry.ids, orderID);
+      }finally {
+         this._lock.unlock ();
+      }//end try
+   }//end orderPlaced
+
+   /**
+    * Method to drop a user's list, e.g. after the login was renamed.
+    *
+    * @param login the user
+    */
+   public void invalidate (String login) {
+      this._lock.lock ();
+      try {
+         remove(login);
+      }finally {
+         this._lock.unlock ();
+      }//end try
+   }//end invalidate
+
+   private int[] load (String login) throws SQLException {
+      List<List<String>> rows = this._esql.executeQueryAndReturnResult (PizzaStore.RECENT_ORDERS_QUERY, login);
+      int[] ids = new int[rows.size ()];
+      for (int i = 0; i < ids.length; ++i)
+         ids[i] = Integer.parseInt (rows.get(i).get(0));
+      return ids;
+   }//end load
+
+   /*
+    * Puts an order ID in front of a list, unless the list already has it,
+    * dropping the oldest one beyond SIZE.
+    **/
+   private static int[] prepend (int[] ids, int orderID) {
+      for (int id : ids)
+         if (id == orderID)
+            return ids;
+      int[] newer = new int[Math.min(ids.length + 1, SIZE)];
+      newer[0] = orderID;
+      System.arraycopy (ids, 0, newer, 1, newer.length - 1);
+      return newer;
+   }//end prepend
+
+   private void remove (String login) {
+      Entry entry = this._entries.remove (login);
+      if (entry != null)
+         this._usedBytes -= entry.bytes;
+   }//end remove
+
+   private void evict () {
+      Iterator<Map.Entry<String, Entry>> eldest = this._entries.entrySet ().iterator ();
+      while (this._usedBytes > this._budgetBytes && eldest.hasNext ()) {
+         Entry entry = eldest.next ().getValue ();
+         eldest.remove ();
+         this._usedBytes -= entry.bytes;
+         this._evictions.incrementAndGet ();
+      }//end while
+   }//end evict
+
+   @Override
+   public String toString () {
+      this._lock.lock ();
+      try {
+         long hits = this._hits.get (), misses = this._misses.get ();
+         return "users=" + this._entries.size () + " bytes=" + this._usedBytes + "/" + this._budgetBytes
+              + " hits=" + hits + " misses=" + misses + " evictions=" + this._evictions.get ()
+              + String.format (" hitRate=%.1f%%", hits + misses == 0 ? 0.0 : 100.0 * hits / (hits + misses));
+      }finally {
+         this._lock.unlock ();
+      }//end try
+   }//end toString
+}//end RecentOrdersCache
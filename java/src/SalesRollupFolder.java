@@ -0,0 +1,101 @@
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class folds the sales deltas the order triggers append to
+ * StoreSalesDelta and ItemSalesDelta into the StoreDailySales and
+ * ItemDailySales rollups, by calling fold_sales_deltas() of
+ * sql/src/create_functions.sql every few seconds.  The reports add up the
+ * deltas not folded yet, so folding keeps them cheap rather than correct.
+ * Only one session folds at a time, so every long-running program can run
+ * one.  Run on its own it makes one pass.
+ *
+ * Settings:
+ *    -Dpizzastore.rollups.foldSeconds   seconds between folds (default 5)
+ *
+ */
+public class SalesRollupFolder {
+
+   static final String FOLD_QUERY = "SELECT fold_sales_deltas()";
+
+   private static final long FOLD_SECONDS = Long.getLong("pizzastore.rollups.foldSeconds", 5L);
+
+   private final PizzaStore _esql;
+   private ScheduledExecutorService _scheduler = null;
+
+   /**
+    * Creates a folder working through the given store.
+    *
+    * @param esql the store whose primary holds the rollups
+    */
+   public SalesRollupFolder (PizzaStore esql) {
+      this._esql = esql;
+   }//end SalesRollupFolder
+
+   /**
+    * Method to fold the committed deltas into the rollups.
+    *
+    * @return how many rollup rows changed, 0 when another session was folding
+    * @throws java.sql.SQLException when the fold failed
+    */
+   public int run () throws SQLException {
+      Integer changed = this._esql.queryForValue (Integer.class, FOLD_QUERY);
+      return changed == null ? 0 : changed;
+   }//end run
+
+   /**
+    * Method to fold now and then every few seconds on a daemon thread.  A
+    * failed fold is reported and its deltas are folded by the next one.
+    */
+   public void start () {
+      if (this._scheduler != null)
+         return;
+      this._scheduler = Executors.newSingleThreadScheduledExecutor (r -> {
+         Thread t = new Thread(r, "pizzastore-rollup-folder");
+         t.setDaemon(true);
+         return t;
+      });
+      this._scheduler.scheduleWithFixedDelay (this::runQuietly, 0, Math.max(1L, FOLD_SECONDS), TimeUnit.SECONDS);
+   }//end start
+
+   /**
+    * Method to stop the scheduled folds.
+    */
+   public void stop () {
+      if (this._scheduler != null)
+         this._scheduler.shutdownNow ();
+   }//end stop
+
+   private void runQuietly () {
+      try {
+         run();
+      }catch (SQLException | RuntimeException e) {
+         System.err.println ("Error folding sales deltas: " + e.getMessage ());
+      }//end try
+   }//end runQuietly
+
+   /**
+    * Makes one fold.
+    *
+    * @param args <dbname> <port> <user>
+    */
+   public static void main (String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            SalesRollupFolder.class.getName () +
+            " <dbname> <port> <user>");
+         return;
+      }//end if
+      Class.forName ("org.postgresql.Driver");
+      PizzaStore esql = new PizzaStore(args[0], args[1], args[2], "");
+      try {
+         System.out.println ("Folded sales deltas into " + new SalesRollupFolder(esql).run () + " rollup rows");
+      }finally {
+         esql.cleanup ();
+      }//end try
+   }//end main
+}//end SalesRollupFolder
@@ -0,0 +1,244 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * This class keeps an in-memory copy of the Store table, so choosing a
+ * store and checking that it exists do not go to the database.  Stores
+ * are held in one array in storeID order, and every filter is a bitmap
+ * over that array: one per state, one per city and one of the stores
+ * that are open.  Filters are combined by intersecting their bitmaps.
+ * Address prefixes are found with a binary search over the stores sorted
+ * by address.  No part of this program writes Store; changes made by
+ * anyone else are found as in MenuCatalog, through the Store row of
+ * CatalogVersion, by the VersionedSnapshot holding the stores.
+ *
+ */
+public class StoreDirectory {
+
+   static final String LOAD_QUERY =
+      "SELECT storeID, address, city, state, isOpen, reviewScore FROM Store ORDER BY storeID";
+   static final String VERSION_QUERY = "SELECT version FROM CatalogVersion WHERE tableName = 'store'";
+
+   // column labels of SELECT * FROM Store, used when printing stores
+   public static final String[] HEADER = { "storeid", "address", "city", "state", "isopen", "reviewscore" };
+
+   /**
+    * One row of the Store table.
+    */
+   public static class Store {
+      public final int storeID;
+      public final String address;
+      public final String city;
+      public final String state;
+      public final boolean isOpen;
+      public final String reviewScore;
+
+      Store (int storeID, String address, String city, String state, boolean isOpen, String reviewScore) {
+         this.storeID = storeID;
+         this.address = address;
+         this.city = city;
+         this.state = state;
+         this.isOpen = isOpen;
+         this.reviewScore = reviewScore;
+      }//end Store
+   }//end Store
+
+   /*
+    * An immutable view of the stores as of one load.  Bit i of every
+    * bitmap stands for stores[i].
+    **/
+   private static final class Snapshot {
+      final Store[] stores;
+      final Map<Integer, Store> byID = new HashMap<Integer, Store>();
+      final Map<String, BitSet> byState = new HashMap<String, BitSet>();
+      final Map<String, BitSet> byCity = new HashMap<String, BitSet>();
+      final BitSet open = new BitSet();
+      final List<String> states;
+      // positions into stores sorted by address, and those addresses
+      final int[] byAddress;
+      final String[] addresses;
+
+      Snapshot (List<Store> stores) {
+         this.stores = stores.toArray (new Store[0]);
+         TreeSet<String> states = new TreeSet<String>();
+         for (int i = 0; i < this.stores.length; ++i) {
+            Store store = this.stores[i];
+            this.byID.put(store.storeID, store);
+            this.byState.computeIfAbsent (key(store.state), k -> new BitSet()).set(i);
+            this.byCity.computeIfAbsent (key(store.city), k -> new BitSet()).set(i);
+            if (store.isOpen)
+               this.open.set(i);
+            states.add(store.state);
+         }//end for
+         this.states = Collections.unmodifiableList (new ArrayList<String>(states));
+
+         Integer[] order = new Integer[this.stores.length];
+         for (int i = 0; i < order.length; ++i)
+            order[i] = i;
+         Arrays.sort (order, Comparator.comparing ((Integer i) -> key(this.stores[i].address)));
+         this.byAddress = new int[order.length];
+         this.addresses = new String[order.length];
+         for (int i = 0; i < order.length; ++i) {
+            this.byAddress[i] = order[i];
+            this.addresses[i] = key(this.stores[order[i]].address);
+         }//end for
+      }//end Snapshot
+
+      /*
+       * The stores whose address starts with a prefix: the range of the
+       * address-sorted array from the first address at or after the prefix
+       * up to the first one that no longer starts with it.
+       **/
+      BitSet withAddressPrefix (String prefix) {
+         int low = 0, high = this.addresses.length;
+         while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (this.addresses[mid].compareTo (prefix) < 0)
+               low = mid + 1;
+            else
+               high = mid;
+         }//end while
+         BitSet matches = new BitSet(this.stores.length);
+         for (int i = low; i < this.addresses.length && this.addresses[i].startsWith (prefix); ++i)
+            matches.set(this.byAddress[i]);
+         return matches;
+      }//end withAddressPrefix
+   }//end Snapshot
+
+   /**
+    * What to narrow a store search down to.  Blank fields do not filter.
+    */
+   public static class Filter {
+      public String state = "";
+      public String city = "";
+      public String addressPrefix = "";
+      public boolean openOnly = false;
+
+      @Override
+      public String toString () {
+         List<String> parts = new ArrayList<String>();
+         if (!this.state.isEmpty ())
+            parts.add("state " + this.state);
+         if (!this.city.isEmpty ())
+            parts.add("city " + this.city);
+         if (!this.addressPrefix.isEmpty ())
+            parts.add("address " + this.addressPrefix + "...");
+         if (this.openOnly)
+            parts.add("open only");
+         return parts.isEmpty () ? "all stores" : String.join (", ", parts);
+      }//end toString
+   }//end Filter
+
+   private final PizzaStore _esql;
+
+   // the stores, reloaded when Store's CatalogVersion moves
+   private final VersionedSnapshot<Snapshot> _stores;
+
+   /**
+    * Creates an empty directory that loads itself through the given store.
+    *
+    * @param esql the store whose connection pool reads the Store table
+    */
+   public StoreDirectory (PizzaStore esql) {
+      this._esql = esql;
+      this._stores = new VersionedSnapshot<Snapshot>(esql, VERSION_QUERY, this::load);
+   }//end StoreDirectory
+
+   /**
+    * Method to drop the loaded stores after the Store table has changed.
+    * The next read loads them again.
+    */
+   public void invalidate () {
+      this._stores.invalidate ();
+   }//end invalidate
+
+   /**
+    * @param storeID the store's ID
+    * @return the store, or null when there is no such store
+    * @throws java.sql.SQLException when the stores had to be loaded and could not be
+    */
+   public Store find (int storeID) throws SQLException {
+      return snapshot ().byID.get(storeID);
+   }//end find
+
+   /**
+    * @return the states that have at least one store, alphabetically
+    * @throws java.sql.SQLException when the stores had to be loaded and could not be
+    */
+   public List<String> states () throws SQLException {
+      return snapshot ().states;
+   }//end states
+
+   /**
+    * Method to find the stores matching every field of a filter.  State
+    * and city are matched whole and the address by prefix, all ignoring
+    * case.
+    *
+    * @param filter what to narrow the stores down to
+    * @return the matching stores, in storeID order
+    * @throws java.sql.SQLException when the stores had to be loaded and could not be
+    */
+   public List<Store> search (Filter filter) throws SQLException {
+      Snapshot directory = snapshot ();
+      BitSet matches = new BitSet(directory.stores.length);
+      matches.set(0, directory.stores.length);
+      if (!filter.state.isEmpty ())
+         matches.and (directory.byState.getOrDefault (key(filter.state), new BitSet()));
+      if (!filter.city.isEmpty ())
+         matches.and (directory.byCity.getOrDefault (key(filter.city), new BitSet()));
+      if (filter.openOnly)
+         matches.and (directory.open);
+      if (!filter.addressPrefix.isEmpty () && !matches.isEmpty ())
+         matches.and (directory.withAddressPrefix (key(filter.addressPrefix)));
+
+      List<Store> stores = new ArrayList<Store>(matches.cardinality ());
+      for (int i = matches.nextSetBit (0); i >= 0; i = matches.nextSetBit (i + 1))
+         stores.add(directory.stores[i]);
+      return stores;
+   }//end search
+
+   /**
+    * Method to print stores to standard out in the layout of SELECT * FROM Store.
+    *
+    * @param stores the stores to print
+    * @return the number of stores printed
+    */
+   public static int print (List<Store> stores) {
+      List<List<String>> rows = new ArrayList<List<String>>(stores.size ());
+      for (Store store : stores)
+         rows.add(Arrays.asList (Integer.toString (store.storeID), store.address, store.city, store.state,
+                                 store.isOpen ? "yes" : "no", store.reviewScore));
+      PizzaStore.printRows (HEADER, rows);
+      return stores.size ();
+   }//end print
+
+   /*
+    * Reads the Store table into a new directory.
+    **/
+   private Snapshot load () throws SQLException {
+      List<Store> stores = new ArrayList<Store>();
+      for (List<String> row : this._esql.executeQueryAndReturnResult (LOAD_QUERY))
+         stores.add(new Store(Integer.parseInt (row.get(0).trim ()), row.get(1).trim (), row.get(2).trim (),
+                              row.get(3).trim (), "yes".equalsIgnoreCase (row.get(4).trim ()), row.get(5)));
+      return new Snapshot(stores);
+   }//end load
+
+   /*
+    * The current stores.
+    **/
+   private Snapshot snapshot () throws SQLException {
+      return this._stores.get(false);
+   }//end snapshot
+
+   private static String key (String value) {
+      return value.trim ().toLowerCase ();
+   }//end key
+}//end StoreDirectory
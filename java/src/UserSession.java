@@ -0,0 +1,54 @@
+/**
+ * This class holds what is known about a logged in user: the login, the
+ * role read in the same query that checked the password, and the version
+ * of the user's account at that moment.  Privileged operations check the
+ * role here instead of asking the database again.  When a manager changes
+ * the user's role or login, PizzaService bumps the account version and
+ * every session holding the old version is no longer current.
+ *
+ */
+public class UserSession {
+
+   public final String login;
+   public final String role;
+   final long version;
+
+   /**
+    * Creates a session; only PizzaService.logIn creates them.
+    *
+    * @param login the user's login
+    * @param role the user's role, without padding
+    * @param version the user's account version when the session was created
+    */
+   UserSession (String login, String role, long version) {
+      this.login = login;
+      this.role = role;
+      this.version = version;
+   }//end UserSession
+
+   /**
+    * @return true if the user is a customer
+    */
+   public boolean isCustomer () {
+      return "customer".equals (this.role);
+   }//end isCustomer
+
+   /**
+    * @return true if the user is a driver
+    */
+   public boolean isDriver () {
+      return "driver".equals (this.role);
+   }//end isDriver
+
+   /**
+    * @return true if the user is a manager
+    */
+   public boolean isManager () {
+      return "manager".equals (this.role);
+   }//end isManager
+
+   @Override
+   public String toString () {
+      return this.login + " (" + this.role + ")";
+   }//end toString
+}//end UserSession
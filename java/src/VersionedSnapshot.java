@@ -0,0 +1,137 @@
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class holds an in-memory copy of a table, as MenuCatalog and
+ * StoreDirectory keep of Items and Store, and reloads it when the table
+ * changes.  Changes made through this process call invalidate, and the
+ * next read loads the copy again.  Changes made by other processes are
+ * found through the table's row of CatalogVersion, which a trigger bumps
+ * on every write: a read at most checkMs after the last check reads that
+ * version, and loads the table again when it differs from the version the
+ * copy was loaded at.  While one thread checks, the others keep reading
+ * the copy they have.
+ *
+ * Settings:
+ *    -Dpizzastore.catalog.checkMs   how long a copy is used without checking its version (default 1000)
+ *
+ * @param <T> the copy, built from one read of the table
+ */
+public class VersionedSnapshot<T> {
+
+   private static final long CHECK_NANOS = Long.getLong("pizzastore.catalog.checkMs", 1000L) * 1000000L;
+
+   /**
+    * Reads the table and builds the copy from it.
+    *
+    * @param <T> the copy
+    */
+   public interface Loader<T> {
+      T load () throws SQLException;
+   }//end Loader
+
+   /*
+    * A copy together with the CatalogVersion it was loaded at.
+    **/
+   private static final class Loaded<T> {
+      final long dbVersion;
+      final T value;
+
+      Loaded (long dbVersion, T value) {
+         this.dbVersion = dbVersion;
+         this.value = value;
+      }//end Loaded
+   }//end Loaded
+
+   private final PizzaStore _esql;
+   private final String _versionQuery;
+   private final Loader<T> _loader;
+
+   // bumped by every invalidate, so a load that raced an update is not kept
+   private final AtomicLong _invalidations = new AtomicLong();
+
+   // the current copy, or null when it must be reloaded
+   private volatile Loaded<T> _loaded = null;
+
+   // when the copy's version was last compared with the database's
+   private volatile long _checkedAt = 0;
+
+   // held while one thread checks or reloads the copy
+   private final ReentrantLock _load = new ReentrantLock();
+
+   /**
+    * Creates an empty holder that loads on the first read.
+    *
+    * @param esql the store the version is read through
+    * @param versionQuery the query returning the table's CatalogVersion
+    * @param loader reads the table into a new copy
+    */
+   public VersionedSnapshot (PizzaStore esql, String versionQuery, Loader<T> loader) {
+      this._esql = esql;
+      this._versionQuery = versionQuery;
+      this._loader = loader;
+   }//end VersionedSnapshot
+
+   /**
+    * Method to drop the copy after the table has changed.  The next read
+    * loads it again.
+    */
+   public void invalidate () {
+      this._invalidations.incrementAndGet ();
+      this._loaded = null;
+   }//end invalidate
+
+   /**
+    * @return how many times the copy was invalidated
+    */
+   public long getInvalidations () {
+      return this._invalidations.get ();
+   }//end getInvalidations
+
+   /**
+    * Method to return the current copy, checked against CatalogVersion
+    * when the last check is older than checkMs or force is set, and loaded
+    * when missing or out of date.
+    *
+    * @param force true to check the version now rather than at the next check
+    * @return the copy
+    * @throws java.sql.SQLException when the version could not be read or the table loaded
+    */
+   public T get (boolean force) throws SQLException {
+      Loaded<T> current = this._loaded;
+      if (current != null && !force && System.nanoTime () - this._checkedAt < CHECK_NANOS)
+         return current.value;
+
+      // only a read with no copy, or one that must see the latest, waits
+      if (current == null || force)
+         this._load.lock ();
+      else if (!this._load.tryLock ())
+         return current.value;
+      try {
+         current = this._loaded;
+         if (current != null && !force && System.nanoTime () - this._checkedAt < CHECK_NANOS)
+            return current.value;
+
+         long invalidations = this._invalidations.get ();
+         // read before the table, so a write in between makes the copy look older, not newer
+         Long dbVersion = this._esql.queryForValue (Long.class, this._versionQuery);
+         long loadedAt = System.nanoTime ();
+         if (current != null && dbVersion != null && current.dbVersion == dbVersion) {
+            this._checkedAt = loadedAt;
+            return current.value;
+         }//end if
+
+         current = new Loaded<T>(dbVersion == null ? -1 : dbVersion, this._loader.load ());
+
+         // an update that landed while loading invalidates this copy too
+         if (this._invalidations.get () == invalidations) {
+            this._loaded = current;
+            this._checkedAt = loadedAt;
+         }//end if
+         return current.value;
+      }finally {
+         this._load.unlock ();
+      }//end try
+   }//end get
+}//end VersionedSnapshot
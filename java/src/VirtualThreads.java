@@ -0,0 +1,46 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This class hands out executors that start one virtual thread per task
+ * when the JVM has them (Java 21 and later), so thousands of tasks that
+ * mostly wait on the database cost a few hundred bytes each instead of a
+ * platform thread.  On older JVMs it falls back to a cached pool of
+ * platform threads.  The JDK method is looked up by reflection so the
+ * program still builds and runs on older JDKs.
+ *
+ * Code that may run on these threads guards its blocking sections with
+ * java.util.concurrent locks rather than synchronized.  Before Java 24 a
+ * virtual thread that blocks inside synchronized, e.g. on a database round
+ * trip, pins the platform thread carrying it, and a few such waits can
+ * stall every other virtual thread.
+ *
+ */
+public class VirtualThreads {
+
+   /**
+    * Method to create an executor that runs every task on a thread of its own.
+    *
+    * @return a virtual-thread-per-task executor, or a cached thread pool
+    *         when the JVM has no virtual threads
+    */
+   public static ExecutorService newPerTaskExecutor () {
+      try {
+         return (ExecutorService) Executors.class.getMethod ("newVirtualThreadPerTaskExecutor").invoke (null);
+      }catch (ReflectiveOperationException e) {
+         return Executors.newCachedThreadPool ();
+      }//end try
+   }//end newPerTaskExecutor
+
+   /**
+    * @return true if newPerTaskExecutor hands out virtual threads on this JVM
+    */
+   public static boolean available () {
+      try {
+         Executors.class.getMethod ("newVirtualThreadPerTaskExecutor");
+         return true;
+      }catch (NoSuchMethodException e) {
+         return false;
+      }//end try
+   }//end available
+}//end VirtualThreads
@@ -0,0 +1,397 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class runs scripted user sessions against PizzaService without a
+ * terminal, many at once, to measure what the system sustains under a
+ * given mix of customers and drivers.  Every session runs on a thread of
+ * its own (a virtual thread where the JVM has them), so thousands of
+ * sessions can wait on the database or think at once.  At the end it
+ * reports throughput and latency percentiles per operation.
+ *
+ * A workload file holds one session script per line:
+ *
+ *    <weight> <role>: <step>; <step>; ...
+ *
+ * Each session picks a script with probability proportional to its weight
+ * and a random user with the script's role.  Steps are:
+ *
+ *    login                 log in as the session's user
+ *    menu                  read the whole menu
+ *    menu type <type>      read the items of one type
+ *    menu max <price>      read the items at or below a price
+ *    menu sort asc|desc    read the menu sorted by price
+ *    order [lines]         order that many random items (default 1 to 5) at a random store
+ *    status                read the session's last order, or a recent order
+ *    recent                read the user's five most recent orders
+ *    deliver <status>      move an order placed during the run (or a recent one) to status
+ *    think <ms>            pause for about that long, not timed
+ *
+ * Blank lines and lines starting with # are ignored.
+ *
+ */
+public class WorkloadReplayer {
+
+   // the timed operations, in the order they are reported
+   private static final String[] OPERATIONS = { "login", "menu", "order", "status", "recent", "deliver" };
+
+   // statuses after which an order needs no more driver updates
+   private static final String[] FINAL_STATUSES = { "Completed", "Canceled" };
+
+   /*
+    * One line of the workload file.
+    **/
+   static final class Script {
+      final int weight;
+      final String role;
+      final List<String[]> steps = new ArrayList<String[]>();
+
+      Script (int weight, String role) {
+         this.weight = weight;
+         this.role = role;
+      }//end Script
+   }//end Script
+
+   /*
+    * Latencies and failures of one operation across all sessions.
+    **/
+   private static final class Operation {
+      final LatencyHistogram latency = new LatencyHistogram();
+      final AtomicLong errors = new AtomicLong();
+   }//end Operation
+
+   private final PizzaService _service;
+   private final List<Script> _scripts;
+   private final int _totalWeight;
+   private final Map<String, List<String[]>> _usersByRole = new HashMap<String, List<String[]>>();
+   private final List<Integer> _storeIDs = new ArrayList<Integer>();
+   private final List<String> _itemNames = new ArrayList<String>();
+   private final List<Integer> _recentOrders = new ArrayList<Integer>();
+   private final Map<String, Operation> _operations = new LinkedHashMap<String, Operation>();
+
+   // orders placed during the run that drivers have not finished yet
+   private final ConcurrentLinkedQueue<Integer> _openOrders = new ConcurrentLinkedQueue<Integer>();
+   private final AtomicLong _abortedSessions = new AtomicLong();
+
+   /**
+    * Creates a replayer for the given scripts, loading the users, stores,
+    * items and recent orders the sessions pick from.
+    *
+    * @param esql the connected database
+    * @param scripts the session scripts, as read by readWorkload
+    * @throws java.sql.SQLException when the lookups failed
+    * @throws java.lang.IllegalArgumentException when a script's role has no users
+    */
+   public WorkloadReplayer (PizzaStore esql, List<Script> scripts) throws SQLException {
+      this._service = esql.getService ();
+      this._scripts = scripts;
+      int totalWeight = 0;
+      for (Script script : scripts) {
+         totalWeight += script.weight;
+         if (!this._usersByRole.containsKey (script.role))
+            this._usersByRole.put (script.role, new ArrayList<String[]>());
+      }//end for
+      this._totalWeight = totalWeight;
+
+      for (List<String> row : esql.executeQueryAndReturnResult ("SELECT login, password, role FROM Users")) {
+         List<String[]> users = this._usersByRole.get (row.get(2).trim ());
+         if (users != null)
+            users.add(new String[] { row.get(0), row.get(1) });
+      }//end for
+      for (Map.Entry<String, List<String[]>> role : this._usersByRole.entrySet ())
+         if (role.getValue ().isEmpty ())
+            throw new IllegalArgumentException("No users with role " + role.getKey ());
+
+      for (List<String> row : esql.executeQueryAndReturnResult ("SELECT storeID FROM Store"))
+         this._storeIDs.add(Integer.parseInt (row.get(0)));
+      for (MenuCatalog.Item item : this._service.getMenu ().all ())
+         this._itemNames.add(item.name);
+      for (List<String> row : esql.executeQueryAndReturnResult (
+              "SELECT orderID FROM FoodOrder ORDER BY orderTimestamp DESC, orderID DESC LIMIT 1000"))
+         this._recentOrders.add(Integer.parseInt (row.get(0)));
+
+      for (String name : OPERATIONS)
+         this._operations.put (name, new Operation());
+   }//end WorkloadReplayer
+
+   /**
+    * Method to read a workload file.
+    *
+    * @param path the workload file
+    * @return its session scripts
+    * @throws java.io.IOException when the file cannot be read
+    * @throws java.lang.IllegalArgumentException when a line is malformed
+    */
+   public static List<Script> readWorkload (String path) throws IOException {
+      List<Script> scripts = new ArrayList<Script>();
+      BufferedReader reader = new BufferedReader(new FileReader(path));
+      try {
+         String line;
+         int number = 0;
+         while ((line = reader.readLine ()) != null) {
+            ++number;
+            line = line.trim ();
+            if (line.isEmpty () || line.startsWith ("#"))
+               continue;
+            int colon = line.indexOf (':');
+            String[] head = colon < 0 ? new String[0] : line.substring (0, colon).trim ().split ("\\s+");
+            if (head.length != 2)
+               throw new IllegalArgumentException(path + ":" + number + ": expected <weight> <role>: <steps>");
+            Script script = new Script(Integer.parseInt (head[0]), head[1]);
+            if (script.weight <= 0)
+               throw new IllegalArgumentException(path + ":" + number + ": weight must be greater than zero");
+            for (String step : line.substring (colon + 1).split (";")) {
+               step = step.trim ();
+               if (step.isEmpty ())
+                  continue;
+               String[] verb = step.split ("\\s+", 2);
+               if (!verb[0].equals ("think") && !isOperation(verb[0]))
+                  throw new IllegalArgumentException(path + ":" + number + ": unknown step " + verb[0]);
+               script.steps.add(new String[] { verb[0], verb.length > 1 ? verb[1] : "" });
+            }//end for
+            scripts.add(script);
+         }//end while
+      }finally {
+         reader.close ();
+      }//end try
+      if (scripts.isEmpty ())
+         throw new IllegalArgumentException(path + ": no session scripts");
+      return scripts;
+   }//end readWorkload
+
+   private static boolean isOperation (String name) {
+      for (String operation : OPERATIONS)
+         if (operation.equals (name))
+            return true;
+      return false;
+   }//end isOperation
+
+   /**
+    * Method to run sessions and wait for all of them to finish.
+    *
+    * @param sessions how many sessions to run
+    * @param concurrency at most this many sessions run at once
+    * @return the wall clock time of the run in nanoseconds
+    * @throws java.lang.InterruptedException when interrupted while waiting
+    */
+   public long run (int sessions, int concurrency) throws InterruptedException {
+      Semaphore running = new Semaphore(concurrency);
+      ExecutorService threads = VirtualThreads.newPerTaskExecutor ();
+      long start = System.nanoTime ();
+      try {
+         for (int i = 0; i < sessions; ++i) {
+            running.acquire ();
+            threads.execute (() -> {
+               try {
+                  runSession ();
+               }finally {
+                  running.release ();
+               }//end try
+            });
+         }//end for
+      }finally {
+         threads.shutdown ();
+         threads.awaitTermination (Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+      }//end try
+      return System.nanoTime () - start;
+   }//end run
+
+   /*
+    * Runs one randomly chosen script as a randomly chosen user.  A failed
+    * step is counted against its operation and the session goes on,
+    * except a failed login, which ends the session.
+    **/
+   private void runSession () {
+      ThreadLocalRandom random = ThreadLocalRandom.current ();
+      Script script = pickScript(random.nextInt (this._totalWeight));
+      List<String[]> users = this._usersByRole.get (script.role);
+      String[] user = users.get(random.nextInt (users.size ()));
+      UserSession[] session = { null };
+      int[] lastOrder = { -1 };
+
+      for (String[] step : script.steps) {
+         if (step[0].equals ("think")) {
+            try {
+               long millis = Long.parseLong (step[1].trim ());
+               Thread.sleep (millis / 2 + random.nextLong (millis + 1));
+            }catch (InterruptedException e) {
+               Thread.currentThread ().interrupt ();
+               return;
+            }//end try
+            continue;
+         }//end if
+
+         Operation operation = this._operations.get (step[0]);
+         long start = System.nanoTime ();
+         boolean ok;
+         try {
+            ok = runStep(step[0], step[1], user, session, lastOrder, random);
+         }catch (Exception e) {
+            ok = false;
+         }//end try
+         operation.latency.record (System.nanoTime () - start);
+         if (!ok) {
+            operation.errors.incrementAndGet ();
+            if (step[0].equals ("login")) {
+               this._abortedSessions.incrementAndGet ();
+               return;
+            }//end if
+         }//end if
+      }//end for
+   }//end runSession
+
+   private Script pickScript (int ticket) {
+      for (Script script : this._scripts) {
+         ticket -= script.weight;
+         if (ticket < 0)
+            return script;
+      }//end for
+      return this._scripts.get(this._scripts.size () - 1);
+   }//end pickScript
+
+   /*
+    * Runs one timed step.
+    * @return false when the step did not do what it was asked to
+    **/
+   private boolean runStep (String verb, String args, String[] user, UserSession[] session,
+                            int[] lastOrder, ThreadLocalRandom random) throws Exception {
+      switch (verb) {
+         case "login":
+            session[0] = this._service.logIn (user[0], user[1]);
+            return session[0] != null;
+
+         case "menu": {
+            MenuCatalog menu = this._service.getMenu ();
+            String[] filter = args.split ("\\s+", 2);
+            if (filter[0].equals ("type"))
+               menu.ofType (filter[1]);
+            else if (filter[0].equals ("max"))
+               menu.atMost (new BigDecimal(filter[1]));
+            else if (filter[0].equals ("sort"))
+               menu.sortedByPrice (!filter[1].equals ("desc"));
+            else
+               menu.all ();
+            return true;
+         }
+
+         case "order": {
+            int lines = args.isEmpty () ? random.nextInt (1, 6) : Integer.parseInt (args);
+            Map<String, Integer> cart = new LinkedHashMap<String, Integer>();
+            for (int l = 0; l < lines; ++l)
+               cart.merge(this._itemNames.get(random.nextInt (this._itemNames.size ())), random.nextInt (1, 4), Integer::sum);
+            int storeID = this._storeIDs.get(random.nextInt (this._storeIDs.size ()));
+            PizzaService.Receipt receipt = this._service.placeOrder (session[0], storeID, cart);
+            lastOrder[0] = receipt.orderID;
+            this._openOrders.add(receipt.orderID);
+            return true;
+         }
+
+         case "status": {
+            int orderID = lastOrder[0] >= 0 ? lastOrder[0] : randomRecentOrder(random);
+            return orderID < 0 || !this._service.getOrderInfo (session[0], orderID).isEmpty ();
+         }
+
+         case "recent":
+            this._service.getRecentOrders (session[0]);
+            return true;
+
+         case "deliver": {
+            Integer orderID = this._openOrders.poll ();
+            if (orderID == null)
+               orderID = randomRecentOrder(random);
+            if (orderID < 0)
+               return true;
+            boolean found = this._service.updateOrderStatus (session[0], orderID, args);
+            // hand the order on to the next driver step until it is done
+            if (found && !isFinal(args))
+               this._openOrders.add(orderID);
+            return found;
+         }
+
+         default:
+            throw new IllegalArgumentException("Unknown step " + verb);
+      }//end switch
+   }//end runStep
+
+   private int randomRecentOrder (ThreadLocalRandom random) {
+      return this._recentOrders.isEmpty () ? -1 : this._recentOrders.get(random.nextInt (this._recentOrders.size ()));
+   }//end randomRecentOrder
+
+   private static boolean isFinal (String status) {
+      for (String done : FINAL_STATUSES)
+         if (done.equals (status))
+            return true;
+      return false;
+   }//end isFinal
+
+   /**
+    * Method to print throughput and latency percentiles per operation.
+    *
+    * @param sessions how many sessions were run
+    * @param elapsedNanos the wall clock time of the run
+    */
+   public void printReport (int sessions, long elapsedNanos) {
+      double seconds = elapsedNanos / 1e9;
+      System.out.println ();
+      System.out.println (String.format ("%d sessions in %.1f s (%.1f sessions/s), %d ended by a failed login",
+                                         sessions, seconds, sessions / seconds, this._abortedSessions.get ()));
+      System.out.println (String.format ("%-10s %10s %8s %10s %10s %10s %10s %10s",
+                                         "operation", "count", "errors", "ops/s", "p50 ms", "p99 ms", "p999 ms", "max ms"));
+      for (Map.Entry<String, Operation> entry : this._operations.entrySet ()) {
+         LatencyHistogram latency = entry.getValue ().latency;
+         if (latency.getCount () == 0)
+            continue;
+         System.out.println (String.format ("%-10s %10d %8d %10.1f %10.2f %10.2f %10.2f %10.2f",
+                                            entry.getKey (), latency.getCount (), entry.getValue ().errors.get (),
+                                            latency.getCount () / seconds,
+                                            latency.getPercentile (50) / 1e6, latency.getPercentile (99) / 1e6,
+                                            latency.getPercentile (99.9) / 1e6, latency.getMax () / 1e6));
+      }//end for
+   }//end printReport
+
+   /**
+    * Replays a workload file against the database.
+    *
+    * @param args <dbname> <port> <user> <workload file> [sessions] [concurrency]
+    */
+   public static void main (String[] args) throws Exception {
+      if (args.length < 4) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] [-Dpizzastore.pool.maxSize=<connections>] " +
+            WorkloadReplayer.class.getName () +
+            " <dbname> <port> <user> <workload file> [sessions] [concurrency]");
+         return;
+      }//end if
+      List<Script> scripts = readWorkload(args[3]);
+      int sessions = args.length > 4 ? Integer.parseInt (args[4]) : 1000;
+      int concurrency = args.length > 5 ? Integer.parseInt (args[5]) : sessions;
+
+      Class.forName ("org.postgresql.Driver");
+      PizzaStore esql = new PizzaStore(args[0], args[1], args[2], "");
+      try {
+         WorkloadReplayer replayer = new WorkloadReplayer(esql, scripts);
+         System.out.println ("Running " + sessions + " sessions, " + concurrency + " at once, on " +
+                             (VirtualThreads.available () ? "virtual" : "platform") + " threads...");
+         long elapsed = replayer.run (sessions, concurrency);
+         replayer.printReport (sessions, elapsed);
+         System.out.println ("Pool: " + esql.getPoolStats ());
+      }finally {
+         esql.cleanup ();
+      }//end try
+   }//end main
+}//end WorkloadReplayer
@@ -0,0 +1,27 @@
+#!/bin/bash
+# Creates a streaming replica of the local Postgres cluster on PGPORT and
+# starts it, to try -Dpizzastore.replicas on one machine.  The primary
+# needs wal_level replica (the default) and must allow replication
+# connections from $USER in pg_hba.conf.
+#
+#   REPLICA_PORT=port   port of the replica (default PGPORT + 1)
+#   REPLICA_DIR=dir     data directory of the replica (default /tmp/$USER/pizzastore_replica)
+
+REPLICA_PORT=${REPLICA_PORT:-$((PGPORT + 1))}
+REPLICA_DIR=${REPLICA_DIR:-/tmp/$USER/pizzastore_replica}
+
+if [ -e "$REPLICA_DIR" ]; then
+   echo "$REPLICA_DIR already exists; stop the replica and remove it first"
+   exit 1
+fi
+mkdir -p "$(dirname "$REPLICA_DIR")"
+
+# copy the primary; -R writes the settings that make the copy follow it
+pg_basebackup -h localhost -p $PGPORT -U $USER -D "$REPLICA_DIR" -R -X stream -c fast || exit 1
+chmod 700 "$REPLICA_DIR"
+pg_ctl -D "$REPLICA_DIR" -o "-p $REPLICA_PORT" -l "$REPLICA_DIR/replica.log" -w start || exit 1
+
+# the replica answers once it has replayed the copy
+psql -h localhost -p $REPLICA_PORT -d $USER"_project_phase_3_DB" -Atc "SELECT pg_is_in_recovery()" || exit 1
+echo "Replica running on port $REPLICA_PORT; stop it with: pg_ctl -D $REPLICA_DIR stop"
+echo "Send reads to it with: -Dpizzastore.replicas=localhost:$REPLICA_PORT"
@@ -0,0 +1,277 @@
+-- Server-side operations the application calls in a single statement, and
+-- the triggers behind the orderID registry, the order feed, the sales
+-- rollups and the catalog versions.
+
+-- Places one order: checks the lines, prices them from Items, and writes
+-- the FoodOrder row with its total and every ItemsInOrder row.  A single
+-- statement, so it is atomic under autocommit and costs one round trip
+-- whatever the size of the cart.  The orderID comes from the caller,
+-- which reserves blocks of IDs on FoodOrder_orderID_seq.  Returns the total.
+CREATE OR REPLACE FUNCTION place_order(p_orderID integer,
+                                       p_login varchar,
+                                       p_storeID integer,
+                                       p_items varchar[],
+                                       p_quantities integer[])
+RETURNS decimal(10,2) AS $$
+DECLARE
+   v_lines integer;
+   v_priced integer;
+   v_total decimal(10,2);
+   v_bad varchar;
+BEGIN
+   IF coalesce(cardinality(p_items), 0) = 0 THEN
+      RAISE EXCEPTION 'No items selected' USING ERRCODE = 'invalid_parameter_value';
+   END IF;
+   IF cardinality(p_items) <> coalesce(cardinality(p_quantities), 0) THEN
+      RAISE EXCEPTION 'Every item needs a quantity' USING ERRCODE = 'invalid_parameter_value';
+   END IF;
+
+   SELECT l.itemName INTO v_bad
+     FROM unnest(p_items, p_quantities) AS l(itemName, quantity)
+    WHERE l.quantity IS NULL OR l.quantity <= 0
+    LIMIT 1;
+   IF FOUND THEN
+      RAISE EXCEPTION 'Quantity must be greater than zero: %', v_bad USING ERRCODE = 'invalid_parameter_value';
+   END IF;
+
+   SELECT COUNT(*), COUNT(i.itemName), SUM(i.price * l.quantity)
+     INTO v_lines, v_priced, v_total
+     FROM unnest(p_items, p_quantities) AS l(itemName, quantity)
+     LEFT JOIN Items i ON i.itemName = l.itemName;
+   IF v_priced < v_lines THEN
+      SELECT l.itemName INTO v_bad
+        FROM unnest(p_items) AS l(itemName)
+       WHERE NOT EXISTS (SELECT 1 FROM Items i WHERE i.itemName = l.itemName)
+       LIMIT 1;
+      RAISE EXCEPTION 'Item not found: %', v_bad USING ERRCODE = 'invalid_parameter_value';
+   END IF;
+
+   INSERT INTO FoodOrder (orderID, login, storeID, totalPrice, orderStatus, orderTimestamp)
+   VALUES (p_orderID, p_login, p_storeID, v_total, 'Pending', NOW());
+   -- the same item twice adds up, as in the console cart
+   INSERT INTO ItemsInOrder (orderID, itemName, quantity)
+      SELECT p_orderID, l.itemName, SUM(l.quantity)
+        FROM unnest(p_items, p_quantities) AS l(itemName, quantity)
+       GROUP BY l.itemName;
+   RETURN v_total;
+END;
+$$ LANGUAGE plpgsql;
+
+-- The orderID registry: every order placed claims its orderID in
+-- FoodOrderID, whose primary key turns a second order with the same ID,
+-- in any partition, into a unique violation.  Deleting the order frees
+-- the ID and, through ItemsInOrder's foreign key, deletes its lines.
+-- AFTER, not BEFORE, so that a row skipped by ON CONFLICT DO NOTHING
+-- (the journal replaying an order) claims nothing.
+CREATE OR REPLACE FUNCTION claim_order_id()
+RETURNS trigger AS $$
+BEGIN
+   INSERT INTO FoodOrderID (orderID) VALUES (NEW.orderID);
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION release_order_id()
+RETURNS trigger AS $$
+BEGIN
+   DELETE FROM FoodOrderID WHERE orderID = OLD.orderID;
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS FoodOrder_id_claimed ON FoodOrder;
+CREATE TRIGGER FoodOrder_id_claimed
+AFTER INSERT ON FoodOrder
+FOR EACH ROW EXECUTE PROCEDURE claim_order_id();
+
+DROP TRIGGER IF EXISTS FoodOrder_id_released ON FoodOrder;
+CREATE TRIGGER FoodOrder_id_released
+AFTER DELETE ON FoodOrder
+FOR EACH ROW EXECUTE PROCEDURE release_order_id();
+
+-- claims the IDs of orders loaded before the triggers were created; an ID
+-- loaded twice fails here
+INSERT INTO FoodOrderID (orderID)
+SELECT orderID FROM FoodOrder f
+ WHERE NOT EXISTS (SELECT 1 FROM FoodOrderID r WHERE r.orderID = f.orderID);
+
+-- added here rather than in create_tables.sql, once every loaded order
+-- has claimed its ID
+ALTER TABLE ItemsInOrder DROP CONSTRAINT IF EXISTS itemsinorder_orderid_fkey;
+ALTER TABLE ItemsInOrder ADD CONSTRAINT itemsinorder_orderid_fkey
+FOREIGN KEY(orderID) REFERENCES FoodOrderID(orderID) ON DELETE CASCADE;
+
+-- Order events for OrderFeed: every new order and every change of an
+-- order's status is sent on the order_events channel as
+-- "kind|orderID|storeID|status|login", where kind is insert or update.
+-- Notifications are delivered when the transaction commits.
+CREATE OR REPLACE FUNCTION notify_order_event()
+RETURNS trigger AS $$
+BEGIN
+   PERFORM pg_notify('order_events',
+                     lower(TG_OP) || '|' || NEW.orderID || '|' || NEW.storeID || '|' ||
+                     coalesce(rtrim(NEW.orderStatus), '') || '|' || NEW.login);
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS FoodOrder_placed ON FoodOrder;
+CREATE TRIGGER FoodOrder_placed
+AFTER INSERT ON FoodOrder
+FOR EACH ROW EXECUTE PROCEDURE notify_order_event();
+
+DROP TRIGGER IF EXISTS FoodOrder_status_changed ON FoodOrder;
+CREATE TRIGGER FoodOrder_status_changed
+AFTER UPDATE OF orderStatus ON FoodOrder
+FOR EACH ROW WHEN (OLD.orderStatus IS DISTINCT FROM NEW.orderStatus)
+EXECUTE PROCEDURE notify_order_event();
+
+-- Catalog versions: any statement that writes Items or Store, from this
+-- program, BulkLoader or psql, bumps the table's row of CatalogVersion, so
+-- every process holding a cached copy sees that it is out of date.
+CREATE OR REPLACE FUNCTION bump_catalog_version()
+RETURNS trigger AS $$
+BEGIN
+   UPDATE CatalogVersion SET version = version + 1 WHERE tableName = lower(TG_TABLE_NAME);
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS Items_changed ON Items;
+CREATE TRIGGER Items_changed
+AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Items
+FOR EACH STATEMENT EXECUTE PROCEDURE bump_catalog_version();
+
+DROP TRIGGER IF EXISTS Store_changed ON Store;
+CREATE TRIGGER Store_changed
+AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Store
+FOR EACH STATEMENT EXECUTE PROCEDURE bump_catalog_version();
+
+-- Sales rollups for the manager reports.  StoreDailySales and
+-- ItemDailySales count every order that is not canceled on the day it was
+-- placed.  The triggers only append the change an order makes to
+-- StoreSalesDelta and ItemSalesDelta, within the placing transaction: an
+-- order and its lines are added, and an order moved to or from Canceled
+-- is taken out or put back.  Updating the rollup rows in the triggers
+-- would make every order of a store and day wait on the one before, and
+-- transactions touching several keys could deadlock.  fold_sales_deltas()
+-- adds the deltas to the rollups in the background, and the reports read
+-- the rollups plus whatever has not been folded yet.
+CREATE OR REPLACE FUNCTION is_canceled(p_status text)
+RETURNS boolean AS $$
+   SELECT lower(trim(coalesce(p_status, ''))) = 'canceled';
+$$ LANGUAGE sql IMMUTABLE;
+
+CREATE OR REPLACE FUNCTION rollup_order_placed()
+RETURNS trigger AS $$
+BEGIN
+   IF NOT is_canceled(NEW.orderStatus) THEN
+      INSERT INTO StoreSalesDelta (storeID, salesDate, orders, revenue)
+      VALUES (NEW.storeID, NEW.orderTimestamp::date, 1, NEW.totalPrice);
+   END IF;
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- lines are counted on the day of their order, which place_order and the
+-- journal writer insert first, in the same transaction
+CREATE OR REPLACE FUNCTION rollup_lines_added()
+RETURNS trigger AS $$
+BEGIN
+   INSERT INTO ItemSalesDelta (itemName, salesDate, quantity)
+   SELECT a.itemName, f.orderTimestamp::date, SUM(a.quantity)
+     FROM added a JOIN FoodOrder f ON f.orderID = a.orderID
+    WHERE NOT is_canceled(f.orderStatus)
+    GROUP BY a.itemName, f.orderTimestamp::date;
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION rollup_order_canceled()
+RETURNS trigger AS $$
+DECLARE
+   v_sign integer := CASE WHEN is_canceled(NEW.orderStatus) THEN -1 ELSE 1 END;
+BEGIN
+   INSERT INTO StoreSalesDelta (storeID, salesDate, orders, revenue)
+   VALUES (NEW.storeID, NEW.orderTimestamp::date, v_sign, v_sign * NEW.totalPrice);
+   INSERT INTO ItemSalesDelta (itemName, salesDate, quantity)
+   SELECT itemName, NEW.orderTimestamp::date, v_sign * quantity FROM ItemsInOrder WHERE orderID = NEW.orderID;
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS FoodOrder_rollup_placed ON FoodOrder;
+CREATE TRIGGER FoodOrder_rollup_placed
+AFTER INSERT ON FoodOrder
+FOR EACH ROW EXECUTE PROCEDURE rollup_order_placed();
+
+DROP TRIGGER IF EXISTS ItemsInOrder_rollup_added ON ItemsInOrder;
+CREATE TRIGGER ItemsInOrder_rollup_added
+AFTER INSERT ON ItemsInOrder
+REFERENCING NEW TABLE AS added
+FOR EACH STATEMENT EXECUTE PROCEDURE rollup_lines_added();
+
+DROP TRIGGER IF EXISTS FoodOrder_rollup_canceled ON FoodOrder;
+CREATE TRIGGER FoodOrder_rollup_canceled
+AFTER UPDATE OF orderStatus ON FoodOrder
+FOR EACH ROW WHEN (is_canceled(OLD.orderStatus) <> is_canceled(NEW.orderStatus))
+EXECUTE PROCEDURE rollup_order_canceled();
+
+-- Moves the committed deltas into the rollups, one row per store or item
+-- and day.  Rows are upserted in key order, and only one session folds at
+-- a time, so folds cannot deadlock with each other; deltas committed
+-- meanwhile wait for the next fold.  Returns how many rollup rows changed.
+CREATE OR REPLACE FUNCTION fold_sales_deltas()
+RETURNS integer AS $$
+DECLARE
+   v_stores integer;
+   v_items integer;
+BEGIN
+   IF NOT pg_try_advisory_xact_lock(hashtext('fold_sales_deltas')) THEN
+      RETURN 0;
+   END IF;
+   WITH moved AS (DELETE FROM StoreSalesDelta RETURNING *)
+   INSERT INTO StoreDailySales AS s (storeID, salesDate, orders, revenue)
+   SELECT storeID, salesDate, SUM(orders), SUM(revenue)
+     FROM moved
+    GROUP BY storeID, salesDate
+    ORDER BY storeID, salesDate
+   ON CONFLICT (storeID, salesDate)
+   DO UPDATE SET orders = s.orders + EXCLUDED.orders, revenue = s.revenue + EXCLUDED.revenue;
+   GET DIAGNOSTICS v_stores = ROW_COUNT;
+   WITH moved AS (DELETE FROM ItemSalesDelta RETURNING *)
+   INSERT INTO ItemDailySales AS d (itemName, salesDate, quantity)
+   SELECT itemName, salesDate, SUM(quantity)
+     FROM moved
+    GROUP BY itemName, salesDate
+    ORDER BY itemName, salesDate
+   ON CONFLICT (itemName, salesDate) DO UPDATE SET quantity = d.quantity + EXCLUDED.quantity;
+   GET DIAGNOSTICS v_items = ROW_COUNT;
+   RETURN v_stores + v_items;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Recomputes both rollups from the orders, for orders loaded while the
+-- triggers were off.  Orders already moved to the archive are no longer
+-- in FoodOrder and drop out of the rollups.  Pending deltas are dropped,
+-- since the orders they came from are counted afresh.
+CREATE OR REPLACE FUNCTION rebuild_sales_rollups()
+RETURNS void AS $$
+BEGIN
+   LOCK TABLE FoodOrder, ItemsInOrder IN SHARE MODE;
+   TRUNCATE StoreDailySales, ItemDailySales, StoreSalesDelta, ItemSalesDelta;
+   INSERT INTO StoreDailySales (storeID, salesDate, orders, revenue)
+   SELECT storeID, orderTimestamp::date, COUNT(*), SUM(totalPrice)
+     FROM FoodOrder
+    WHERE NOT is_canceled(orderStatus)
+    GROUP BY storeID, orderTimestamp::date;
+   INSERT INTO ItemDailySales (itemName, salesDate, quantity)
+   SELECT i.itemName, f.orderTimestamp::date, SUM(i.quantity)
+     FROM ItemsInOrder i JOIN FoodOrder f ON f.orderID = i.orderID
+    WHERE NOT is_canceled(f.orderStatus)
+    GROUP BY i.itemName, f.orderTimestamp::date;
+END;
+$$ LANGUAGE plpgsql;
+
+-- counts the orders loaded before the triggers were created
+SELECT rebuild_sales_rollups();
@@ -1,8 +1,20 @@
-CREATE INDEX idx_orderID
-ON FoodOrder USING BTREE (orderID);
+-- Indexes for the queries the application runs.  Lookups by primary key
+-- (orderID, storeID, itemName, login, and ItemsInOrder by orderID) use the
+-- primary key indexes, log in included, and menu filters by type or price
+-- are served from the in-memory MenuCatalog.  java/scripts/plans.sh checks
+-- every plan.
 
-CREATE INDEX idx_storeID
-ON Store USING BTREE (storeID);
+-- staff order history, newest first, paged by (orderTimestamp, orderID)
+CREATE INDEX idx_FoodOrder_timestamp
+ON FoodOrder USING BTREE (orderTimestamp DESC, orderID DESC);
 
-CREATE INDEX idx_Items
-ON Items USING BTREE (itemName);
\ No newline at end of file
+-- a customer's order history and five most recent orders, newest first
+CREATE INDEX idx_FoodOrder_login_timestamp
+ON FoodOrder USING BTREE (login, orderTimestamp DESC, orderID DESC);
+
+-- sales reports across every store or item over a range of days
+CREATE INDEX idx_StoreDailySales_date
+ON StoreDailySales USING BTREE (salesDate);
+
+CREATE INDEX idx_ItemDailySales_date
+ON ItemDailySales USING BTREE (salesDate);
@@ -0,0 +1,110 @@
+-- Partitions of FoodOrder, which is range-partitioned on orderTimestamp.
+-- Orders older than the last twelve months share FoodOrder_history, and
+-- every month since has its own partition, FoodOrder_YYYY_MM.  An order
+-- for a month without a partition yet, e.g. when PartitionMaintainer has
+-- not run, goes to FoodOrder_default and is moved out when its month's
+-- partition is created.  Each
+-- partition has its own copy of every index, so index depth and vacuum
+-- work follow the size of a month rather than of all orders.
+-- PartitionMaintainer calls the functions below to keep partitions ahead
+-- of the clock and to detach old ones.
+
+-- Creates the monthly partitions from the month of p_from through p_ahead
+-- months past the current one.  Months that already have a partition, or
+-- that fall inside FoodOrder_history, are skipped.  A month with orders
+-- in FoodOrder_default is built from them: they are moved to a new table
+-- that is then attached, which holds FoodOrder_default's lock until the
+-- transaction ends.  Returns how many partitions were created.
+CREATE OR REPLACE FUNCTION create_foodorder_partitions(p_from date, p_ahead integer)
+RETURNS integer AS $$
+DECLARE
+   v_month date := date_trunc('month', p_from::timestamp)::date;
+   v_last date := (date_trunc('month', localtimestamp) + make_interval(months => p_ahead))::date;
+   v_name text;
+   v_created integer := 0;
+BEGIN
+   WHILE v_month <= v_last LOOP
+      v_name := 'foodorder_' || to_char(v_month, 'YYYY_MM');
+      IF NOT EXISTS (SELECT 1 FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid
+                      WHERE i.inhparent = 'foodorder'::regclass AND c.relname = v_name) THEN
+         BEGIN
+            IF EXISTS (SELECT 1 FROM FoodOrder_default
+                        WHERE orderTimestamp >= v_month AND orderTimestamp < v_month + interval '1 month') THEN
+               EXECUTE format('CREATE TABLE %I (LIKE FoodOrder INCLUDING DEFAULTS INCLUDING CONSTRAINTS)', v_name);
+               -- the new table is not yet a partition, so no FoodOrder trigger
+               -- fires on the insert, but FoodOrder_default carries the
+               -- cloned FoodOrder_id_released trigger.  Left on, the delete
+               -- would release the orders' IDs and cascade to their lines,
+               -- and ATTACH would claim nothing back.
+               ALTER TABLE FoodOrder_default DISABLE TRIGGER FoodOrder_id_released;
+               EXECUTE format('WITH moved AS (DELETE FROM FoodOrder_default '
+                              'WHERE orderTimestamp >= %L AND orderTimestamp < %L RETURNING *) '
+                              'INSERT INTO %I SELECT * FROM moved',
+                              v_month, (v_month + interval '1 month')::date, v_name);
+               ALTER TABLE FoodOrder_default ENABLE TRIGGER FoodOrder_id_released;
+               EXECUTE format('ALTER TABLE FoodOrder ATTACH PARTITION %I FOR VALUES FROM (%L) TO (%L)',
+                              v_name, v_month, (v_month + interval '1 month')::date);
+            ELSE
+               EXECUTE format('CREATE TABLE %I PARTITION OF FoodOrder FOR VALUES FROM (%L) TO (%L)',
+                              v_name, v_month, (v_month + interval '1 month')::date);
+            END IF;
+            v_created := v_created + 1;
+         EXCEPTION WHEN invalid_object_definition OR duplicate_table THEN
+            -- the month overlaps FoodOrder_history, or another session
+            -- created it first
+            NULL;
+         END;
+      END IF;
+      v_month := (v_month + interval '1 month')::date;
+   END LOOP;
+   RETURN v_created;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Detaches the monthly partitions that end on or before p_before.  Their
+-- orders leave FoodOrder, and so every query, but stay in a table renamed
+-- FoodOrder_detached_YYYY_MM, and their lines move from ItemsInOrder to
+-- ItemsInOrder_detached_YYYY_MM.  Both are kept until dropped by hand;
+-- OrderArchive only reads FoodOrder, so orders meant for the archive must
+-- be archived before their month is detached.  Their IDs are released.
+-- Detaching takes a short lock on FoodOrder.  Returns the names of the
+-- detached tables.
+CREATE OR REPLACE FUNCTION detach_foodorder_partitions(p_before date)
+RETURNS SETOF text AS $$
+DECLARE
+   v_name text;
+   v_orders text;
+   v_lines text;
+BEGIN
+   FOR v_name IN
+      SELECT c.relname
+        FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid
+       WHERE i.inhparent = 'foodorder'::regclass
+         AND c.relname ~ '^foodorder_[0-9]{4}_[0-9]{2}$'
+         AND to_date(substr(c.relname, 11), 'YYYY_MM') + interval '1 month' <= p_before
+       ORDER BY c.relname
+   LOOP
+      v_orders := 'foodorder_detached_' || substr(v_name, 11);
+      v_lines := 'itemsinorder_detached_' || substr(v_name, 11);
+      EXECUTE format('ALTER TABLE FoodOrder DETACH PARTITION %I', v_name);
+      EXECUTE format('ALTER TABLE %I RENAME TO %I', v_name, v_orders);
+      EXECUTE format('CREATE TABLE %I AS SELECT l.* FROM ItemsInOrder l JOIN %I o ON o.orderID = l.orderID',
+                     v_lines, v_orders);
+      -- the lines go with the IDs, through ItemsInOrder's foreign key
+      EXECUTE format('DELETE FROM FoodOrderID r USING %I o WHERE r.orderID = o.orderID', v_orders);
+      RETURN NEXT v_orders;
+   END LOOP;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TABLE FoodOrder_default PARTITION OF FoodOrder DEFAULT;
+
+DO $$
+BEGIN
+   EXECUTE format('CREATE TABLE FoodOrder_history PARTITION OF FoodOrder FOR VALUES FROM (MINVALUE) TO (%L)',
+                  date_trunc('month', localtimestamp) - interval '12 months');
+END;
+$$;
+
+-- generated orders span the last 365 days
+SELECT create_foodorder_partitions((date_trunc('month', localtimestamp) - interval '12 months')::date, 3);
@@ -3,6 +3,13 @@ DROP TABLE IF EXISTS Items CASCADE;
 DROP TABLE IF EXISTS FoodOrder CASCADE;
 DROP TABLE IF EXISTS Store CASCADE;
 DROP TABLE IF EXISTS ItemsInOrder CASCADE;
+DROP TABLE IF EXISTS FoodOrderID CASCADE;
+DROP TABLE IF EXISTS StoreDailySales CASCADE;
+DROP TABLE IF EXISTS ItemDailySales CASCADE;
+DROP TABLE IF EXISTS StoreSalesDelta CASCADE;
+DROP TABLE IF EXISTS ItemSalesDelta CASCADE;
+DROP TABLE IF EXISTS CatalogVersion CASCADE;
+DROP SEQUENCE IF EXISTS FoodOrder_orderID_seq;
 
 CREATE TABLE Users ( login varchar(50) NOT NULL,
                      password varchar(30) NOT NULL,
@@ -29,27 +36,77 @@ CREATE TABLE Store ( storeID integer NOT NULL,
                            PRIMARY KEY(storeID)
 );
 
+-- partitioned by month of orderTimestamp; the partitions are laid out by
+-- create_partitions.sql, and a key must include the partition column
 CREATE TABLE FoodOrder ( orderID integer NOT NULL,
                            login varchar(50) NOT NULL, --places relationship
                            storeID integer NOT NULL, --placedAt relationship
                            totalPrice decimal(10,2) NOT NULL,
                            orderTimestamp timestamp NOT NULL,
                            orderStatus char(50),
-                           PRIMARY KEY(orderID),
+                           PRIMARY KEY(orderID, orderTimestamp),
                            FOREIGN KEY(login) REFERENCES Users(login)
                            ON DELETE CASCADE,
                            FOREIGN KEY(storeID) REFERENCES Store(storeID)
                            ON DELETE CASCADE
-);
+) PARTITION BY RANGE (orderTimestamp);
+
 
+-- new order IDs; each nextval reserves a block of 50 IDs for one client
+CREATE SEQUENCE FoodOrder_orderID_seq START WITH 10000 INCREMENT BY 50;
 
+-- every orderID in FoodOrder, once: a key on a partitioned table must
+-- include the partition column, so FoodOrder's own key cannot keep an
+-- orderID from being used in two months.  Kept by the FoodOrder_id
+-- triggers of create_functions.sql, and the target of ItemsInOrder's
+-- foreign key, which is added there too.
+CREATE TABLE FoodOrderID ( orderID integer NOT NULL,
+                           PRIMARY KEY(orderID)
+);
 
 CREATE TABLE ItemsInOrder ( orderID integer NOT NULL,
                            itemName varchar(50) NOT NULL,
                            quantity integer NOT NULL,
                            PRIMARY KEY(orderID, itemName),
-                           FOREIGN KEY(orderID) REFERENCES FoodOrder(orderID) ON DELETE CASCADE,
                            FOREIGN KEY(itemName) REFERENCES Items(itemName)
                            ON DELETE CASCADE
 );
 
+-- sales rollups for the manager reports, folded in from the deltas below
+-- by fold_sales_deltas() in create_functions.sql; canceled orders are not
+-- counted
+CREATE TABLE StoreDailySales ( storeID integer NOT NULL,
+                           salesDate date NOT NULL,
+                           orders integer NOT NULL,
+                           revenue decimal(14,2) NOT NULL,
+                           PRIMARY KEY(storeID, salesDate)
+);
+
+CREATE TABLE ItemDailySales ( itemName varchar(50) NOT NULL,
+                           salesDate date NOT NULL,
+                           quantity bigint NOT NULL,
+                           PRIMARY KEY(itemName, salesDate)
+);
+
+-- changes to the rollups not folded in yet, appended by the order
+-- triggers; no keys, so writers never wait on each other's rows
+CREATE TABLE StoreSalesDelta ( storeID integer NOT NULL,
+                           salesDate date NOT NULL,
+                           orders integer NOT NULL,
+                           revenue decimal(14,2) NOT NULL
+);
+
+CREATE TABLE ItemSalesDelta ( itemName varchar(50) NOT NULL,
+                           salesDate date NOT NULL,
+                           quantity bigint NOT NULL
+);
+
+-- a counter per cached table, bumped by the triggers in
+-- create_functions.sql on every write; MenuCatalog and StoreDirectory
+-- compare it with the version they loaded to find changes made elsewhere
+CREATE TABLE CatalogVersion ( tableName varchar(30) NOT NULL,
+                           version bigint NOT NULL,
+                           PRIMARY KEY(tableName)
+);
+
+INSERT INTO CatalogVersion (tableName, version) VALUES ('items', 0), ('store', 0);
@@ -15,6 +15,9 @@ COPY FoodOrder
 FROM '/home/csmajs/jhamo001/cs166_project_phase3/data/foodorder.csv'
 WITH DELIMITER ',' CSV HEADER;
 
+-- start handing out order IDs after the loaded ones
+SELECT setval('FoodOrder_orderID_seq', (SELECT COALESCE(MAX(orderID) + 1, 10000) FROM FoodOrder), false);
+
 COPY ItemsInOrder
 FROM '/home/csmajs/jhamo001/cs166_project_phase3/data/itemsinorder.csv'
 WITH DELIMITER ',' CSV HEADER;